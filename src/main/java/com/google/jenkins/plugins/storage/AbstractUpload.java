@@ -22,10 +22,18 @@ import java.net.URLConnection;
 import java.security.GeneralSecurityException;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -34,6 +42,8 @@ import org.apache.commons.io.FilenameUtils;
 import org.jenkinsci.remoting.RoleChecker;
 import org.kohsuke.stapler.DataBoundSetter;
 
+import static com.google.api.client.http.HttpStatusCodes
+    .STATUS_CODE_UNAUTHORIZED;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.api.client.googleapis.media.MediaHttpUploader;
@@ -41,24 +51,43 @@ import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.ComposeRequest;
+import com.google.api.services.storage.model.ComposeRequest.SourceObjects;
 import com.google.api.services.storage.model.ObjectAccessControl;
 import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
 import com.google.jenkins.plugins.metadata.MetadataContainer;
 import com.google.jenkins.plugins.storage.reports.BuildGcsUploadReport;
+import com.google.jenkins.plugins.storage.util.ArchiveByteSource;
+import com.google.jenkins.plugins.storage.util.BucketCache;
 import com.google.jenkins.plugins.storage.util.BucketPath;
+import com.google.jenkins.plugins.storage.util.ContentStore;
+import com.google.jenkins.plugins.storage.util.GzipByteSource;
+import com.google.jenkins.plugins.storage.util.HashingByteSource;
+import com.google.jenkins.plugins.storage.util.ObjectMirror;
 import com.google.jenkins.plugins.storage.util.RetryStorageOperation;
 import com.google.jenkins.plugins.storage.util.RetryStorageOperation.Operation;
 import com.google.jenkins.plugins.storage.util.RetryStorageOperation
     .RepeatOperation;
+import com.google.jenkins.plugins.storage.util.ResumableUpload;
+import com.google.jenkins.plugins.storage.util.StorageClientPool;
 import com.google.jenkins.plugins.storage.util.StorageUtil;
+import com.google.jenkins.plugins.storage.util.UnchangedFiles;
 import com.google.jenkins.plugins.util.ConflictException;
 import com.google.jenkins.plugins.util.Executor;
 import com.google.jenkins.plugins.util.ExecutorException;
@@ -68,6 +97,7 @@ import com.google.jenkins.plugins.util.NotFoundException;
 import hudson.DescriptorExtensionList;
 import hudson.ExtensionPoint;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.Describable;
 import hudson.model.Hudson;
@@ -75,6 +105,7 @@ import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.remoting.Callable;
+import hudson.remoting.Channel;
 
 /**
  * This new extension point is used for surfacing different kinds of
@@ -93,7 +124,11 @@ import hudson.remoting.Callable;
  * uploading should be performed. <li> Optional {@link #getMetadata}: allows the
  * implementation to surface additional metadata on the storage object <li>
  * Optional {@link #annotateObject}: allows the implementation to ~arbitrarily
- * rewrite parts of the object prior to insertion. </ul>
+ * rewrite parts of the object prior to insertion. <li> Optional
+ * {@link #getArchiveName}: has the files uploaded as a single archive. </ul>
+ *
+ * Files may also be uploaded into a content-addressed store, see
+ * {@link #setContentStore}, or mirrored, see {@link #setMirror}.
  */
 public abstract class AbstractUpload
     implements Describable<AbstractUpload>, ExtensionPoint, Serializable {
@@ -193,6 +228,24 @@ public abstract class AbstractUpload
     public final Collection<FilePath> inclusions;
   }
 
+  /**
+   * A resumable upload, along with the hashes of the content it sent.  A
+   * worker keeps the sessions whose upload failed with a 401, by object
+   * name, while its credentials are initialized again, so that the upload
+   * it retries resumes where the session stopped rather than from the
+   * first byte.
+   */
+  static class ResumableSession {
+    public ResumableSession(HashingByteSource content,
+        ResumableUpload upload) {
+      this.content = content;
+      this.upload = upload;
+    }
+
+    public final HashingByteSource content;
+    public final ResumableUpload upload;
+  }
+
   /**
    * Implementations override this interface in order to surface the set of
    * {@link FilePath}s the core logic should upload.
@@ -232,6 +285,20 @@ public abstract class AbstractUpload
     return MetadataContainer.of(run).getSerializedMetadata();
   }
 
+  /**
+   * The name of the archive to upload the included files into, relative to
+   * the storage location, or null to upload each file as its own object.
+   * The archive is a tar, compressed with gzip if the name ends with
+   * {@code .tgz} or {@code .tar.gz}, and comes with an index object that
+   * has the offset and length of each file within it.
+   *
+   * NOTE: The base implementation uploads each file as its own object.
+   */
+  @Nullable
+  public String getArchiveName() {
+    return null;
+  }
+
   /**
    * Determine whether we should upload the pattern for the given
    * build result.
@@ -331,6 +398,201 @@ public abstract class AbstractUpload
 
   private String pathPrefix;
 
+  /**
+   * The number of files to upload concurrently. When this is not positive,
+   * the default of the {@link UploadModule} is used.
+   */
+  @DataBoundSetter
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  private int parallelism;
+
+  /**
+   * The size, in MiB, from which files are uploaded through a resumable
+   * session that can recover from failures without starting over.  When
+   * this is not positive, the default of the {@link UploadModule} is used.
+   */
+  @DataBoundSetter
+  public void setResumableThreshold(int resumableThreshold) {
+    this.resumableThreshold = resumableThreshold;
+  }
+
+  public int getResumableThreshold() {
+    return resumableThreshold;
+  }
+
+  private int resumableThreshold;
+
+  /**
+   * The size, in MiB, of each request of a resumable upload.  When this is
+   * not positive, the default of the {@link UploadModule} is used.
+   */
+  @DataBoundSetter
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  private int chunkSize;
+
+  /**
+   * The number of slices that large files are split into, which are uploaded
+   * concurrently and then composed into the final object.  When this is not
+   * positive, the default of the {@link UploadModule} is used.
+   */
+  @DataBoundSetter
+  public void setCompositeSlices(int compositeSlices) {
+    this.compositeSlices = compositeSlices;
+  }
+
+  public int getCompositeSlices() {
+    return compositeSlices;
+  }
+
+  private int compositeSlices;
+
+  /**
+   * The minimum size, in MiB, of each slice of a composite upload, so that
+   * only files of at least twice this size are split.  When this is not
+   * positive, the default of the {@link UploadModule} is used.
+   */
+  @DataBoundSetter
+  public void setMinSliceSize(int minSliceSize) {
+    this.minSliceSize = minSliceSize;
+  }
+
+  public int getMinSliceSize() {
+    return minSliceSize;
+  }
+
+  private int minSliceSize;
+
+  /**
+   * Whether to leave out the files whose content the destination already
+   * has, which is determined by listing the destination once and comparing
+   * the size and checksum of each file with its object.
+   */
+  @DataBoundSetter
+  public void setSkipUnchanged(boolean skipUnchanged) {
+    this.skipUnchanged = skipUnchanged;
+  }
+
+  public boolean isSkipUnchanged() {
+    return skipUnchanged;
+  }
+
+  private boolean skipUnchanged;
+
+  /**
+   * Whether to compress textual files with gzip as they are uploaded, and
+   * store them with {@code Content-Encoding: gzip}.
+   */
+  @DataBoundSetter
+  public void setGzipContent(boolean gzipContent) {
+    this.gzipContent = gzipContent;
+  }
+
+  public boolean isGzipContent() {
+    return gzipContent;
+  }
+
+  private boolean gzipContent;
+
+  /**
+   * The comma-separated extensions of the files to compress, besides those
+   * of a textual content type.  When this is empty, a default list of text
+   * formats is used.
+   */
+  @DataBoundSetter
+  public void setGzipExtensions(@Nullable String gzipExtensions) {
+    this.gzipExtensions = Util.fixEmptyAndTrim(gzipExtensions);
+  }
+
+  @Nullable
+  public String getGzipExtensions() {
+    return gzipExtensions;
+  }
+
+  private String gzipExtensions;
+
+  /**
+   * The path, within the bucket, of a store that files are uploaded into as
+   * objects named by the SHA-256 of their content, or null to upload them
+   * under their own names.  A file is only uploaded if the store does not
+   * have its content yet, and each upload writes a manifest of the paths
+   * of its files and the hashes of their content, which is all that is
+   * stored under the upload's own location.
+   */
+  @DataBoundSetter
+  public void setContentStore(@Nullable String contentStore) {
+    this.contentStore = Util.fixEmptyAndTrim(contentStore);
+  }
+
+  @Nullable
+  public String getContentStore() {
+    return contentStore;
+  }
+
+  private String contentStore;
+
+  /**
+   * Whether to make the objects under the destination the same as the files
+   * uploaded, like {@code rsync --delete}: the destination is listed once,
+   * only the files that are new or changed are uploaded, and the objects
+   * that none of the files is uploaded as any longer are deleted.  This
+   * does not apply to archives and content-addressed uploads.
+   */
+  @DataBoundSetter
+  public void setMirror(boolean mirror) {
+    this.mirror = mirror;
+  }
+
+  public boolean isMirror() {
+    return mirror;
+  }
+
+  private boolean mirror;
+
+  /**
+   * Whether a mirror may have the root of its bucket as its destination,
+   * which deletes every object of the bucket that no file is uploaded as.
+   * Mirrors refuse to run at the root of a bucket otherwise.
+   */
+  @DataBoundSetter
+  public void setMirrorBucketRoot(boolean mirrorBucketRoot) {
+    this.mirrorBucketRoot = mirrorBucketRoot;
+  }
+
+  public boolean isMirrorBucketRoot() {
+    return mirrorBucketRoot;
+  }
+
+  private boolean mirrorBucketRoot;
+
+  /**
+   * Whether a mirror only reports the files it would upload and the objects
+   * it would delete, without changing the destination.
+   */
+  @DataBoundSetter
+  public void setDryRun(boolean dryRun) {
+    this.dryRun = dryRun;
+  }
+
+  public boolean isDryRun() {
+    return dryRun;
+  }
+
+  private boolean dryRun;
+
   /**
    * The module to use for providing dependencies.
    */
@@ -368,20 +630,45 @@ public abstract class AbstractUpload
       final UploadSpec uploads,
       final TaskListener listener) throws UploadException {
     try {
+      final String archiveName = getArchiveName() == null ? null
+          : StorageUtil.replaceMacro(getArchiveName(), run, listener);
+      final String storePath = archiveName != null || contentStore == null
+          ? null : StorageUtil.replaceMacro(contentStore, run, listener);
       try {
         // Use remotable credential to access the storage service from the
         // remote machine.
         final GoogleRobotCredentials remoteCredentials =
             checkNotNull(credentials).forRemote(module.getRequirement());
         final String version = module.getVersion();
+        final int parallelism = getParallelism() > 0
+            ? getParallelism() : module.getUploadParallelism();
 
         uploads.workspace.act(
             new Callable<Void, UploadException>() {
               @Override
               public Void call() throws UploadException {
-                performUploads(storagePrefix.getBucket(),
-                    storagePrefix.getObject(),
-                    remoteCredentials, uploads, listener, version);
+                StorageClientPool.getInstance().releaseOnClose(
+                    Channel.current());
+                if (archiveName != null) {
+                  performArchiveUpload(storagePrefix.getBucket(),
+                      storagePrefix.getObject(), archiveName,
+                      remoteCredentials, uploads, listener, version);
+                } else if (storePath != null) {
+                  performContentAddressedUploads(storagePrefix.getBucket(),
+                      storagePrefix.getObject(), storePath,
+                      remoteCredentials, uploads, listener, version,
+                      parallelism);
+                } else if (isMirror()) {
+                  performMirror(storagePrefix.getBucket(),
+                      storagePrefix.getObject(),
+                      remoteCredentials, uploads, listener, version,
+                      parallelism);
+                } else {
+                  performUploads(storagePrefix.getBucket(),
+                      storagePrefix.getObject(),
+                      remoteCredentials, uploads, listener, version,
+                      parallelism);
+                }
                 return (Void) null;
               }
 
@@ -399,10 +686,28 @@ public abstract class AbstractUpload
 
       // We can't do this over the wire, so do it in bulk here
       BuildGcsUploadReport report = BuildGcsUploadReport.of(run);
+      if (archiveName != null) {
+        report.addUpload(archiveName, storagePrefix);
+        report.addUpload(archiveName + INDEX_SUFFIX, storagePrefix);
+      }
+      if (storePath != null) {
+        // The files are only found at this location through the manifest.
+        report.addUpload(MANIFEST_NAME, storagePrefix);
+        return;
+      }
+      if (isMirroring(archiveName, storePath) && isDryRun()) {
+        // Nothing was uploaded.
+        return;
+      }
       for (FilePath include : uploads.inclusions) {
-        report.addUpload(StorageUtil.getStrippedFilename(
-            StorageUtil.getRelative(include, uploads.workspace), pathPrefix),
-            storagePrefix);
+        String uploadedFileName = StorageUtil.getStrippedFilename(
+            StorageUtil.getRelative(include, uploads.workspace), pathPrefix);
+        if (archiveName != null) {
+          report.addArchiveMember(uploadedFileName, archiveName,
+              storagePrefix);
+        } else {
+          report.addUpload(uploadedFileName, storagePrefix);
+        }
       }
 
     } catch (IOException e) {
@@ -418,77 +723,572 @@ public abstract class AbstractUpload
    * This is the workhorse API for performing the actual uploads.  It is
    * performed at the workspace, so that all of the {@link FilePath}s should
    * be local.
+   *
+   * The files are uploaded by {@code parallelism} workers sharing a single
+   * queue. Each worker keeps its own storage service, so that expired
+   * credentials are refreshed per worker, and a file that cannot be uploaded
+   * is reported without stopping the others. The upload fails once all
+   * workers are done if any of the files failed.
    */
   private void performUploads(final String bucketName,
       final String objectPrefix, final GoogleRobotCredentials credentials,
       final UploadSpec uploads, final TaskListener listener,
-      final String version)
+      final String version, final int parallelism)
+      throws UploadException {
+    Collection<FilePath> inclusions = uploads.inclusions;
+    if (isSkipUnchanged()) {
+      inclusions = removeUnchanged(bucketName, objectPrefix, credentials,
+          uploads, listener, version, parallelism);
+    }
+
+    Map<FilePath, String> objectNames = Maps.newLinkedHashMap();
+    for (FilePath include : inclusions) {
+      objectNames.put(include, getObjectName(objectPrefix, uploads, include));
+    }
+    uploadFiles(bucketName, objectNames, credentials, uploads, listener,
+        version, parallelism);
+  }
+
+  /**
+   * Whether the files are mirrored, which only plain uploads are.
+   */
+  private boolean isMirroring(@Nullable String archiveName,
+      @Nullable String storePath) {
+    return isMirror() && archiveName == null && storePath == null;
+  }
+
+  /**
+   * Makes the objects under the prefix the same as the files of the
+   * {@link UploadSpec}.  The destination is listed once, from which both
+   * the files that are new or changed and the objects that are stale are
+   * found.  The files are uploaded first, so that a failed upload leaves
+   * the destination as it was, and the stale objects are then deleted with
+   * batch requests.  A dry run only reports what would change.
+   */
+  private void performMirror(final String bucketName, String objectPrefix,
+      final GoogleRobotCredentials credentials, UploadSpec uploads,
+      TaskListener listener, final String version, int parallelism)
       throws UploadException {
-    RepeatOperation<UploadException> a =
+    if (objectPrefix.isEmpty() && !isMirrorBucketRoot()) {
+      throw new UploadException(
+          Messages.AbstractUpload_MirrorBucketRoot(bucketName));
+    }
+    Map<FilePath, String> changed = Maps.newLinkedHashMap();
+    SortedSet<String> stale;
+    try {
+      Storage service = module.getStorageService(credentials, version);
+      String listPrefix = objectPrefix.isEmpty() || objectPrefix.endsWith("/")
+          ? objectPrefix : objectPrefix + "/";
+      Map<String, StorageObject> objects = UnchangedFiles.listObjects(
+          module.newExecutor(), service, bucketName, listPrefix);
+
+      Map<String, FilePath> files = Maps.newLinkedHashMap();
+      for (FilePath include : uploads.inclusions) {
+        files.put(getObjectName(objectPrefix, uploads, include), include);
+      }
+      Set<String> unchanged =
+          UnchangedFiles.findUnchanged(files, objects, parallelism);
+
+      int added = 0;
+      for (Map.Entry<String, FilePath> entry : files.entrySet()) {
+        if (!unchanged.contains(entry.getKey())) {
+          changed.put(entry.getValue(), entry.getKey());
+          if (!objects.containsKey(entry.getKey())) {
+            added++;
+          }
+        }
+      }
+      stale = ObjectMirror.findStale(objects.keySet(), files.keySet());
+      listener.getLogger().println(module.prefix(
+          Messages.AbstractUpload_Mirroring(added, changed.size() - added,
+              unchanged.size(), stale.size())));
+    } catch (ExecutorException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (IOException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (InterruptedException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    }
+
+    if (isDryRun()) {
+      for (String name : changed.values()) {
+        listener.getLogger().println(module.prefix(
+            Messages.AbstractUpload_WouldUpload(
+                "gs://" + bucketName + "/" + name)));
+      }
+      for (String name : stale) {
+        listener.getLogger().println(module.prefix(
+            Messages.AbstractUpload_WouldDelete(
+                "gs://" + bucketName + "/" + name)));
+      }
+      return;
+    }
+
+    if (!changed.isEmpty()) {
+      uploadFiles(bucketName, changed, credentials, uploads, listener,
+          version, parallelism);
+    }
+    if (!stale.isEmpty()) {
+      deleteStale(bucketName, stale, credentials, listener, version);
+    }
+  }
+
+  /**
+   * Deletes the given stale objects of a mirror.  The deletions that fail
+   * are retried, in batches of their own, until they run out of attempts.
+   */
+  private void deleteStale(final String bucketName,
+      final SortedSet<String> stale, final GoogleRobotCredentials credentials,
+      TaskListener listener, final String version) throws UploadException {
+    final SortedSet<String> pending = new TreeSet<String>(stale);
+    RepeatOperation<UploadException> deleter =
+        new RepeatOperation<UploadException>() {
+      Executor executor = module.newExecutor();
+
+      Storage service;
+      boolean done;
+
+      @Override
+      public void initCredentials() throws IOException {
+        service = module.getStorageService(credentials, version);
+      }
+
+      @Override
+      public void act()
+          throws IOException, InterruptedException, ExecutorException {
+        RetryStorageOperation.performRequestWithRetry(executor,
+            new Operation() {
+              public void act() throws IOException {
+                SortedMap<String, String> failures =
+                    ObjectMirror.deleteObjects(service, bucketName, pending);
+                pending.retainAll(failures.keySet());
+                if (!failures.isEmpty()) {
+                  String first = failures.firstKey();
+                  throw new IOException(
+                      Messages.AbstractUpload_StaleNotDeleted(
+                          failures.size(), stale.size(), first,
+                          failures.get(first)));
+                }
+              }
+            }, module.getInsertRetryCount());
+        done = true;
+      }
+
+      @Override
+      public boolean moreWork() {
+        return !done;
+      }
+    };
+
+    try {
+      RetryStorageOperation.performRequestWithReinitCredentials(deleter);
+    } catch (ExecutorException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (IOException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (InterruptedException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    }
+    listener.getLogger().println(module.prefix(
+        Messages.AbstractUpload_DeletedStale(stale.size())));
+  }
+
+  /**
+   * Uploads the given files of the {@link UploadSpec} as the objects of the
+   * given names, with {@code parallelism} workers sharing a single queue.
+   * The slices of large files are uploaded by threads of the same budget,
+   * so that no more than {@code parallelism} threads upload at once.
+   */
+  private void uploadFiles(final String bucketName,
+      final Map<FilePath, String> objectNames,
+      final GoogleRobotCredentials credentials, final UploadSpec uploads,
+      final TaskListener listener, final String version,
+      final int parallelism) throws UploadException {
+    final Queue<FilePath> paths =
+        new ConcurrentLinkedQueue<FilePath>(objectNames.keySet());
+    // Sorted by relative path, so that the reported failure does not depend
+    // on the order in which the workers ran.
+    final SortedMap<String, Exception> failures =
+        new ConcurrentSkipListMap<String, Exception>();
+
+    // The threads besides the calling one, for the files and their slices.
+    final Semaphore threads = new Semaphore(Math.max(0, parallelism - 1));
+    int workerCount = Math.max(1, Math.min(parallelism, paths.size()));
+    List<RepeatOperation<UploadException>> workers = Lists.newArrayList();
+    for (int i = 0; i < workerCount; i++) {
+      workers.add(new RepeatOperation<UploadException>() {
+        // Taken from the queue once this worker runs, which it need not.
+        private FilePath include;
+        private final Map<String, ResumableSession> sessions =
+            Maps.newHashMap();
+        Executor executor = module.newExecutor();
+
+        Storage service;
+        Bucket bucket;
+
+        @Override
+        public void initCredentials() throws UploadException, IOException {
+          service = module.getStorageService(credentials, version);
+          // Ensure the bucket exists, fetching it regardless so that we can
+          // attach its default ACLs to the objects we upload.
+          bucket = getOrCreateBucket(service, credentials, executor,
+              bucketName);
+        }
+
+        @Override
+        public void act()
+            throws HttpResponseException, UploadException, IOException,
+            InterruptedException, ExecutorException {
+          String relativePath = StorageUtil
+              .getRelative(include, uploads.workspace);
+          try {
+            performUpload(executor, service, bucket,
+                objectNames.get(include), uploads, include, credentials,
+                version, threads, sessions, listener);
+          } catch (HttpResponseException e) {
+            if (e.getStatusCode() == STATUS_CODE_UNAUTHORIZED) {
+              // Let the caller refresh our credentials and retry this file.
+              throw e;
+            }
+            recordFailure(relativePath, e);
+          } catch (ForbiddenException e) {
+            // We aren't allowed to write to this bucket, so no other file
+            // is going to fare any better.
+            invalidateBucket(credentials, bucketName);
+            throw e;
+          } catch (NotFoundException e) {
+            // The bucket went away since we fetched it.
+            invalidateBucket(credentials, bucketName);
+            recordFailure(relativePath, e);
+          } catch (ExecutorException e) {
+            recordFailure(relativePath, e);
+          } catch (IOException e) {
+            recordFailure(relativePath, e);
+          } catch (UploadException e) {
+            recordFailure(relativePath, e);
+          }
+          include = null;
+        }
+
+        @Override
+        public boolean moreWork() {
+          if (include == null) {
+            include = paths.poll();
+          }
+          return include != null;
+        }
+
+        private void recordFailure(String relativePath, Exception e) {
+          failures.put(relativePath, e);
+          listener.error(module.prefix(
+              Messages.AbstractUpload_FileUploadFailed(relativePath,
+                  e.getMessage())));
+        }
+      });
+    }
+
+    try {
+      RetryStorageOperation.performRequestsWithReinitCredentials(workers,
+          threads);
+    } catch (ForbiddenException e) {
+      // If the user doesn't own a bucket then they will end up here.
+      throw new UploadException(
+          Messages.AbstractUpload_ForbiddenFileUpload(), e);
+    } catch (ExecutorException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (IOException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (InterruptedException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    }
+
+    if (!failures.isEmpty()) {
+      String firstPath = failures.firstKey();
+      throw new UploadException(
+          Messages.AbstractUpload_FilesFailedToUpload(failures.size(),
+              objectNames.size(), firstPath),
+          failures.get(firstPath));
+    }
+  }
+
+  /**
+   * Uploads all of the files of the {@link UploadSpec} as a single archive,
+   * which is produced from the files as it is sent, followed by its index.
+   * This takes two requests however many files there are, which matters
+   * when there are many small ones.
+   */
+  private void performArchiveUpload(final String bucketName,
+      String objectPrefix, final String archiveName,
+      final GoogleRobotCredentials credentials, UploadSpec uploads,
+      final TaskListener listener, final String version)
+      throws UploadException {
+    final String objectName = FilenameUtils.separatorsToUnix(
+        FilenameUtils.concat(objectPrefix, archiveName));
+    final ArchiveByteSource archive;
+    final long totalSize;
+    try {
+      List<ArchiveByteSource.Member> members = Lists.newArrayList();
+      long size = 0;
+      for (FilePath include : uploads.inclusions) {
+        members.add(new ArchiveByteSource.Member(
+            StorageUtil.getStrippedFilename(
+                StorageUtil.getRelative(include, uploads.workspace),
+                pathPrefix),
+            StorageUtil.asByteSource(include), include.length(),
+            include.lastModified()));
+        size += include.length();
+      }
+      archive = new ArchiveByteSource(members, isCompressedArchive(
+          archiveName));
+      totalSize = size;
+    } catch (IOException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (InterruptedException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    }
+
+    listener.getLogger().println(module.prefix(
+        Messages.AbstractUpload_Archiving(uploads.inclusions.size(),
+            objectName)));
+
+    RepeatOperation<UploadException> worker =
         new RepeatOperation<UploadException>() {
-      private Queue<FilePath> paths = new LinkedList<>(uploads.inclusions);;
-      Executor executor = module.newExecutor();;
+      private final Map<String, ResumableSession> sessions =
+          Maps.newHashMap();
+      Executor executor = module.newExecutor();
 
       Storage service;
       Bucket bucket;
+      long sent = -1;
+      boolean done;
 
       @Override
       public void initCredentials() throws UploadException, IOException {
         service = module.getStorageService(credentials, version);
-        // Ensure the bucket exists, fetching it regardless so that we can
-        // attach its default ACLs to the objects we upload.
         bucket = getOrCreateBucket(service, credentials, executor,
             bucketName);
       }
 
       @Override
       public void act()
-          throws HttpResponseException, UploadException, IOException,
-          InterruptedException, ExecutorException {
-        FilePath include = paths.peek();
-        String relativePath = StorageUtil
-            .getRelative(include, uploads.workspace);
-        String uploadedFileName = StorageUtil
-            .getStrippedFilename(relativePath, pathPrefix);
-        String finalName = FilenameUtils.separatorsToUnix(
-            FilenameUtils.concat(objectPrefix, uploadedFileName));
+          throws UploadException, IOException, InterruptedException,
+          ExecutorException {
+        // The archive is not sent again if only its index failed.
+        if (sent < 0) {
+          StorageObject object = new StorageObject()
+              .setName(objectName)
+              .setContentDisposition(HttpHeaders.getContentDisposition(
+                  FilenameUtils.getName(objectName), isShowInline()))
+              .setContentType(isCompressedArchive(archiveName)
+                  ? GZIP_CONTENT_TYPE : TAR_CONTENT_TYPE);
+          long length = archive.getLength();
+          if (length != ResumableUpload.UNKNOWN_LENGTH) {
+            object.setSize(BigInteger.valueOf(length));
+          }
+          if (isSharedPublicly()) {
+            object.setAcl(addPublicReadAccess(
+                getDefaultObjectAcl(bucket, listener)));
+          }
+          annotateObject(object, listener);
 
-        StorageObject object = new StorageObject()
-            .setName(finalName)
-            .setContentDisposition(
-                HttpHeaders.getContentDisposition(
-                    include.getName(), isShowInline()))
-            .setContentType(
-                detectMIMEType(include.getName()))
-            .setSize(BigInteger.valueOf(include.length()));
+          sent = performUploadWithRetry(executor, service, bucket, object,
+              archive, length, totalSize >= getResumableThresholdBytes(),
+              sessions, listener);
+          listener.getLogger().println(module.prefix(
+              Messages.AbstractUpload_Archived(totalSize, sent)));
+        }
 
+        byte[] index = archive.getIndex().getBytes(Charsets.UTF_8);
+        StorageObject indexObject = new StorageObject()
+            .setName(objectName + INDEX_SUFFIX)
+            .setContentType(INDEX_CONTENT_TYPE)
+            .setSize(BigInteger.valueOf(index.length));
         if (isSharedPublicly()) {
-          object.setAcl(addPublicReadAccess(
+          indexObject.setAcl(addPublicReadAccess(
               getDefaultObjectAcl(bucket, listener)));
         }
+        performUploadWithRetry(executor, service, bucket, indexObject,
+            ByteStreams.asByteSource(index), index.length,
+            false /* resumable */, null /* sessions */, listener);
+        done = true;
+      }
 
-        // Give clients an opportunity to decorate the storage
-        // object before we store it.
-        annotateObject(object, listener);
+      @Override
+      public boolean moreWork() {
+        return !done;
+      }
+    };
 
-        // Log that we are uploading the file and begin executing the upload.
-        listener.getLogger().println(module.prefix(
-            Messages.AbstractUpload_Uploading(relativePath)));
+    try {
+      RetryStorageOperation.performRequestsWithReinitCredentials(
+          ImmutableList.of(worker));
+    } catch (ForbiddenException e) {
+      invalidateBucket(credentials, bucketName);
+      throw new UploadException(
+          Messages.AbstractUpload_ForbiddenFileUpload(), e);
+    } catch (ExecutorException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (IOException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (InterruptedException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    }
+  }
 
-        performUploadWithRetry(executor, service, bucket, object, include);
-        paths.remove();
+  /**
+   * Uploads the files of the {@link UploadSpec} into the content-addressed
+   * store at {@code storePath}, followed by the manifest of this upload.
+   *
+   * The files are hashed by {@code parallelism} threads, and the store is
+   * asked which of their hashes it has with batches of requests.  Only the
+   * first of the files that share content is uploaded, and only if the
+   * store does not have it yet.
+   */
+  private void performContentAddressedUploads(final String bucketName,
+      String objectPrefix, String storePath,
+      final GoogleRobotCredentials credentials, UploadSpec uploads,
+      final TaskListener listener, final String version, int parallelism)
+      throws UploadException {
+    final String manifestName = FilenameUtils.separatorsToUnix(
+        FilenameUtils.concat(objectPrefix, MANIFEST_NAME));
+    final Map<FilePath, String> missing = Maps.newLinkedHashMap();
+    final SortedMap<String, String> hashes = new TreeMap<String, String>();
+    try {
+      Map<String, FilePath> files = Maps.newLinkedHashMap();
+      for (FilePath include : uploads.inclusions) {
+        files.put(StorageUtil.getStrippedFilename(
+            StorageUtil.getRelative(include, uploads.workspace), pathPrefix),
+            include);
+      }
+      hashes.putAll(ContentStore.hashFiles(files, parallelism));
+
+      // The first file of each content, by the name of its object.
+      final Map<String, FilePath> contents = Maps.newLinkedHashMap();
+      for (Map.Entry<String, String> entry : hashes.entrySet()) {
+        String name = ContentStore.getObjectName(storePath, entry.getValue());
+        if (!contents.containsKey(name)) {
+          contents.put(name, files.get(entry.getKey()));
+        }
+      }
+
+      final Set<String> existing = Sets.newHashSet();
+      RepeatOperation<UploadException> lookup =
+          new RepeatOperation<UploadException>() {
+        Executor executor = module.newExecutor();
+
+        Storage service;
+        boolean done;
+
+        @Override
+        public void initCredentials() throws IOException {
+          service = module.getStorageService(credentials, version);
+        }
+
+        @Override
+        public void act()
+            throws IOException, InterruptedException, ExecutorException {
+          RetryStorageOperation.performRequestWithRetry(executor,
+              new Operation() {
+                public void act() throws IOException {
+                  existing.addAll(ContentStore.findExisting(service,
+                      bucketName, contents.keySet()));
+                }
+              }, module.getInsertRetryCount());
+          done = true;
+        }
+
+        @Override
+        public boolean moreWork() {
+          return !done;
+        }
+      };
+      RetryStorageOperation.performRequestWithReinitCredentials(lookup);
+      for (Map.Entry<String, FilePath> entry : contents.entrySet()) {
+        if (!existing.contains(entry.getKey())) {
+          missing.put(entry.getValue(), entry.getKey());
+        }
+      }
+      listener.getLogger().println(module.prefix(
+          Messages.AbstractUpload_ContentStored(hashes.size(),
+              contents.size(), contents.size() - missing.size())));
+    } catch (ExecutorException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (IOException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (InterruptedException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    }
+
+    if (!missing.isEmpty()) {
+      uploadFiles(bucketName, missing, credentials, uploads, listener,
+          version, parallelism);
+    }
+
+    // The manifest goes last, so that it only names content that is stored.
+    final byte[] manifest =
+        ContentStore.getManifest(hashes).getBytes(Charsets.UTF_8);
+    RepeatOperation<UploadException> worker =
+        new RepeatOperation<UploadException>() {
+      Executor executor = module.newExecutor();
+
+      Storage service;
+      Bucket bucket;
+      boolean done;
+
+      @Override
+      public void initCredentials() throws UploadException, IOException {
+        service = module.getStorageService(credentials, version);
+        bucket = getOrCreateBucket(service, credentials, executor,
+            bucketName);
+      }
+
+      @Override
+      public void act()
+          throws UploadException, IOException, InterruptedException,
+          ExecutorException {
+        StorageObject object = new StorageObject()
+            .setName(manifestName)
+            .setContentType(MANIFEST_CONTENT_TYPE)
+            .setSize(BigInteger.valueOf(manifest.length));
+        if (isSharedPublicly()) {
+          object.setAcl(addPublicReadAccess(
+              getDefaultObjectAcl(bucket, listener)));
+        }
+        annotateObject(object, listener);
+        performUploadWithRetry(executor, service, bucket, object,
+            ByteStreams.asByteSource(manifest), manifest.length,
+            false /* resumable */, null /* sessions */, listener);
+        done = true;
       }
 
       @Override
       public boolean moreWork() {
-        return !paths.isEmpty();
+        return !done;
       }
     };
 
     try {
-      RetryStorageOperation.performRequestWithReinitCredentials(a);
+      RetryStorageOperation.performRequestsWithReinitCredentials(
+          ImmutableList.of(worker));
     } catch (ForbiddenException e) {
-      // If the user doesn't own a bucket then they will end up here.
+      invalidateBucket(credentials, bucketName);
       throw new UploadException(
           Messages.AbstractUpload_ForbiddenFileUpload(), e);
     } catch (ExecutorException e) {
@@ -503,6 +1303,309 @@ public abstract class AbstractUpload
     }
   }
 
+  private static boolean isCompressedArchive(String archiveName) {
+    String name = archiveName.toLowerCase();
+    return name.endsWith(".tgz") || name.endsWith(".tar.gz");
+  }
+
+  /**
+   * Returns the files of the {@link UploadSpec} that the destination does
+   * not already have.  The destination is listed once, and the checksums of
+   * the files whose size matches their object are computed by
+   * {@code parallelism} threads.
+   */
+  private List<FilePath> removeUnchanged(String bucketName,
+      String objectPrefix, GoogleRobotCredentials credentials,
+      UploadSpec uploads, TaskListener listener, String version,
+      int parallelism) throws UploadException {
+    try {
+      Storage service = module.getStorageService(credentials, version);
+      String listPrefix = objectPrefix.isEmpty() || objectPrefix.endsWith("/")
+          ? objectPrefix : objectPrefix + "/";
+      Map<String, StorageObject> objects = UnchangedFiles.listObjects(
+          module.newExecutor(), service, bucketName, listPrefix);
+
+      Map<String, FilePath> files = Maps.newHashMap();
+      for (FilePath include : uploads.inclusions) {
+        files.put(getObjectName(objectPrefix, uploads, include), include);
+      }
+      Set<String> unchanged =
+          UnchangedFiles.findUnchanged(files, objects, parallelism);
+
+      List<FilePath> changed = Lists.newArrayList();
+      for (FilePath include : uploads.inclusions) {
+        if (!unchanged.contains(
+            getObjectName(objectPrefix, uploads, include))) {
+          changed.add(include);
+        }
+      }
+      listener.getLogger().println(module.prefix(
+          Messages.AbstractUpload_SkippingUnchanged(
+              uploads.inclusions.size() - changed.size(), changed.size())));
+      return changed;
+    } catch (ExecutorException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (IOException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    } catch (InterruptedException e) {
+      throw new UploadException(
+          Messages.AbstractUpload_ExceptionFileUpload(), e);
+    }
+  }
+
+  /**
+   * The name of the object that a file of the {@link UploadSpec} is
+   * uploaded as.
+   */
+  private String getObjectName(String objectPrefix, UploadSpec uploads,
+      FilePath include) throws UploadException {
+    String relativePath = StorageUtil
+        .getRelative(include, uploads.workspace);
+    String uploadedFileName = StorageUtil
+        .getStrippedFilename(relativePath, pathPrefix);
+    return FilenameUtils.separatorsToUnix(
+        FilenameUtils.concat(objectPrefix, uploadedFileName));
+  }
+
+  /**
+   * Uploads a single file of the {@link UploadSpec} to the given bucket, as
+   * the object of the given name.
+   */
+  private void performUpload(Executor executor, Storage service,
+      Bucket bucket, String finalName, UploadSpec uploads,
+      FilePath include, GoogleRobotCredentials credentials, String version,
+      Semaphore threads, Map<String, ResumableSession> sessions,
+      TaskListener listener)
+      throws UploadException, IOException, InterruptedException,
+      ExecutorException {
+    String relativePath = StorageUtil
+        .getRelative(include, uploads.workspace);
+    long length = include.length();
+
+    StorageObject object = new StorageObject()
+        .setName(finalName)
+        .setContentDisposition(
+            HttpHeaders.getContentDisposition(
+                include.getName(), isShowInline()))
+        .setContentType(
+            detectMIMEType(include.getName()))
+        .setSize(BigInteger.valueOf(length));
+
+    if (isSharedPublicly()) {
+      object.setAcl(addPublicReadAccess(
+          getDefaultObjectAcl(bucket, listener)));
+    }
+
+    // Give clients an opportunity to decorate the storage
+    // object before we store it.
+    annotateObject(object, listener);
+
+    // Log that we are uploading the file and begin executing the upload.
+    listener.getLogger().println(module.prefix(
+        Messages.AbstractUpload_Uploading(relativePath)));
+
+    ByteSource content = StorageUtil.asByteSource(include);
+    boolean resumable = length >= getResumableThresholdBytes();
+    int slices = getSliceCount(length);
+    if (shouldCompress(include.getName(), object, length, content)) {
+      // The compressed size is only known once it has been sent.
+      object.setContentEncoding(GZIP_ENCODING).setSize(null);
+      long sent = performUploadWithRetry(executor, service, bucket, object,
+          new GzipByteSource(content), ResumableUpload.UNKNOWN_LENGTH,
+          resumable, sessions, listener);
+      if (sent > 0) {
+        listener.getLogger().println(module.prefix(
+            Messages.AbstractUpload_Compressed(relativePath, length, sent)));
+      }
+    } else if (slices > 1) {
+      performCompositeUpload(executor, service, bucket, object, include,
+          length, slices, credentials, version, threads, listener);
+    } else {
+      performUploadWithRetry(executor, service, bucket, object, content,
+          length, resumable, sessions, listener);
+    }
+  }
+
+  /**
+   * Whether to compress the given file as it is uploaded, which applies to
+   * files of the {@link #getGzipExtensions} or of a textual content type,
+   * that are large enough and whose start compresses well.
+   */
+  private boolean shouldCompress(String filename, StorageObject object,
+      long length, ByteSource content) throws IOException {
+    if (!isGzipContent() || object.getContentEncoding() != null
+        || length < module.getGzipMinimumSize()) {
+      return false;
+    }
+    String extension = Files.getFileExtension(filename).toLowerCase();
+    if (!getGzipExtensionSet().contains(extension)
+        && !isCompressibleType(object.getContentType())) {
+      return false;
+    }
+    return GzipByteSource.isCompressible(content);
+  }
+
+  private static boolean isCompressibleType(@Nullable String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    return contentType.startsWith("text/")
+        || COMPRESSIBLE_TYPES.contains(contentType);
+  }
+
+  private Set<String> getGzipExtensionSet() {
+    String extensions = Strings.isNullOrEmpty(getGzipExtensions())
+        ? DEFAULT_GZIP_EXTENSIONS : getGzipExtensions();
+    return ImmutableSet.copyOf(Splitter.on(',').trimResults()
+        .omitEmptyStrings().split(extensions.toLowerCase()));
+  }
+
+  /**
+   * Uploads a large file as {@code slices} temporary objects, each read from
+   * its own offset of the file by the calling thread and whichever of the
+   * given {@code threads} are free, and then composes them into
+   * {@code object}, which keeps all of its annotations.  The temporary
+   * objects are deleted whether or not this succeeds.
+   */
+  private void performCompositeUpload(Executor executor, Storage service,
+      final Bucket bucket, StorageObject object, FilePath include,
+      final long length, int slices,
+      final GoogleRobotCredentials credentials, final String version,
+      Semaphore threads, final TaskListener listener)
+      throws UploadException, IOException, InterruptedException,
+      ExecutorException {
+    final ByteSource content = StorageUtil.asByteSource(include);
+    final String contentType = object.getContentType();
+    final long sliceLength = (length + slices - 1) / slices;
+    final String partPrefix =
+        object.getName() + PART_INFIX + UUID.randomUUID() + "-";
+
+    final Queue<Integer> pending = new ConcurrentLinkedQueue<Integer>();
+    List<SourceObjects> parts = Lists.newArrayList();
+    for (int i = 0; i < slices; i++) {
+      pending.add(i);
+      parts.add(new SourceObjects().setName(partPrefix + i));
+    }
+
+    listener.getLogger().println(module.prefix(
+        Messages.AbstractUpload_UploadingSlices(object.getName(), slices)));
+
+    // Each worker beyond the first only runs if it gets a thread, and only
+    // then takes slices from the queue.
+    List<RepeatOperation<UploadException>> workers = Lists.newArrayList();
+    for (int i = 0; i < slices; i++) {
+      workers.add(new RepeatOperation<UploadException>() {
+        private Integer slice;
+        private final Map<String, ResumableSession> sessions =
+            Maps.newHashMap();
+        Executor executor = module.newExecutor();
+
+        Storage service;
+
+        @Override
+        public void initCredentials() throws IOException {
+          service = module.getStorageService(credentials, version);
+        }
+
+        @Override
+        public void act()
+            throws IOException, InterruptedException, ExecutorException {
+          long offset = slice * sliceLength;
+          long count = Math.min(sliceLength, length - offset);
+          StorageObject part = new StorageObject()
+              .setName(partPrefix + slice)
+              .setContentType(contentType)
+              .setSize(BigInteger.valueOf(count));
+          performUploadWithRetry(executor, service, bucket, part,
+              content.slice(offset, count), count,
+              count >= getResumableThresholdBytes(), sessions, listener);
+          slice = null;
+        }
+
+        @Override
+        public boolean moreWork() {
+          if (slice == null) {
+            slice = pending.poll();
+          }
+          return slice != null;
+        }
+      });
+    }
+
+    try {
+      RetryStorageOperation.performRequestsWithReinitCredentials(workers,
+          threads);
+      performComposeWithRetry(executor, service, bucket, object, parts);
+    } finally {
+      deleteParts(executor, service, bucket, parts, listener);
+    }
+  }
+
+  /**
+   * Composes the uploaded parts into the final object.
+   */
+  private void performComposeWithRetry(final Executor executor,
+      final Storage service, final Bucket bucket, final StorageObject object,
+      List<SourceObjects> parts)
+      throws IOException, InterruptedException, ExecutorException {
+    final ComposeRequest request = new ComposeRequest()
+        .setDestination(object)
+        .setSourceObjects(parts);
+    Operation a = new Operation() {
+      public void act() throws IOException, ExecutorException {
+        executor.execute(service.objects()
+            .compose(bucket.getName(), object.getName(), request));
+      }
+    };
+
+    RetryStorageOperation
+        .performRequestWithRetry(executor, a, module.getInsertRetryCount());
+  }
+
+  /**
+   * Deletes the temporary parts of a composite upload.  This is best effort,
+   * since a leftover part should not fail an otherwise successful upload.
+   */
+  private void deleteParts(Executor executor, Storage service,
+      Bucket bucket, List<SourceObjects> parts, TaskListener listener)
+      throws InterruptedException {
+    for (SourceObjects part : parts) {
+      try {
+        executor.execute(
+            service.objects().delete(bucket.getName(), part.getName()));
+      } catch (NotFoundException e) {
+        // The part was never uploaded.
+      } catch (ExecutorException e) {
+        listener.error(module.prefix(Messages.AbstractUpload_PartNotDeleted(
+            part.getName(), e.getMessage())));
+      } catch (IOException e) {
+        listener.error(module.prefix(Messages.AbstractUpload_PartNotDeleted(
+            part.getName(), e.getMessage())));
+      }
+    }
+  }
+
+  /**
+   * The number of slices to upload a file of the given size as, or 1 if it
+   * should be uploaded as a single object.
+   */
+  private int getSliceCount(long length) {
+    int slices = getCompositeSlices() > 0
+        ? getCompositeSlices() : module.getCompositeUploadSlices();
+    long minSlice = MEBIBYTE * (getMinSliceSize() > 0
+        ? getMinSliceSize() : module.getMinSliceSize());
+    return (int) Math.max(1,
+        Math.min(Math.min(slices, MAX_COMPOSE_SOURCES), length / minSlice));
+  }
+
+  // The most objects that a single compose request accepts.
+  private static final int MAX_COMPOSE_SOURCES = 32;
+
+  // Separates the final object name from the suffix of its temporary parts.
+  private static final String PART_INFIX = ".part-";
+
   /**
    * Auxiliar method for detecting web-related filename extensions, so
    * setting correctly Content-Type.
@@ -519,10 +1622,88 @@ public abstract class AbstractUpload
   /**
    * We need our own storage retry logic because we must recreate the
    * input stream for the media uploader.
+   *
+   * The CRC32C and MD5 of the content are computed as it is sent, and
+   * compared with those of the object that the service stored, so that
+   * corruption along the way fails the attempt without reading the content
+   * a second time.
+   *
+   * @param length The length of the content, or
+   * {@link ResumableUpload#UNKNOWN_LENGTH}.
+   * @param resumable Whether to upload through a resumable session.
+   * @param sessions The sessions that the calling worker kept across its
+   * last 401, of which the one of the object is resumed, and to which its
+   * session is added if it fails with a 401 too; or null if the caller
+   * starts over.
+   * @return the number of bytes sent.
    */
-  private void performUploadWithRetry(final Executor executor,
-      final Storage service, final Bucket bucket, final StorageObject object,
-      final FilePath include)
+  private long performUploadWithRetry(Executor executor, Storage service,
+      Bucket bucket, StorageObject object, ByteSource content, long length,
+      boolean resumable, @Nullable Map<String, ResumableSession> sessions,
+      TaskListener listener)
+      throws ExecutorException, IOException, InterruptedException {
+    return performUploadWithRetry(module, executor, service,
+        bucket.getName(), object, content, length,
+        resumable ? getChunkSizeBytes() : 0, sessions, listener);
+  }
+
+  /**
+   * Uploads the content as {@link #performUploadWithRetry} does, for the
+   * other steps that upload with the given module.
+   *
+   * @param chunkSize The size of the chunks of a resumable session, or 0 to
+   * send the content with a single request.
+   */
+  static long performUploadWithRetry(UploadModule module, Executor executor,
+      Storage service, String bucket, StorageObject object,
+      ByteSource content, long length, int chunkSize,
+      @Nullable Map<String, ResumableSession> sessions,
+      TaskListener listener)
+      throws ExecutorException, IOException, InterruptedException {
+    final HashingByteSource hashing;
+    boolean resumable = chunkSize > 0;
+    if (resumable) {
+      ResumableSession session =
+          sessions == null ? null : sessions.remove(object.getName());
+      if (session == null) {
+        HashingByteSource sessionContent =
+            new HashingByteSource(content, length);
+        session = new ResumableSession(sessionContent,
+            new ResumableUpload(bucket, object, sessionContent, length,
+                chunkSize));
+      }
+      hashing = session.content;
+      try {
+        performResumableUploadWithRetry(module, executor, service, object,
+            session, listener);
+      } catch (HttpResponseException e) {
+        if (sessions != null
+            && e.getStatusCode() == STATUS_CODE_UNAUTHORIZED) {
+          // The caller retries once its credentials are initialized again.
+          sessions.put(object.getName(), session);
+        }
+        throw e;
+      }
+    } else {
+      hashing = new HashingByteSource(content, length);
+      performDirectUploadWithRetry(module, executor, service, bucket, object,
+          hashing);
+    }
+
+    if (hashing.isComplete()) {
+      logger.fine(String.format("Hashed %d bytes of %s in %d ms",
+          hashing.getHashedLength(), object.getName(),
+          hashing.getHashNanos() / 1000000));
+    }
+    return hashing.getHashedLength();
+  }
+
+  /**
+   * Uploads small files with a single request.
+   */
+  private static void performDirectUploadWithRetry(UploadModule module,
+      final Executor executor, final Storage service, final String bucket,
+      final StorageObject object, final HashingByteSource content)
       throws ExecutorException, IOException, InterruptedException {
     Operation a = new Operation() {
       public void act()
@@ -530,9 +1711,9 @@ public abstract class AbstractUpload
         // Create the insertion operation with the decorated object and
         // an input stream of the file contents.
         Storage.Objects.Insert insertion =
-            service.objects().insert(bucket.getName(), object,
+            service.objects().insert(bucket, object,
                 new InputStreamContent(
-                    object.getContentType(), include.read()));
+                    object.getContentType(), content.openStream()));
 
         // Make the operation non-resumable because we have seen a dramatic
         // (e.g. 1000x) speedup from this.
@@ -541,7 +1722,31 @@ public abstract class AbstractUpload
           mediaUploader.setDirectUploadEnabled(true);
         }
 
-        executor.execute(insertion);
+        content.verify(executor.execute(insertion));
+      }
+    };
+
+    RetryStorageOperation
+        .performRequestWithRetry(executor, a, module.getInsertRetryCount());
+  }
+
+  /**
+   * Large files go through a resumable upload session instead, so that a
+   * retry after a transient failure continues from the last byte the service
+   * committed rather than sending the whole file again.
+   */
+  private static void performResumableUploadWithRetry(
+      final UploadModule module, Executor executor, final Storage service,
+      final StorageObject object, final ResumableSession session,
+      final TaskListener listener)
+      throws ExecutorException, IOException, InterruptedException {
+    Operation a = new Operation() {
+      public void act() throws IOException {
+        if (session.upload.isStarted()) {
+          listener.getLogger().println(module.prefix(
+              Messages.AbstractUpload_ResumingUpload(object.getName())));
+        }
+        session.content.verify(session.upload.upload(service));
       }
     };
 
@@ -549,6 +1754,43 @@ public abstract class AbstractUpload
         .performRequestWithRetry(executor, a, module.getInsertRetryCount());
   }
 
+  private long getResumableThresholdBytes() {
+    return MEBIBYTE * (getResumableThreshold() > 0
+        ? getResumableThreshold() : module.getResumableUploadThreshold());
+  }
+
+  private int getChunkSizeBytes() {
+    return (int) MEBIBYTE * (getChunkSize() > 0
+        ? getChunkSize() : module.getUploadChunkSize());
+  }
+
+  private static final long MEBIBYTE = 1024 * 1024;
+
+  private static final String GZIP_ENCODING = "gzip";
+
+  // The suffix of the name of the index object of an archive.
+  private static final String INDEX_SUFFIX = ".index";
+
+  // The name of the manifest of a content-addressed upload, which lists
+  // its files as sha256sum does.
+  private static final String MANIFEST_NAME = "manifest.sha256";
+  private static final String MANIFEST_CONTENT_TYPE = "text/plain";
+
+  private static final String TAR_CONTENT_TYPE = "application/x-tar";
+  private static final String GZIP_CONTENT_TYPE = "application/gzip";
+  private static final String INDEX_CONTENT_TYPE =
+      "text/tab-separated-values";
+
+  // The extensions of the files that gzipContent compresses, unless the
+  // upload lists its own.
+  private static final String DEFAULT_GZIP_EXTENSIONS =
+      "css,csv,htm,html,js,json,log,md,svg,txt,xml";
+
+  // Besides text/*, the content types that gzipContent compresses.
+  private static final ImmutableSet<String> COMPRESSIBLE_TYPES =
+      ImmutableSet.of("application/javascript", "application/json",
+          "application/xml", "image/svg+xml");
+
   // Fetch the default object ACL for this bucket. Return an empty list if
   // we cannot.
   private static List<ObjectAccessControl> getDefaultObjectAcl(Bucket bucket,
@@ -588,7 +1830,10 @@ public abstract class AbstractUpload
 
   /**
    * Fetches or creates an instance of the bucket with the given name with the
-   * specified storage service.
+   * specified storage service.  The bucket is kept in the
+   * {@link BucketCache} of this JVM for the time to live of the
+   * {@link UploadModule}, so that it is only fetched again once that has
+   * passed, and then only in full if it was changed.
    *
    * @param credentials The credentials with which to fetch/create the bucket
    * @param bucketName The top-level bucket name to ensure exists
@@ -598,33 +1843,22 @@ public abstract class AbstractUpload
   protected Bucket getOrCreateBucket(Storage service,
       GoogleRobotCredentials credentials, Executor executor, String bucketName)
       throws UploadException {
+    long ttl = module.getBucketCacheTtl();
+    BucketCache cache = BucketCache.getInstance();
     try {
-      try {
-        return executor.execute(service.buckets()
-            .get(bucketName)
-            .setProjection("full")); // to retrieve the bucket ACLs
-      } catch (NotFoundException e) {
-        try {
-          // This is roughly the opposite of how the command-line sample does
-          // things.  We do things this way to optimize for the case where the
-          // bucket already exists.
-          Bucket bucket = new Bucket().setName(bucketName);
-          bucket = executor.execute(service.buckets()
-              .insert(credentials.getProjectId(), bucket)
-              .setProjection("full")); // to retrieve the bucket ACLs
-
+      if (ttl > 0) {
+        Bucket bucket = cache.get(executor, service, credentials.getId(),
+            bucketName, ttl);
+        if (bucket != null) {
           return bucket;
-        } catch (ConflictException ex) {
-          // If we get back a "Conflict" response, it means that the bucket
-          // was inserted between when we first tried to get it and were able
-          // to successfully insert one.
-          // NOTE: This could be due to an initial insertion attempt succeeding
-          // but returning an exception, or a race with another service.
-          return executor.execute(service.buckets()
-              .get(bucketName)
-              .setProjection("full")); // to retrieve the bucket ACLs
         }
       }
+      Bucket bucket = fetchOrCreateBucket(service, credentials, executor,
+          bucketName);
+      if (ttl > 0) {
+        cache.put(credentials.getId(), bucket);
+      }
+      return bucket;
     } catch (ExecutorException e) {
       throw new UploadException(
           Messages.AbstractUpload_ExceptionGetBucket(bucketName), e);
@@ -633,4 +1867,43 @@ public abstract class AbstractUpload
           Messages.AbstractUpload_ExceptionGetBucket(bucketName), e);
     }
   }
+
+  private Bucket fetchOrCreateBucket(Storage service,
+      GoogleRobotCredentials credentials, Executor executor, String bucketName)
+      throws IOException, ExecutorException {
+    try {
+      return executor.execute(service.buckets()
+          .get(bucketName)
+          .setProjection("full")); // to retrieve the bucket ACLs
+    } catch (NotFoundException e) {
+      try {
+        // This is roughly the opposite of how the command-line sample does
+        // things.  We do things this way to optimize for the case where the
+        // bucket already exists.
+        Bucket bucket = new Bucket().setName(bucketName);
+        bucket = executor.execute(service.buckets()
+            .insert(credentials.getProjectId(), bucket)
+            .setProjection("full")); // to retrieve the bucket ACLs
+
+        return bucket;
+      } catch (ConflictException ex) {
+        // If we get back a "Conflict" response, it means that the bucket
+        // was inserted between when we first tried to get it and were able
+        // to successfully insert one.
+        // NOTE: This could be due to an initial insertion attempt succeeding
+        // but returning an exception, or a race with another service.
+        return executor.execute(service.buckets()
+            .get(bucketName)
+            .setProjection("full")); // to retrieve the bucket ACLs
+      }
+    }
+  }
+
+  /**
+   * Forgets the cached bucket, since requests to it were rejected.
+   */
+  private void invalidateBucket(GoogleRobotCredentials credentials,
+      String bucketName) {
+    BucketCache.getInstance().invalidate(credentials.getId(), bucketName);
+  }
 }
@@ -0,0 +1,736 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.jenkinsci.Symbol;
+import org.jenkinsci.remoting.RoleChecker;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.googleapis.media.MediaHttpDownloader;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.jenkins.plugins.credentials.domains.RequiresDomain;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+import com.google.jenkins.plugins.storage.util.ArchiveByteSource;
+import com.google.jenkins.plugins.storage.util.BucketPath;
+import com.google.jenkins.plugins.storage.util.GzipByteSource;
+import com.google.jenkins.plugins.storage.util.ResumableUpload;
+import com.google.jenkins.plugins.storage.util.RetryStorageOperation;
+import com.google.jenkins.plugins.storage.util.RetryStorageOperation.Operation;
+import com.google.jenkins.plugins.storage.util.RetryStorageOperation.RepeatOperation;
+import com.google.jenkins.plugins.storage.util.StorageClientPool;
+import com.google.jenkins.plugins.storage.util.StorageUtil;
+import com.google.jenkins.plugins.storage.util.TarExtractor;
+import com.google.jenkins.plugins.util.Executor;
+import com.google.jenkins.plugins.util.ExecutorException;
+import com.google.jenkins.plugins.util.NotFoundException;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.Channel;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import jenkins.tasks.SimpleBuildStep;
+
+/**
+ * A step that restores directories of the workspace from a cache in Google
+ * Cloud Storage, or saves them to it, e.g. the dependencies that Maven,
+ * Gradle or npm download, so that builds need not fetch them again.
+ *
+ * Each cache is a compressed tar archive, named after a key that usually
+ * includes a hash of the files that decide what the directories hold, such
+ * as {@code pom.xml}.  Restoring falls back to the most recent cache whose
+ * key starts with one of the restore keys, in order, when no cache has the
+ * exact key.  Saving is skipped when a cache with the exact key exists.
+ *
+ * Archives are written and read as they are transferred, on the machine
+ * that holds the workspace, without a temporary archive on either side.
+ */
+@RequiresDomain(value = StorageScopeRequirement.class)
+public class CacheStep extends Builder implements SimpleBuildStep,
+    Serializable {
+
+  /**
+   * Construct the cache step.
+   */
+  @DataBoundConstructor
+  public CacheStep(String credentialsId, String bucketUri, String paths,
+      String key) {
+    this(credentialsId, bucketUri, paths, key, null);
+  }
+
+  public CacheStep(String credentialsId, String bucketUri, String paths,
+      String key, @Nullable UploadModule module) {
+    if (module != null) {
+      this.module = module;
+    } else {
+      this.module = getDescriptor().getModule();
+    }
+
+    this.credentialsId = credentialsId;
+    this.bucketUri = bucketUri;
+    this.paths = paths;
+    this.key = key;
+  }
+
+  /**
+   * The bucket and path prefix under which the caches are kept, which
+   * potentially contains unresolved symbols, such as $JOB_NAME.
+   */
+  public String getBucketUri() {
+    return bucketUri;
+  }
+
+  private final String bucketUri;
+
+  /**
+   * The comma-separated directories of the workspace to cache.
+   */
+  public String getPaths() {
+    return paths;
+  }
+
+  private final String paths;
+
+  /**
+   * The key of the cache, to which a hash of the {@link #getKeyFiles} is
+   * appended.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  private final String key;
+
+  /**
+   * An Ant-style pattern of the files whose content the key includes a
+   * hash of, e.g. {@code **}{@code /pom.xml}, or null for none.
+   */
+  @DataBoundSetter
+  public void setKeyFiles(@Nullable String keyFiles) {
+    this.keyFiles = Strings.emptyToNull(keyFiles);
+  }
+
+  @Nullable
+  public String getKeyFiles() {
+    return keyFiles;
+  }
+
+  private String keyFiles;
+
+  /**
+   * The prefixes of the keys to restore from, one per line and in order of
+   * preference, when no cache has the exact key.
+   */
+  @DataBoundSetter
+  public void setRestoreKeys(@Nullable String restoreKeys) {
+    this.restoreKeys = Strings.emptyToNull(restoreKeys);
+  }
+
+  @Nullable
+  public String getRestoreKeys() {
+    return restoreKeys;
+  }
+
+  private String restoreKeys;
+
+  /**
+   * Whether to save the directories to the cache, rather than restore them
+   * from it.
+   */
+  @DataBoundSetter
+  public void setSave(boolean save) {
+    this.save = save;
+  }
+
+  public boolean isSave() {
+    return save;
+  }
+
+  private boolean save;
+
+  /**
+   * The module to use for providing dependencies.
+   */
+  protected final UploadModule module;
+
+  /**
+   * The unique ID for the credentials we are using to
+   * authenticate with GCS.
+   */
+  public String getCredentialsId() {
+    return credentialsId;
+  }
+
+  private final String credentialsId;
+
+  /**
+   * The credentials we are using to authenticate with GCS.
+   */
+  public GoogleRobotCredentials getCredentials() {
+    return GoogleRobotCredentials.getById(getCredentialsId());
+  }
+
+  @Override
+  public BuildStepMonitor getRequiredMonitorService() {
+    return BuildStepMonitor.NONE;
+  }
+
+  @Override
+  public void perform(@Nonnull Run<?, ?> run, @Nonnull FilePath workspace,
+      @Nonnull Launcher launcher, @Nonnull final TaskListener listener)
+      throws IOException, InterruptedException {
+    final String version = module.getVersion();
+    BucketPath bucketPath = new BucketPath(
+        StorageUtil.replaceMacro(getBucketUri(), run, listener));
+    if (bucketPath.error()) {
+      throw new IOException("Invalid bucket path: " + getBucketUri());
+    }
+    final String bucket = bucketPath.getBucket();
+    String prefix = bucketPath.getObject();
+    if (!prefix.isEmpty() && !prefix.endsWith("/")) {
+      prefix += "/";
+    }
+    final String objectPrefix = prefix;
+
+    final List<String> dirs = split(
+        StorageUtil.replaceMacro(getPaths(), run, listener));
+    final String resolvedKey =
+        StorageUtil.replaceMacro(getKey(), run, listener);
+    final String resolvedKeyFiles = getKeyFiles() == null
+        ? null : StorageUtil.replaceMacro(getKeyFiles(), run, listener);
+    final List<String> resolvedRestoreKeys = getRestoreKeys() == null
+        ? ImmutableList.<String>of()
+        : split(StorageUtil.replaceMacro(getRestoreKeys(), run, listener));
+
+    try {
+      // Use remotable credential to access the storage service from the
+      // remote machine.
+      final GoogleRobotCredentials remoteCredentials =
+          checkNotNull(getCredentials()).forRemote(module.getRequirement());
+      // We run on the machine that holds the workspace.
+      final String workspacePath = workspace.getRemote();
+
+      workspace.act(
+          new Callable<Void, IOException>() {
+            @Override
+            public Void call() throws IOException {
+              StorageClientPool.getInstance().releaseOnClose(
+                  Channel.current());
+              File dir = new File(workspacePath);
+              String fullKey = computeKey(dir, resolvedKey, resolvedKeyFiles);
+              listener.getLogger().println(
+                  module.prefix(Messages.Cache_Key(fullKey)));
+              if (isSave()) {
+                performSave(remoteCredentials, version, bucket, objectPrefix,
+                    fullKey, dir, dirs, listener);
+              } else {
+                performRestore(remoteCredentials, version, bucket,
+                    objectPrefix, fullKey, resolvedRestoreKeys, dir,
+                    listener);
+              }
+              return (Void) null;
+            }
+
+            @Override
+            public void checkRoles(RoleChecker checker)
+                throws SecurityException {
+              // We know by definition that this is the correct role;
+              // the callable exists only in this method context.
+            }
+          });
+    } catch (GeneralSecurityException e) {
+      throw new IOException(
+          Messages.AbstractUpload_RemoteCredentialError(), e);
+    }
+  }
+
+  /**
+   * Appends to the key a hash of the relative names and the content of the
+   * files that match the pattern, if any.
+   */
+  private static String computeKey(File workspace, String key,
+      @Nullable String keyFiles) throws IOException {
+    if (keyFiles == null) {
+      return key;
+    }
+    FilePath root = new FilePath(workspace);
+    FilePath[] files;
+    try {
+      files = root.list(keyFiles);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    List<String> names = Lists.newArrayList();
+    for (FilePath file : files) {
+      names.add(file.getRemote().substring(root.getRemote().length() + 1)
+          .replace(File.separatorChar, '/'));
+    }
+    // The key must not depend on the order the files were found in.
+    String[] sorted = names.toArray(new String[names.size()]);
+    Arrays.sort(sorted);
+
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (String name : sorted) {
+      hasher.putString(name, Charsets.UTF_8).putByte((byte) 0);
+      hasher.putBytes(Files.asByteSource(new File(workspace, name))
+          .hash(Hashing.sha256()).asBytes());
+    }
+    return key + "-" + hasher.hash();
+  }
+
+  /**
+   * Archives the directories into the cache of the given key, unless it
+   * already exists.
+   */
+  private void performSave(final GoogleRobotCredentials credentials,
+      final String version, final String bucket, String objectPrefix,
+      String fullKey, File workspace, List<String> dirs,
+      final TaskListener listener) throws IOException {
+    final String objectName = objectPrefix + fullKey + ARCHIVE_SUFFIX;
+
+    List<ArchiveByteSource.Member> members = Lists.newArrayList();
+    long size = 0;
+    for (String dir : dirs) {
+      size += addMembers(new File(workspace, dir), dir, members, listener);
+    }
+    final long totalSize = size;
+    final int count = members.size();
+    final ArchiveByteSource archive =
+        new ArchiveByteSource(members, false /* compressed */);
+
+    RepeatOperation<IOException> worker = new RepeatOperation<IOException>() {
+      private final Map<String, AbstractUpload.ResumableSession> sessions =
+          Maps.newHashMap();
+      Executor executor = module.newExecutor();
+
+      Storage service;
+      boolean done;
+
+      public void initCredentials() throws IOException {
+        service = module.getStorageService(credentials, version);
+      }
+
+      public boolean moreWork() {
+        return !done;
+      }
+
+      public void act()
+          throws IOException, InterruptedException, ExecutorException {
+        if (exists(executor, service, bucket, objectName)) {
+          listener.getLogger().println(module.prefix(
+              Messages.Cache_Exists(objectName)));
+        } else if (count == 0) {
+          listener.getLogger().println(module.prefix(
+              Messages.Cache_NothingToSave(objectName)));
+        } else {
+          listener.getLogger().println(module.prefix(
+              Messages.Cache_Saving(count, objectName)));
+          // Uploaded as uploads are, through a resumable session once the
+          // archive is large enough.
+          StorageObject object = new StorageObject()
+              .setName(objectName)
+              .setContentType(GZIP_CONTENT_TYPE);
+          int chunkSize =
+              totalSize >= MEBIBYTE * module.getResumableUploadThreshold()
+              ? (int) MEBIBYTE * module.getUploadChunkSize() : 0;
+          long sent = AbstractUpload.performUploadWithRetry(module, executor,
+              service, bucket, object, new GzipByteSource(archive),
+              ResumableUpload.UNKNOWN_LENGTH, chunkSize, sessions, listener);
+          listener.getLogger().println(module.prefix(
+              Messages.AbstractUpload_Archived(totalSize, sent)));
+        }
+        done = true;
+      }
+    };
+
+    try {
+      RetryStorageOperation.performRequestWithReinitCredentials(worker);
+    } catch (ExecutorException e) {
+      throw new IOException(Messages.Cache_SaveException(), e);
+    } catch (InterruptedException e) {
+      throw new IOException(Messages.Cache_SaveException(), e);
+    }
+  }
+
+  /**
+   * Adds the files under the given directory to the archive, in a stable
+   * order, naming them by their path in the workspace.  Symbolic links are
+   * neither followed nor saved, since restoring could not recreate them,
+   * but each one is logged.
+   *
+   * @return the number of bytes in the files.
+   */
+  private long addMembers(File dir, String name,
+      List<ArchiveByteSource.Member> members, TaskListener listener) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return 0;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+    long size = 0;
+    for (File file : files) {
+      String child = name + "/" + file.getName();
+      if (java.nio.file.Files.isSymbolicLink(file.toPath())) {
+        listener.getLogger().println(module.prefix(
+            Messages.Cache_SkippedLink(child)));
+        continue;
+      }
+      if (file.isDirectory()) {
+        size += addMembers(file, child, members, listener);
+      } else if (file.isFile()) {
+        members.add(new ArchiveByteSource.Member(child,
+            Files.asByteSource(file), file.length(), file.lastModified(),
+            file.canExecute()));
+        size += file.length();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Extracts the cache of the given key into the workspace, or else the
+   * most recent cache whose key starts with the first of the restore keys
+   * that any cache's does.  Finding no cache is not an error.
+   */
+  private void performRestore(final GoogleRobotCredentials credentials,
+      final String version, final String bucket, final String objectPrefix,
+      final String fullKey, final List<String> fallbackKeys,
+      final File workspace, final TaskListener listener)
+      throws IOException {
+    RepeatOperation<IOException> worker = new RepeatOperation<IOException>() {
+      Executor executor = module.newExecutor();
+
+      Storage service;
+      boolean done;
+
+      public void initCredentials() throws IOException {
+        service = module.getStorageService(credentials, version);
+      }
+
+      public boolean moreWork() {
+        return !done;
+      }
+
+      public void act()
+          throws IOException, InterruptedException, ExecutorException {
+        StorageObject cache = findCache(executor, service, bucket,
+            objectPrefix, fullKey, fallbackKeys);
+        if (cache == null) {
+          listener.getLogger().println(module.prefix(
+              Messages.Cache_Missed(objectPrefix + fullKey)));
+        } else {
+          listener.getLogger().println(module.prefix(
+              Messages.Cache_Restoring(cache.getName())));
+          int count = extract(executor, service, bucket, cache, workspace);
+          listener.getLogger().println(module.prefix(
+              Messages.Cache_Restored(count)));
+        }
+        done = true;
+      }
+    };
+
+    try {
+      RetryStorageOperation.performRequestWithReinitCredentials(worker);
+    } catch (ExecutorException e) {
+      throw new IOException(Messages.Cache_RestoreException(), e);
+    } catch (InterruptedException e) {
+      throw new IOException(Messages.Cache_RestoreException(), e);
+    }
+  }
+
+  /**
+   * Returns the cache with the exact key, or else the most recent one with
+   * the first restore key that matches any, or null if there is none.
+   */
+  @Nullable
+  private static StorageObject findCache(Executor executor, Storage service,
+      String bucket, String objectPrefix, String fullKey,
+      List<String> fallbackKeys) throws IOException, ExecutorException {
+    try {
+      return executor.execute(service.objects()
+          .get(bucket, objectPrefix + fullKey + ARCHIVE_SUFFIX)
+          .setFields(CACHE_FIELDS));
+    } catch (NotFoundException e) {
+      // Fall back on the restore keys.
+    }
+    for (String fallbackKey : fallbackKeys) {
+      StorageObject newest = null;
+      String pageToken = null;
+      do {
+        Storage.Objects.List list = service.objects().list(bucket)
+            .setPrefix(objectPrefix + fallbackKey)
+            .setFields(LIST_FIELDS)
+            .setPageToken(pageToken);
+        Objects objects;
+        try {
+          objects = executor.execute(list);
+        } catch (NotFoundException e) {
+          // The bucket does not exist yet, so it holds no caches.
+          return null;
+        }
+        if (objects.getItems() != null) {
+          for (StorageObject object : objects.getItems()) {
+            if (object.getName().endsWith(ARCHIVE_SUFFIX)
+                && (newest == null || object.getUpdated().getValue()
+                    > newest.getUpdated().getValue())) {
+              newest = object;
+            }
+          }
+        }
+        pageToken = Strings.emptyToNull(objects.getNextPageToken());
+      } while (pageToken != null);
+      if (newest != null) {
+        return newest;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Downloads the cache and extracts it as it arrives, starting over if
+   * the download fails.  Each attempt extracts into a directory of its own
+   * within the workspace, which is moved into place only once the whole
+   * archive was read, so that a retry never extracts over files that a
+   * failed attempt left half-written.
+   *
+   * @return the number of files extracted.
+   */
+  private int extract(Executor executor, final Storage service,
+      final String bucket, final StorageObject cache, final File workspace)
+      throws IOException, InterruptedException, ExecutorException {
+    final int[] count = new int[1];
+    Operation a = new Operation() {
+      public void act() throws IOException {
+        Storage.Objects.Get getObject = service.objects()
+            .get(bucket, cache.getName())
+            // Every attempt must read the same archive.
+            .setGeneration(cache.getGeneration());
+        MediaHttpDownloader downloader = getObject.getMediaHttpDownloader();
+        if (downloader != null) {
+          downloader.setDirectDownloadEnabled(true);
+        }
+        File staging = java.nio.file.Files.createTempDirectory(
+            workspace.toPath(), STAGING_PREFIX).toFile();
+        try {
+          InputStream is = module.executeMediaAsInputStream(getObject);
+          try {
+            count[0] = TarExtractor.extract(new GZIPInputStream(
+                new BufferedInputStream(is, BUFFER_SIZE), BUFFER_SIZE),
+                staging);
+          } finally {
+            is.close();
+          }
+          moveInto(staging, workspace);
+        } finally {
+          Util.deleteRecursive(staging);
+        }
+      }
+    };
+    RetryStorageOperation
+        .performRequestWithRetry(executor, a, module.getInsertRetryCount());
+    return count[0];
+  }
+
+  /**
+   * Moves the files under one directory to the same paths under another,
+   * replacing the files there but keeping the others.
+   */
+  private static void moveInto(File from, File to) throws IOException {
+    File[] files = from.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      File target = new File(to, file.getName());
+      if (file.isDirectory() && target.isDirectory()
+          && !java.nio.file.Files.isSymbolicLink(target.toPath())) {
+        moveInto(file, target);
+      } else {
+        if (target.exists()
+            || java.nio.file.Files.isSymbolicLink(target.toPath())) {
+          Util.deleteRecursive(target);
+        }
+        if (!file.renameTo(target)) {
+          throw new IOException(Messages.Cache_MoveFailed(target));
+        }
+      }
+    }
+  }
+
+  /**
+   * Whether the object exists.
+   */
+  private static boolean exists(Executor executor, Storage service,
+      String bucket, String objectName)
+      throws IOException, ExecutorException {
+    try {
+      executor.execute(service.objects().get(bucket, objectName)
+          .setFields(CACHE_FIELDS));
+      return true;
+    } catch (NotFoundException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Splits a list of values separated by commas or lines.
+   */
+  private static List<String> split(String values) {
+    return ImmutableList.copyOf(Splitter.on(SEPARATORS)
+        .trimResults().omitEmptyStrings().split(values));
+  }
+
+  private static final String SEPARATORS_REGEX = "[,\n]";
+
+  private static final Pattern SEPARATORS = Pattern.compile(SEPARATORS_REGEX);
+
+  private static final long MEBIBYTE = 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final String ARCHIVE_SUFFIX = ".tar.gz";
+
+  // The prefix of the directory within the workspace that a cache is
+  // extracted into before it is moved into place.
+  private static final String STAGING_PREFIX = ".cache-restore-";
+
+  private static final String GZIP_CONTENT_TYPE = "application/gzip";
+
+  /**
+   * The fields of a cache object that finding one uses.
+   */
+  private static final String CACHE_FIELDS = "name,generation,updated";
+
+  private static final String LIST_FIELDS =
+      "items(" + CACHE_FIELDS + "),nextPageToken";
+
+  /**
+   * Boilerplate, see:
+   * https://wiki.jenkins-ci.org/display/JENKINS/Defining+a+new+extension+point
+   */
+  public DescriptorImpl getDescriptor() {
+    return (DescriptorImpl) checkNotNull(Hudson.getInstance())
+        .getDescriptor(getClass());
+  }
+
+  /**
+   * Descriptor for the CacheStep
+   */
+  @Extension
+  @Symbol("googleStorageCache")
+  public static class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+    private final UploadModule module;
+
+    public UploadModule getModule() {
+      return module;
+    }
+
+    public DescriptorImpl() {
+      this.module = new UploadModule();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDisplayName() {
+      return Messages.Cache_BuildStepDisplayName();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+      return true;
+    }
+
+    /**
+     * This callback validates the {@code bucketUri} input field's values.
+     */
+    public FormValidation doCheckBucketUri(
+        @QueryParameter final String bucketUri)
+        throws IOException {
+      return ClassicUpload.DescriptorImpl.staticDoCheckBucket(bucketUri);
+    }
+
+    /**
+     * This callback validates the {@code paths} input field's values.
+     */
+    public FormValidation doCheckPaths(@QueryParameter final String paths) {
+      if (Strings.isNullOrEmpty(paths)) {
+        return FormValidation.error(Messages.Cache_EmptyPaths());
+      }
+      return FormValidation.ok();
+    }
+
+    /**
+     * This callback validates the {@code key} input field's values.
+     */
+    public FormValidation doCheckKey(@QueryParameter final String key) {
+      if (Strings.isNullOrEmpty(key)) {
+        return FormValidation.error(Messages.Cache_EmptyKey());
+      }
+      return FormValidation.ok();
+    }
+  }
+}
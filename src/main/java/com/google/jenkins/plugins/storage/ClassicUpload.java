@@ -21,6 +21,7 @@ import java.util.Arrays;
 import javax.annotation.Nullable;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import com.google.common.base.Objects;
@@ -29,6 +30,7 @@ import com.google.jenkins.plugins.util.Resolve;
 
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.util.FormValidation;
@@ -137,6 +139,27 @@ public class ClassicUpload extends AbstractUpload {
    */
   private final String sourceGlobWithVars;
 
+  /**
+   * The name of the archive to upload the matching files into, which
+   * potentially contains unresolved symbols, such as $BUILD_NUMBER.  When
+   * this is empty, each file is uploaded as its own object.
+   */
+  @DataBoundSetter
+  public void setArchiveName(@Nullable String archiveName) {
+    this.archiveName = Util.fixEmptyAndTrim(archiveName);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  @Nullable
+  public String getArchiveName() {
+    return archiveName;
+  }
+
+  private String archiveName;
+
 
   /**
    * Denotes this is an {@link AbstractUpload} plugin
@@ -124,6 +124,192 @@ public class ClassicUploadStep extends Builder implements SimpleBuildStep,
     return upload.getPathPrefix();
   }
 
+  /**
+   * The number of files to upload concurrently.
+   *
+   * @see AbstractUpload#setParallelism
+   */
+  @DataBoundSetter
+  public void setParallelism(int parallelism) {
+    upload.setParallelism(parallelism);
+  }
+
+  public int getParallelism() {
+    return upload.getParallelism();
+  }
+
+  /**
+   * The size, in MiB, from which files are uploaded through a resumable
+   * session.
+   *
+   * @see AbstractUpload#setResumableThreshold
+   */
+  @DataBoundSetter
+  public void setResumableThreshold(int resumableThreshold) {
+    upload.setResumableThreshold(resumableThreshold);
+  }
+
+  public int getResumableThreshold() {
+    return upload.getResumableThreshold();
+  }
+
+  /**
+   * The size, in MiB, of each request of a resumable upload.
+   *
+   * @see AbstractUpload#setChunkSize
+   */
+  @DataBoundSetter
+  public void setChunkSize(int chunkSize) {
+    upload.setChunkSize(chunkSize);
+  }
+
+  public int getChunkSize() {
+    return upload.getChunkSize();
+  }
+
+  /**
+   * The number of slices that large files are uploaded as.
+   *
+   * @see AbstractUpload#setCompositeSlices
+   */
+  @DataBoundSetter
+  public void setCompositeSlices(int compositeSlices) {
+    upload.setCompositeSlices(compositeSlices);
+  }
+
+  public int getCompositeSlices() {
+    return upload.getCompositeSlices();
+  }
+
+  /**
+   * The minimum size, in MiB, of each slice of a composite upload.
+   *
+   * @see AbstractUpload#setMinSliceSize
+   */
+  @DataBoundSetter
+  public void setMinSliceSize(int minSliceSize) {
+    upload.setMinSliceSize(minSliceSize);
+  }
+
+  public int getMinSliceSize() {
+    return upload.getMinSliceSize();
+  }
+
+  /**
+   * Whether to leave out the files that the destination already has.
+   *
+   * @see AbstractUpload#setSkipUnchanged
+   */
+  @DataBoundSetter
+  public void setSkipUnchanged(boolean skipUnchanged) {
+    upload.setSkipUnchanged(skipUnchanged);
+  }
+
+  public boolean isSkipUnchanged() {
+    return upload.isSkipUnchanged();
+  }
+
+  /**
+   * Whether to compress textual files with gzip as they are uploaded.
+   *
+   * @see AbstractUpload#setGzipContent
+   */
+  @DataBoundSetter
+  public void setGzipContent(boolean gzipContent) {
+    upload.setGzipContent(gzipContent);
+  }
+
+  public boolean isGzipContent() {
+    return upload.isGzipContent();
+  }
+
+  /**
+   * The extensions of the files to compress.
+   *
+   * @see AbstractUpload#setGzipExtensions
+   */
+  @DataBoundSetter
+  public void setGzipExtensions(@Nullable String gzipExtensions) {
+    upload.setGzipExtensions(gzipExtensions);
+  }
+
+  @Nullable
+  public String getGzipExtensions() {
+    return upload.getGzipExtensions();
+  }
+
+  /**
+   * The path of the content-addressed store to upload the files into.
+   *
+   * @see AbstractUpload#setContentStore
+   */
+  @DataBoundSetter
+  public void setContentStore(@Nullable String contentStore) {
+    upload.setContentStore(contentStore);
+  }
+
+  @Nullable
+  public String getContentStore() {
+    return upload.getContentStore();
+  }
+
+  /**
+   * Whether to delete the objects that the files are no longer uploaded as.
+   *
+   * @see AbstractUpload#setMirror
+   */
+  @DataBoundSetter
+  public void setMirror(boolean mirror) {
+    upload.setMirror(mirror);
+  }
+
+  public boolean isMirror() {
+    return upload.isMirror();
+  }
+
+  /**
+   * Whether a mirror may delete the other objects of a whole bucket.
+   *
+   * @see AbstractUpload#setMirrorBucketRoot
+   */
+  @DataBoundSetter
+  public void setMirrorBucketRoot(boolean mirrorBucketRoot) {
+    upload.setMirrorBucketRoot(mirrorBucketRoot);
+  }
+
+  public boolean isMirrorBucketRoot() {
+    return upload.isMirrorBucketRoot();
+  }
+
+  /**
+   * Whether a mirror only reports what it would change.
+   *
+   * @see AbstractUpload#setDryRun
+   */
+  @DataBoundSetter
+  public void setDryRun(boolean dryRun) {
+    upload.setDryRun(dryRun);
+  }
+
+  public boolean isDryRun() {
+    return upload.isDryRun();
+  }
+
+  /**
+   * The name of the archive to upload the matching files into.
+   *
+   * @see ClassicUpload#setArchiveName
+   */
+  @DataBoundSetter
+  public void setArchiveName(@Nullable String archiveName) {
+    upload.setArchiveName(archiveName);
+  }
+
+  @Nullable
+  public String getArchiveName() {
+    return upload.getArchiveName();
+  }
+
   public String getPattern() {
     return upload.getPattern();
   }
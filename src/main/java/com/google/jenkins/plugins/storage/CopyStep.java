@@ -0,0 +1,445 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.services.storage.Storage;
+import com.google.common.collect.Lists;
+import com.google.jenkins.plugins.credentials.domains.RequiresDomain;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+import com.google.jenkins.plugins.storage.DownloadStep.StorageObjectId;
+import com.google.jenkins.plugins.storage.util.BucketPath;
+import com.google.jenkins.plugins.storage.util.RetryStorageOperation;
+import com.google.jenkins.plugins.storage.util.RetryStorageOperation.Operation;
+import com.google.jenkins.plugins.storage.util.RetryStorageOperation.RepeatOperation;
+import com.google.jenkins.plugins.storage.util.RewriteRequest;
+import com.google.jenkins.plugins.storage.util.RewriteResponse;
+import com.google.jenkins.plugins.storage.util.StorageUtil;
+import com.google.jenkins.plugins.storage.util.WildcardPattern;
+import com.google.jenkins.plugins.util.Executor;
+import com.google.jenkins.plugins.util.ExecutorException;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Builder;
+import hudson.util.FormValidation;
+import jenkins.tasks.SimpleBuildStep;
+import net.sf.json.JSONObject;
+
+/**
+ * A step to copy objects from one Google Cloud Storage location to another,
+ * as a Build step and in pipeline, e.g. to promote artifacts from a staging
+ * bucket to a release bucket.
+ *
+ * The objects are rewritten by the service, so none of their content goes
+ * through Jenkins or its agents, and the step runs on the master, whose
+ * only work is to list the objects and issue the requests.
+ */
+@RequiresDomain(value = StorageScopeRequirement.class)
+public class CopyStep extends Builder implements SimpleBuildStep,
+    Serializable {
+
+  /**
+   * Construct the copy step.
+   */
+  @DataBoundConstructor
+  public CopyStep(String credentialsId, String sourceUri,
+      String destinationUri) {
+    this(credentialsId, sourceUri, destinationUri, null);
+  }
+
+  public CopyStep(String credentialsId, String sourceUri,
+      String destinationUri, @Nullable UploadModule module) {
+    if (module != null) {
+      this.module = module;
+    } else {
+      this.module = getDescriptor().getModule();
+    }
+
+    this.credentialsId = credentialsId;
+    this.sourceUri = sourceUri;
+    this.destinationUri = destinationUri;
+  }
+
+  /**
+   * The objects to copy, as a bucket uri that may use the wildcards of
+   * gsutil in its object part, and unresolved symbols, such as $JOB_NAME
+   * and $BUILD_NUMBER.
+   */
+  public String getSourceUri() {
+    return sourceUri;
+  }
+
+  private final String sourceUri;
+
+  /**
+   * Where to copy the objects, as a bucket uri that may contain unresolved
+   * symbols.  The objects keep their names under it, unless the source is
+   * a single object and this names the object to copy it to.
+   */
+  public String getDestinationUri() {
+    return destinationUri;
+  }
+
+  private final String destinationUri;
+
+  /**
+   * The path prefix that will be stripped from the names of the objects
+   * copied. May be null if no path prefix needs to be stripped.
+   *
+   * Names that do not start with this prefix will not be modified. Trailing
+   * slash is automatically added if it is missing.
+   */
+  @DataBoundSetter
+  public void setPathPrefix(@Nullable String pathPrefix) {
+    if (pathPrefix != null && !pathPrefix.endsWith("/")) {
+      pathPrefix += "/";
+    }
+    this.pathPrefix = pathPrefix;
+  }
+
+  @Nullable
+  public String getPathPrefix() {
+    return pathPrefix;
+  }
+
+  private String pathPrefix;
+
+  /**
+   * The number of objects to copy concurrently. When this is not positive,
+   * the default of the {@link UploadModule} is used.
+   */
+  @DataBoundSetter
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  private int parallelism;
+
+  /**
+   * The module to use for providing dependencies.
+   */
+  protected final UploadModule module;
+
+  /**
+   * The unique ID for the credentials we are using to
+   * authenticate with GCS.
+   */
+  public String getCredentialsId() {
+    return credentialsId;
+  }
+
+  private final String credentialsId;
+
+  /**
+   * The credentials we are using to authenticate with GCS.
+   */
+  public GoogleRobotCredentials getCredentials() {
+    return GoogleRobotCredentials.getById(getCredentialsId());
+  }
+
+  @Override
+  public BuildStepMonitor getRequiredMonitorService() {
+    return BuildStepMonitor.NONE;
+  }
+
+  @Override
+  public void perform(@Nonnull Run<?, ?> run, @Nonnull FilePath workspace,
+      @Nonnull Launcher launcher, @Nonnull TaskListener listener)
+      throws IOException, InterruptedException {
+    String source = StorageUtil.replaceMacro(getSourceUri(), run, listener);
+    BucketPath sourcePath = new BucketPath(source);
+    if (sourcePath.error()) {
+      throw new IOException("Invalid bucket path: " + getSourceUri());
+    }
+    WildcardPattern wildcard = DownloadStep.compileWildcard(sourcePath);
+
+    String destination =
+        StorageUtil.replaceMacro(getDestinationUri(), run, listener);
+    BucketPath destinationPath = new BucketPath(destination);
+    if (destinationPath.error()) {
+      throw new IOException("Invalid bucket path: " + getDestinationUri());
+    }
+
+    String resolvedPrefix = StorageUtil
+        .replaceMacro(pathPrefix, run, listener);
+    int parallelism = getParallelism() > 0
+        ? getParallelism() : module.getCopyParallelism();
+
+    performCopies(checkNotNull(getCredentials()), sourcePath, wildcard,
+        source, destinationPath, destination, resolvedPrefix, parallelism,
+        listener);
+  }
+
+  /**
+   * Lists the objects that match the source and rewrites each of them at
+   * the destination.  As for downloads, the listing runs alongside the
+   * workers and hands them the objects through a queue of bounded size.
+   */
+  private void performCopies(final GoogleRobotCredentials credentials,
+      BucketPath sourcePath, final WildcardPattern wildcard, String source,
+      final BucketPath destinationPath, String destination,
+      final String resolvedPrefix, int parallelism,
+      final TaskListener listener) throws IOException {
+    final String version = module.getVersion();
+    final BlockingQueue<StorageObjectId> objects =
+        new ArrayBlockingQueue<StorageObjectId>(module.getListPageSize());
+    final AtomicInteger found = new AtomicInteger();
+    final AtomicBoolean listed = new AtomicBoolean();
+    final AtomicBoolean failed = new AtomicBoolean();
+    final AtomicInteger copied = new AtomicInteger();
+    final AtomicLong copiedBytes = new AtomicLong();
+
+    List<RepeatOperation<IOException>> operations = Lists.newArrayList();
+    RepeatOperation<IOException> lister = DownloadStep.newLister(module,
+        credentials, version, sourcePath.getBucket(), wildcard, source,
+        null /* listener */, objects, found, listed, failed);
+    operations.add(
+        RetryStorageOperation.signalingExit(lister, failed, listed));
+    for (int i = 0; i < Math.max(1, parallelism); i++) {
+      RepeatOperation<IOException> worker =
+          new RepeatOperation<IOException>() {
+        // The object this worker is copying, along with the token to
+        // continue its rewrite with, which are kept when its credentials
+        // are re-initialized so that the rewrite resumes where it stopped.
+        private StorageObjectId obj;
+        private String destinationName;
+        private String rewriteToken;
+
+        private final Executor executor = module.newExecutor();
+
+        Storage service;
+
+        public void initCredentials() throws IOException {
+          service = module.getStorageService(credentials, version);
+        }
+
+        public boolean moreWork() {
+          return !failed.get()
+              && (obj != null || !listed.get() || !objects.isEmpty());
+        }
+
+        public void act()
+            throws IOException, InterruptedException, ExecutorException {
+          if (obj == null) {
+            obj = objects.poll(DownloadStep.POLL_MILLIS,
+                TimeUnit.MILLISECONDS);
+            if (obj == null) {
+              return;
+            }
+            destinationName = getDestinationName(wildcard,
+                destinationPath.getObject(), obj.getName(), resolvedPrefix);
+            rewriteToken = null;
+            listener.getLogger().println(module.prefix(Messages.Copy_Copying(
+                "gs://" + obj.getBucket() + "/" + obj.getName(),
+                "gs://" + destinationPath.getBucket() + "/"
+                    + destinationName)));
+          }
+
+          // A failure leaves the rewrite to continue if the caller
+          // refreshes our credentials for it, and stops the others
+          // otherwise.
+          RewriteResponse response = rewrite();
+          if (!response.isDone()) {
+            rewriteToken = checkNotNull(response.getRewriteToken());
+            return;
+          }
+          copied.incrementAndGet();
+          if (response.getObjectSize() != null) {
+            copiedBytes.addAndGet(response.getObjectSize());
+          }
+          obj = null;
+        }
+
+        /**
+         * Issues the next request of the rewrite, retrying it on error.
+         * The generation listed is pinned, so that every request copies the
+         * same content even if the object is replaced meanwhile.
+         */
+        private RewriteResponse rewrite()
+            throws IOException, InterruptedException, ExecutorException {
+          final RewriteResponse[] response = new RewriteResponse[1];
+          Operation a = new Operation() {
+            public void act()
+                throws IOException, InterruptedException, ExecutorException {
+              RewriteRequest request = new RewriteRequest(service,
+                  obj.getBucket(), obj.getName(), destinationPath.getBucket(),
+                  destinationName, null /* metadata */)
+                  .setSourceGeneration(obj.getGeneration())
+                  .setRewriteToken(rewriteToken)
+                  .setFields(REWRITE_FIELDS);
+              response[0] = executor.execute(request);
+            }
+          };
+          RetryStorageOperation.performRequestWithRetry(executor, a,
+              module.getInsertRetryCount());
+          return response[0];
+        }
+      };
+      operations.add(RetryStorageOperation.signalingExit(worker, failed,
+          null /* finished */));
+    }
+
+    try {
+      RetryStorageOperation.performRequestsWithReinitCredentials(operations);
+    } catch (ExecutorException e) {
+      throw new IOException(Messages.Copy_CopyException(), e);
+    } catch (InterruptedException e) {
+      throw new IOException(Messages.Copy_CopyException(), e);
+    }
+    listener.getLogger().println(module.prefix(Messages.Copy_Copied(
+        copied.get(), copiedBytes.get(), source, destination)));
+  }
+
+  /**
+   * The fields of a rewrite response that the workers use, so that the
+   * response leaves out the metadata of the destination object.
+   */
+  private static final String REWRITE_FIELDS =
+      "done,rewriteToken,objectSize";
+
+  /**
+   * The name to give the copy of the given object at the destination.
+   *
+   * @param destinationObject The object part of the destination uri.
+   */
+  static String getDestinationName(WildcardPattern wildcard,
+      String destinationObject, String name, @Nullable String pathPrefix) {
+    if (wildcard.isLiteral() && !destinationObject.isEmpty()
+        && !destinationObject.endsWith("/")) {
+      // A single object copied to the object named.
+      return destinationObject;
+    }
+    String strippedName = StorageUtil.getStrippedFilename(name, pathPrefix);
+    if (destinationObject.isEmpty()) {
+      return strippedName;
+    }
+    return destinationObject.endsWith("/")
+        ? destinationObject + strippedName
+        : destinationObject + "/" + strippedName;
+  }
+
+  /**
+   * Boilerplate, see:
+   * https://wiki.jenkins-ci.org/display/JENKINS/Defining+a+new+extension+point
+   */
+  public DescriptorImpl getDescriptor() {
+    return (DescriptorImpl) checkNotNull(Hudson.getInstance())
+        .getDescriptor(getClass());
+  }
+
+  /**
+   * Descriptor for the CopyStep
+   */
+  @Extension
+  @Symbol("googleStorageCopy")
+  public static class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+    private final UploadModule module;
+
+    public UploadModule getModule() {
+      return module;
+    }
+
+    public DescriptorImpl() {
+      this.module = new UploadModule();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDisplayName() {
+      return Messages.Copy_BuildStepDisplayName();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+      return true;
+    }
+
+    @Override
+    public Builder newInstance(StaplerRequest req, JSONObject formData)
+        throws FormException {
+      if (Boolean.FALSE.equals(formData.remove("stripPathPrefix"))) {
+        formData.remove("pathPrefix");
+      }
+      return super.newInstance(req, formData);
+    }
+
+    /**
+     * This callback validates the {@code sourceUri} input field's values.
+     */
+    public FormValidation doCheckSourceUri(
+        @QueryParameter final String sourceUri)
+        throws IOException {
+      try {
+        DownloadStep.compileWildcard(new BucketPath(sourceUri));
+      } catch (AbortException e) {
+        return FormValidation.error(e.getMessage());
+      } catch (IllegalArgumentException e) {
+        return FormValidation.error(e.getMessage());
+      }
+
+      return ClassicUpload.DescriptorImpl.staticDoCheckBucket(sourceUri);
+    }
+
+    /**
+     * This callback validates the {@code destinationUri} input field's
+     * values.
+     */
+    public FormValidation doCheckDestinationUri(
+        @QueryParameter final String destinationUri)
+        throws IOException {
+      return ClassicUpload.DescriptorImpl.staticDoCheckBucket(destinationUri);
+    }
+  }
+}
@@ -15,20 +15,33 @@
  */
 package com.google.jenkins.plugins.storage;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
-import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
 import org.jenkinsci.remoting.RoleChecker;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -36,19 +49,37 @@ import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
+import static com.google.api.client.http.HttpStatusCodes
+    .STATUS_CODE_NOT_FOUND;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.api.client.googleapis.media.MediaHttpDownloader;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.Objects;
 import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 import com.google.jenkins.plugins.credentials.domains.RequiresDomain;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
 import com.google.jenkins.plugins.storage.util.BucketPath;
+import com.google.jenkins.plugins.storage.util.ChecksumCache;
+import com.google.jenkins.plugins.storage.util.Crc32c;
+import com.google.jenkins.plugins.storage.util.DownloadCache;
+import com.google.jenkins.plugins.storage.util.FileChannelOutputStream;
+import com.google.jenkins.plugins.storage.util.RawContentTransport;
 import com.google.jenkins.plugins.storage.util.RetryStorageOperation;
 import com.google.jenkins.plugins.storage.util.RetryStorageOperation.Operation;
 import com.google.jenkins.plugins.storage.util.RetryStorageOperation.RepeatOperation;
+import com.google.jenkins.plugins.storage.util.StorageClientPool;
 import com.google.jenkins.plugins.storage.util.StorageUtil;
+import com.google.jenkins.plugins.storage.util.WildcardPattern;
 import com.google.jenkins.plugins.util.Executor;
 import com.google.jenkins.plugins.util.ExecutorException;
 
@@ -57,10 +88,13 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
 import hudson.model.Hudson;
+import hudson.model.Node;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.remoting.Callable;
+import hudson.remoting.Channel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Builder;
@@ -144,6 +178,102 @@ public class DownloadStep extends Builder implements SimpleBuildStep,
 
   private String pathPrefix;
 
+  /**
+   * The number of objects to download concurrently. When this is not
+   * positive, the default of the {@link UploadModule} is used.
+   */
+  @DataBoundSetter
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  private int parallelism;
+
+  /**
+   * The most byte ranges that large objects are split into and downloaded
+   * concurrently.  When this is not positive, the default of the
+   * {@link UploadModule} is used.
+   */
+  @DataBoundSetter
+  public void setSlices(int slices) {
+    this.slices = slices;
+  }
+
+  public int getSlices() {
+    return slices;
+  }
+
+  private int slices;
+
+  /**
+   * The minimum size, in MiB, of each slice of a sliced download, so that
+   * smaller objects are downloaded whole.  When this is not positive, the
+   * default of the {@link UploadModule} is used.
+   */
+  @DataBoundSetter
+  public void setMinSliceSize(int minSliceSize) {
+    this.minSliceSize = minSliceSize;
+  }
+
+  public int getMinSliceSize() {
+    return minSliceSize;
+  }
+
+  private int minSliceSize;
+
+  /**
+   * Whether to leave alone the local files whose size and checksum already
+   * match their object, e.g. because a previous build downloaded them.  The
+   * checksums of the files are cached next to the workspace, so that
+   * unchanged files are not read again either.
+   */
+  @DataBoundSetter
+  public void setSkipExisting(boolean skipExisting) {
+    this.skipExisting = skipExisting;
+  }
+
+  public boolean isSkipExisting() {
+    return skipExisting;
+  }
+
+  private boolean skipExisting;
+
+  /**
+   * Whether to write the objects that are stored compressed with gzip as
+   * gzip files, for consumers that read them that way, rather than
+   * decompressed.
+   */
+  @DataBoundSetter
+  public void setKeepCompressed(boolean keepCompressed) {
+    this.keepCompressed = keepCompressed;
+  }
+
+  public boolean isKeepCompressed() {
+    return keepCompressed;
+  }
+
+  private boolean keepCompressed;
+
+  /**
+   * Whether to keep the objects downloaded in a cache on the agent, which
+   * the builds that run there share, so that an object is transferred only
+   * once.  The files taken from the cache are read-only.
+   */
+  @DataBoundSetter
+  public void setCacheOnAgent(boolean cacheOnAgent) {
+    this.cacheOnAgent = cacheOnAgent;
+  }
+
+  public boolean isCacheOnAgent() {
+    return cacheOnAgent;
+  }
+
+  private boolean cacheOnAgent;
+
   /**
    * The module to use for providing dependencies.
    */
@@ -175,70 +305,713 @@ public class DownloadStep extends Builder implements SimpleBuildStep,
   public void perform(@Nonnull Run<?, ?> run, @Nonnull FilePath workspace,
       @Nonnull Launcher launcher, @Nonnull TaskListener listener)
       throws IOException, InterruptedException {
-    try {
-      String version = module.getVersion();
-      String path = StorageUtil.replaceMacro(getBucketUri(), run, listener);
-      BucketPath bucketPath = new BucketPath(path);
-      if (bucketPath.error()) {
-        throw new IOException("Invalid bucket path: " + getBucketUri());
-      }
+    String version = module.getVersion();
+    String path = StorageUtil.replaceMacro(getBucketUri(), run, listener);
+    BucketPath bucketPath = new BucketPath(path);
+    if (bucketPath.error()) {
+      throw new IOException("Invalid bucket path: " + getBucketUri());
+    }
+    // The objects are listed where they are downloaded, but reject what we
+    // cannot list before going there.
+    WildcardPattern wildcard = compileWildcard(bucketPath);
 
-      String dirName = StorageUtil
-          .replaceMacro(getLocalDirectory(), run, listener);
-      FilePath dirPath = workspace.child(dirName);
+    String dirName = StorageUtil
+        .replaceMacro(getLocalDirectory(), run, listener);
+    FilePath dirPath = workspace.child(dirName);
 
-      List<StorageObjectId> objects = resolveBucketPath(bucketPath,
-          getCredentials(), version);
+    // TODO(agoulti): add a download report.
 
-      listener.getLogger()
-          .println(module.prefix(
-              Messages.Download_FoundForPattern(objects.size(), path)));
+    String resolvedPrefix = StorageUtil
+        .replaceMacro(pathPrefix, run, listener);
 
-      // TODO(agoulti): add a download report.
+    FilePath cacheFile = isSkipExisting()
+        ? getChecksumCacheFile(workspace, dirPath) : null;
+    FilePath agentCacheDir = isCacheOnAgent()
+        ? getAgentCacheDir(workspace) : null;
 
-      String resolvedPrefix = StorageUtil
-          .replaceMacro(pathPrefix, run, listener);
+    initiateDownloadsAtWorkspace(getCredentials(), run,
+        bucketPath.getBucket(), wildcard, path, dirPath, listener, version,
+        resolvedPrefix, cacheFile, agentCacheDir);
+  }
 
-      initiateDownloadsAtWorkspace(getCredentials(), run, objects, dirPath,
-          listener, version, resolvedPrefix);
-    } catch (ExecutorException e) {
-      throw new IOException(Messages.Download_DownloadException(), e);
+  /**
+   * Where to cache the objects downloaded on the machine that holds the
+   * workspace, which is in the root directory of its node so that all of
+   * its builds share it.
+   *
+   * @return the directory, or null if the node is no longer there.
+   */
+  @Nullable
+  private static FilePath getAgentCacheDir(FilePath workspace) {
+    Computer computer = workspace.toComputer();
+    Node node = computer == null ? null : computer.getNode();
+    FilePath root = node == null ? null : node.getRootPath();
+    return root == null ? null : root.child("google-storage-cache");
+  }
+
+  /**
+   * Where to cache the checksums of the files downloaded to the given
+   * directory.  This is outside the workspace, in the directory Jenkins
+   * keeps beside it for temporary files, so that the cache is neither
+   * downloaded into nor archived, but it survives from build to build.
+   *
+   * @return the file, or null if the workspace has no parent to hold it.
+   */
+  @Nullable
+  private static FilePath getChecksumCacheFile(FilePath workspace,
+      FilePath dir) {
+    FilePath parent = workspace.getParent();
+    if (parent == null) {
+      return null;
     }
+    String key = Hashing.md5()
+        .hashString(dir.getRemote(), Charsets.UTF_8).toString();
+    return parent.child(workspace.getName() + "@tmp")
+        .child("google-storage-checksums-" + key);
   }
 
+  /**
+   * Downloads an object whole.  When an attempt fails midway, the next one
+   * only requests the bytes that are not written yet, and appends them.
+   * Every attempt is pinned to the generation of the object that was
+   * listed, so that a replaced object fails the download rather than being
+   * spliced into the one we started with.
+   *
+   * The content is hashed as it is written, and checked against the CRC32C
+   * of the object, or its MD5 hash if it has no CRC32C, once it is all
+   * there.  Content that does not match is deleted and fetched again by
+   * the next attempt.
+   *
+   * Objects stored compressed with gzip are transferred as they are
+   * stored, which is what their checksums are of, and are hashed before we
+   * decompress them.  With {@link #isKeepCompressed} they are written as
+   * they arrive, like any other object; otherwise they are fetched again
+   * from the start on failure, since we cannot resume decompressing.
+   */
   private void performDownloadWithRetry(final Executor executor,
       final Storage service,
       final StorageObjectId obj, final FilePath localName,
       final UploadModule module, final TaskListener listener)
       throws IOException, InterruptedException, ExecutorException {
+    // We run on the machine that holds the workspace.
+    final File file = new File(localName.getRemote());
+    // Whether an attempt got as far as replacing the file.
+    final AtomicBoolean started = new AtomicBoolean();
     Operation a = new Operation() {
+      // The bytes that earlier attempts wrote to the file, or -1 before the
+      // first attempt.
+      private long written = -1;
+      // The hashes of those bytes, which a resumed attempt adds to.  Only
+      // the hash that the object is checked against is computed.
+      private Crc32c crc;
+      private Hasher md5;
+
       public void act()
           throws IOException, InterruptedException, ExecutorException {
-        listener.getLogger().println(module.prefix(
-            Messages.Download_Downloading(obj.getName(), localName)));
+        boolean resume = written > 0 && canResume(obj);
+        // Otherwise only the end of the response was missing.
+        if (!resume || written != obj.getSize()) {
+          fetch(resume);
+        }
+        verify();
+      }
+
+      private void fetch(boolean resume)
+          throws IOException, InterruptedException, ExecutorException {
+        if (resume) {
+          listener.getLogger().println(module.prefix(
+              Messages.Download_Resuming(obj.getName(), written)));
+        } else {
+          listener.getLogger().println(module.prefix(
+              Messages.Download_Downloading(obj.getName(), localName)));
+        }
         Storage.Objects.Get getObject = service.objects()
-            .get(obj.getBucket(), obj.getName());
+            .get(obj.getBucket(), obj.getName())
+            .setGeneration(obj.getGeneration());
         MediaHttpDownloader downloader = getObject.getMediaHttpDownloader();
         if (downloader != null) {
           downloader.setDirectDownloadEnabled(true);
         }
+        if (resume) {
+          getObject.getRequestHeaders().setRange("bytes=" + written + "-");
+        }
+        if (obj.isGzipEncoded()) {
+          // The service sends what is stored, since we accept gzip, but
+          // the transport would decompress it.
+          RawContentTransport.requestRawContent(getObject.getRequestHeaders());
+        }
+
+        InputStream is = executeMedia(getObject, obj);
+        try {
+          if (!resume) {
+            written = 0;
+            crc = obj.getCrc32c() != null ? new Crc32c() : null;
+            md5 = crc == null && obj.getMd5Hash() != null
+                ? Hashing.md5().newHasher() : null;
+            localName.getParent().mkdirs();
+            // Replace rather than overwrite the file, which may be linked
+            // to the agent cache.
+            file.delete();
+          }
+          RandomAccessFile out = new RandomAccessFile(file, "rw");
+          started.set(true);
+          try {
+            if (!resume) {
+              out.setLength(0);
+              if (obj.getSize() > 0 && writesStored(obj)) {
+                // Size the file once, rather than with every write.
+                out.setLength(obj.getSize());
+              }
+            }
+            write(is, out.getChannel());
+          } finally {
+            out.close();
+          }
+        } finally {
+          is.close();
+        }
+      }
+
+      /**
+       * Writes the content after what earlier attempts wrote, hashing the
+       * bytes as they reach the file, so that what a failed attempt wrote
+       * is counted and hashed whole.  Content that we decompress is hashed
+       * as it arrives instead, all of it, since the checksums are of what
+       * is stored.
+       */
+      private void write(InputStream is, FileChannel channel)
+          throws IOException {
+        final boolean decompress = !writesStored(obj);
+        FileChannelOutputStream sink =
+            new FileChannelOutputStream(channel, written) {
+              @Override
+              protected void afterWrite(byte[] b, int off, int len) {
+                if (!decompress) {
+                  hash(b, off, len);
+                }
+              }
+            };
+        try {
+          InputStream content = is;
+          InputStream stored = null;
+          if (decompress) {
+            stored = new FilterInputStream(is) {
+              @Override
+              public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+              }
+
+              @Override
+              public int read(byte[] b, int off, int len)
+                  throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                  hash(b, off, read);
+                }
+                return read;
+              }
+            };
+            content = new GZIPInputStream(stored, BUFFER_SIZE);
+          }
+          byte[] buffer = new byte[BUFFER_SIZE];
+          int read;
+          while ((read = content.read(buffer)) >= 0) {
+            sink.write(buffer, 0, read);
+          }
+          if (stored != null) {
+            // Hash whatever follows the compressed content too.
+            ByteStreams.copy(stored, ByteStreams.nullOutputStream());
+          }
+        } finally {
+          try {
+            sink.close();
+          } finally {
+            written = sink.getPosition();
+          }
+        }
+      }
+
+      private void hash(byte[] b, int off, int len) {
+        if (crc != null) {
+          crc.update(b, off, len);
+        } else if (md5 != null) {
+          md5.putBytes(b, off, len);
+        }
+      }
 
-        InputStream is = module.executeMediaAsInputStream(getObject);
-        localName.copyFrom(is);
+      /**
+       * Checks what was written against the object.  A file that was cut
+       * short is left for the next attempt to resume, and one whose content
+       * is wrong is deleted for the next attempt to fetch again.
+       */
+      private void verify() throws IOException {
+        // What we decompress need not be as long as the object, but gzip
+        // notices when it is cut short.
+        if (writesStored(obj) && obj.getSize() >= 0
+            && written < obj.getSize()) {
+          throw new IOException(
+              Messages.Download_Truncated(obj.getName(), written));
+        }
+        String expected;
+        String actual;
+        if (crc != null) {
+          expected = obj.getCrc32c();
+          actual = Crc32c.encode(crc.getValue());
+        } else if (md5 != null) {
+          expected = obj.getMd5Hash();
+          actual = BaseEncoding.base64().encode(md5.hash().asBytes());
+        } else {
+          return;
+        }
+        if (!expected.equals(actual)) {
+          written = -1;
+          file.delete();
+          throw new IOException(crc != null
+              ? Messages.Download_ChecksumMismatch(
+                  obj.getName(), expected, actual)
+              : Messages.Download_Md5Mismatch(
+                  obj.getName(), expected, actual));
+        }
       }
     };
 
-    RetryStorageOperation
-        .performRequestWithRetry(executor, a, module.getInsertRetryCount());
+    boolean succeeded = false;
+    try {
+      RetryStorageOperation
+          .performRequestWithRetry(executor, a, module.getInsertRetryCount());
+      succeeded = true;
+    } finally {
+      if (!succeeded && started.get()) {
+        // The file is sized for content that did not all come.
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Whether a download of the object can continue from where an earlier
+   * attempt stopped.
+   */
+  private boolean canResume(StorageObjectId obj) {
+    // Ranges of gzip-encoded objects are ranges of the compressed bytes,
+    // which are only what we write if we keep them compressed.
+    return obj.getGeneration() != null && obj.getSize() >= 0
+        && writesStored(obj);
   }
 
+  /**
+   * Whether we write the bytes of the object as they are stored, rather
+   * than decompressed.
+   */
+  private boolean writesStored(StorageObjectId obj) {
+    return !obj.isGzipEncoded() || isKeepCompressed();
+  }
+
+  /**
+   * Starts downloading the content of the object, reporting a missing
+   * generation as a replaced object.
+   */
+  private InputStream executeMedia(Storage.Objects.Get getObject,
+      StorageObjectId obj) throws IOException {
+    try {
+      return module.executeMediaAsInputStream(getObject);
+    } catch (HttpResponseException e) {
+      if (e.getStatusCode() == STATUS_CODE_NOT_FOUND
+          && obj.getGeneration() != null) {
+        throw new IOException(Messages.Download_ObjectReplaced(
+            obj.getName(), String.valueOf(obj.getGeneration())), e);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Downloads a large object as {@code slices} byte ranges, each fetched by
+   * the calling thread or whichever of the given {@code threads} are free,
+   * and written at its own offset of the local file, which is allocated at
+   * its full size first.  The
+   * CRC32C of each slice is combined into that of the whole object, which
+   * must match the one of the service.  The file is deleted if this fails.
+   */
+  private void performSlicedDownload(final StorageObjectId obj,
+      FilePath localName, int slices,
+      final GoogleRobotCredentials credentials, final String version,
+      Semaphore threads, TaskListener listener)
+      throws IOException, InterruptedException, ExecutorException {
+    final long length = obj.getSize();
+    final long sliceLength = (length + slices - 1) / slices;
+    final long[] crcs = new long[slices];
+
+    final Queue<Integer> pending = new ConcurrentLinkedQueue<Integer>();
+    for (int i = 0; i < slices; i++) {
+      pending.add(i);
+    }
+
+    listener.getLogger().println(module.prefix(
+        Messages.Download_DownloadingSlices(obj.getName(), localName,
+            slices)));
+
+    // We run on the machine that holds the workspace.
+    File file = new File(localName.getRemote());
+    localName.getParent().mkdirs();
+    // Replace rather than overwrite the file, which may be linked to the
+    // agent cache.
+    file.delete();
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    boolean succeeded = false;
+    try {
+      out.setLength(length);
+      final FileChannel channel = out.getChannel();
+
+      // Each worker beyond the first only runs if it gets a thread, and
+      // only then takes slices from the queue.
+      List<RepeatOperation<IOException>> workers = Lists.newArrayList();
+      for (int i = 0; i < slices; i++) {
+        workers.add(new RepeatOperation<IOException>() {
+          private Integer slice;
+          Executor executor = module.newExecutor();
+
+          Storage service;
+
+          public void initCredentials() throws IOException {
+            service = module.getStorageService(credentials, version);
+          }
+
+          public boolean moreWork() {
+            if (slice == null) {
+              slice = pending.poll();
+            }
+            return slice != null;
+          }
+
+          public void act()
+              throws IOException, InterruptedException, ExecutorException {
+            final int current = slice;
+            final long offset = current * sliceLength;
+            final long count = Math.min(sliceLength, length - offset);
+            Operation a = new Operation() {
+              // What earlier attempts wrote, so that a retry only requests
+              // the rest of the slice.
+              private long done;
+              private final Crc32c crc = new Crc32c();
+
+              public void act() throws IOException {
+                Storage.Objects.Get getObject = service.objects()
+                    .get(obj.getBucket(), obj.getName())
+                    // Every slice must come from the same object.
+                    .setGeneration(obj.getGeneration());
+                getObject.getRequestHeaders().setRange(
+                    "bytes=" + (offset + done) + "-" + (offset + count - 1));
+
+                InputStream is = executeMedia(getObject, obj);
+                FileChannelOutputStream sink =
+                    new FileChannelOutputStream(channel, offset + done) {
+                      @Override
+                      protected void afterWrite(byte[] b, int off, int len) {
+                        crc.update(b, off, len);
+                      }
+                    };
+                try {
+                  byte[] buffer = new byte[BUFFER_SIZE];
+                  long received = done;
+                  while (received < count) {
+                    int read = is.read(buffer, 0,
+                        (int) Math.min(buffer.length, count - received));
+                    if (read < 0) {
+                      throw new IOException(Messages.Download_Truncated(
+                          obj.getName(), offset + received));
+                    }
+                    sink.write(buffer, 0, read);
+                    received += read;
+                  }
+                } finally {
+                  try {
+                    sink.close();
+                  } finally {
+                    // Even a failed write may have written some of it.
+                    done = sink.getPosition() - offset;
+                    is.close();
+                  }
+                }
+                crcs[current] = crc.getValue();
+              }
+            };
+            RetryStorageOperation.performRequestWithRetry(executor, a,
+                module.getInsertRetryCount());
+            slice = null;
+          }
+        });
+      }
+      RetryStorageOperation.performRequestsWithReinitCredentials(workers,
+          threads);
+
+      long crc = crcs[0];
+      for (int i = 1; i < slices; i++) {
+        crc = Crc32c.combine(crc, crcs[i],
+            Math.min(sliceLength, length - i * sliceLength));
+      }
+      String actual = Crc32c.encode(crc);
+      if (obj.getCrc32c() != null && !obj.getCrc32c().equals(actual)) {
+        throw new IOException(Messages.Download_ChecksumMismatch(
+            obj.getName(), obj.getCrc32c(), actual));
+      }
+      succeeded = true;
+    } finally {
+      out.close();
+      if (!succeeded) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * The number of byte ranges to download the object as, or 1 if it should
+   * be downloaded whole.
+   */
+  private int getSliceCount(StorageObjectId obj) {
+    if (obj.getSize() <= 0 || obj.isGzipEncoded()) {
+      // We cannot split what we do not know the size of, and gzip-encoded
+      // objects, which we may have to decompress, are fetched whole.
+      return 1;
+    }
+    int slices = getSlices() > 0 ? getSlices() : module.getDownloadSlices();
+    long minSlice = MEBIBYTE * (getMinSliceSize() > 0
+        ? getMinSliceSize() : module.getMinSliceSize());
+    return (int) Math.max(1, Math.min(slices, obj.getSize() / minSlice));
+  }
+
+  private static final long MEBIBYTE = 1024 * 1024;
+
+  // The size of the reads and writes of each slice.
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Lists the objects that match the bucket path and downloads them.  The
+   * listing runs alongside the download workers and hands them each page of
+   * objects as it arrives, through a queue of bounded size, so that the
+   * downloads start with the first page and only a page or so of objects is
+   * held in memory however many of them match.
+   */
   private void performDownloads(final GoogleRobotCredentials credentials,
-      final FilePath localDir, final List<StorageObjectId> objs,
+      String bucket, WildcardPattern wildcard, String pattern,
+      final FilePath localDir,
       final TaskListener listener, final String version,
-      final String resolvedPrefix) throws IOException {
-    RepeatOperation<IOException> a = new RepeatOperation<IOException>() {
-      private Queue<StorageObjectId> objects =
-          new LinkedList<StorageObjectId>(objs);
+      final String resolvedPrefix, final int parallelism,
+      @Nullable final File cacheFile, @Nullable File agentCacheDir)
+      throws IOException {
+    final ChecksumCache cache =
+        isSkipExisting() ? ChecksumCache.load(cacheFile) : null;
+    final AtomicInteger skipped = new AtomicInteger();
+    final AtomicLong skippedBytes = new AtomicLong();
+    final DownloadCache agentCache =
+        agentCacheDir == null ? null : new DownloadCache(agentCacheDir);
+    final AtomicInteger cached = new AtomicInteger();
+    final AtomicLong cachedBytes = new AtomicLong();
+    final BlockingQueue<StorageObjectId> objects =
+        new ArrayBlockingQueue<StorageObjectId>(module.getListPageSize());
+    final AtomicInteger found = new AtomicInteger();
+    // Set once the last object is queued.
+    final AtomicBoolean listed = new AtomicBoolean();
+    // Set once the listing or a download fails for good, however it does,
+    // so that the others stop.
+    final AtomicBoolean failed = new AtomicBoolean();
+
+    // The threads of the workers and of the slices of large objects, which
+    // the lister, running on the calling thread, leaves to them.
+    final Semaphore threads = new Semaphore(Math.max(1, parallelism));
+    List<RepeatOperation<IOException>> operations = Lists.newArrayList();
+    RepeatOperation<IOException> lister = newLister(module, credentials,
+        version, bucket, wildcard, pattern, listener, objects, found, listed,
+        failed);
+    operations.add(
+        RetryStorageOperation.signalingExit(lister, failed, listed));
+    for (int i = 0; i < Math.max(1, parallelism); i++) {
+      RepeatOperation<IOException> worker =
+          new RepeatOperation<IOException>() {
+        // The object this worker is downloading, which is kept when its
+        // credentials are re-initialized so that it is retried.
+        private StorageObjectId obj;
+        Executor executor = module.newExecutor();
+
+        Storage service;
+
+        public void initCredentials() throws IOException {
+          service = module.getStorageService(credentials, version);
+        }
+
+        public boolean moreWork() {
+          // Once the listing is complete, the queue holds all that is left.
+          return !failed.get()
+              && (obj != null || !listed.get() || !objects.isEmpty());
+        }
+
+        public void act()
+            throws IOException, InterruptedException, ExecutorException {
+          if (obj == null) {
+            obj = objects.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (obj == null) {
+              return;
+            }
+          }
+          String addPath = StorageUtil
+              .getStrippedFilename(obj.getName(), resolvedPrefix);
+          FilePath localName = localDir.withSuffix("/" + addPath);
+          File file = new File(localName.getRemote());
+
+          // A failure leaves the object to retry if the caller refreshes our
+          // credentials for it, and stops the others otherwise.
+          if (cache != null && cache.matches(file, obj.getSize(),
+                  obj.getCrc32c(), obj.getMd5Hash())) {
+            skipped.incrementAndGet();
+            skippedBytes.addAndGet(obj.getSize());
+            obj = null;
+            return;
+          }
+          String key = agentCache == null ? null : getCacheKey(obj);
+          if (key != null
+              && fetchCached(agentCache, key, obj, file, writesStored(obj))) {
+            cached.incrementAndGet();
+            cachedBytes.addAndGet(file.length());
+          } else {
+            download(localName);
+            if (key != null) {
+              putCached(agentCache, key, file);
+            }
+          }
+          // What we decompress does not have the checksums of the object,
+          // so there is nothing to compare it with next time.
+          if (cache != null && writesStored(obj)) {
+            cache.put(file, obj.getCrc32c(), obj.getMd5Hash());
+          }
+          obj = null;
+        }
+
+        private void download(FilePath localName)
+            throws IOException, InterruptedException, ExecutorException {
+          int slices = getSliceCount(obj);
+          if (slices > 1) {
+            performSlicedDownload(obj, localName, slices, credentials,
+                version, threads, listener);
+          } else {
+            performDownloadWithRetry(executor, service, obj, localName,
+                module, listener);
+          }
+        }
+      };
+      operations.add(RetryStorageOperation.signalingExit(worker, failed,
+          null /* finished */));
+    }
+
+    try {
+      RetryStorageOperation.performRequestsWithReinitCredentials(operations,
+          threads);
+    } catch (ExecutorException e) {
+      throw new IOException(Messages.Download_DownloadException(), e);
+    } catch (InterruptedException e) {
+      throw new IOException(Messages.Download_DownloadException(), e);
+    } finally {
+      if (cache != null) {
+        try {
+          cache.save();
+        } catch (IOException e) {
+          // The cache only saves work, so the next build will do without.
+          logger.log(Level.WARNING, "Could not save " + cacheFile, e);
+        }
+      }
+      if (agentCache != null) {
+        agentCache.evict(MEBIBYTE * module.getAgentCacheSize());
+      }
+    }
+    if (cache != null) {
+      listener.getLogger().println(module.prefix(Messages.Download_Skipped(
+          skipped.get(), found.get(), skippedBytes.get())));
+    }
+    if (agentCache != null) {
+      listener.getLogger().println(module.prefix(
+          Messages.Download_FromAgentCache(
+              cached.get(), found.get(), cachedBytes.get())));
+    }
+  }
+
+  /**
+   * The key of what we write for the object in the agent cache, or null if
+   * it cannot be cached because its generation is not known.
+   */
+  @Nullable
+  private String getCacheKey(StorageObjectId obj) {
+    if (obj.getGeneration() == null) {
+      return null;
+    }
+    String variant = "";
+    if (!writesStored(obj)) {
+      variant = "gunzip";
+    }
+    return DownloadCache.keyOf(obj.getBucket(), obj.getName(),
+        obj.getGeneration(), variant);
+  }
+
+  /**
+   * Takes the object from the agent cache, if it is there.  The cache only
+   * saves work, so a failure to read it is a miss.
+   */
+  private static boolean fetchCached(DownloadCache agentCache, String key,
+      StorageObjectId obj, File file, boolean stored) {
+    // The size of what we decompress is not that of the object.
+    long size = stored ? obj.getSize() : -1;
+    try {
+      return agentCache.fetch(key, size, file);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not take " + file + " from the cache",
+          e);
+      return false;
+    }
+  }
+
+  /**
+   * Adds what was downloaded for the object to the agent cache, if it can.
+   */
+  private static void putCached(DownloadCache agentCache, String key,
+      File file) {
+    try {
+      agentCache.put(key, file);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Could not add " + file + " to the cache",
+          e);
+    }
+  }
+
+  /**
+   * Returns the operation that fetches the objects matching the wildcard,
+   * a page at a time, and queues them for the download workers.  Queuing
+   * waits while the queue is full, so that the listing runs no further
+   * ahead of the downloads than the size of the queue.
+   *
+   * Only the directory levels that the wildcard can match are listed, one
+   * after another, as planned by {@link WildcardPattern}.
+   *
+   * The lister is meant to run wrapped by
+   * {@link RetryStorageOperation#signalingExit}, which sets {@code listed}
+   * and, should it fail, {@code failed}, however it ends.
+   *
+   * @param listener Where to report how many objects were found, if
+   * anywhere.
+   */
+  static RepeatOperation<IOException> newLister(final UploadModule module,
+      final GoogleRobotCredentials credentials, final String version,
+      final String bucket, final WildcardPattern wildcard,
+      final String pattern, @Nullable final TaskListener listener,
+      final BlockingQueue<StorageObjectId> queue, final AtomicInteger found,
+      final AtomicBoolean listed, final AtomicBoolean failed) {
+    return new RepeatOperation<IOException>() {
+      // The listings still to make, and the one being paged through along
+      // with its next page, which are kept when the credentials of the
+      // lister are re-initialized so that the listing resumes there.
+      private final Deque<WildcardPattern.Listing> pending =
+          new ArrayDeque<WildcardPattern.Listing>(
+              ImmutableList.of(wildcard.getFirstListing()));
+      private WildcardPattern.Listing current;
+      private String pageToken;
       Executor executor = module.newExecutor();
 
       Storage service;
@@ -248,50 +1021,121 @@ public class DownloadStep extends Builder implements SimpleBuildStep,
       }
 
       public boolean moreWork() {
-        return !objects.isEmpty();
+        return !listed.get() && !failed.get();
       }
 
       public void act()
           throws IOException, InterruptedException, ExecutorException {
-        StorageObjectId obj = objects.peek();
+        // A failure leaves the page to fetch again if the caller refreshes
+        // our credentials for it.
+        if (wildcard.isLiteral()) {
+          // No wildcards. Do simple lookup
+          Storage.Objects.Get obj = service.objects()
+              .get(bucket, wildcard.getPattern())
+              .setFields(OBJECT_FIELDS);
+          enqueue(new StorageObjectId(bucket, executor.execute(obj)));
+          pending.clear();
+        } else {
+          listPage();
+        }
+        if (current == null && pending.isEmpty() && !failed.get()) {
+          if (listener != null) {
+            listener.getLogger().println(module.prefix(
+                Messages.Download_FoundForPattern(found.get(), pattern)));
+          }
+          listed.set(true);
+        }
+      }
 
-        String addPath = StorageUtil
-            .getStrippedFilename(obj.getName(), resolvedPrefix);
-        FilePath localName = localDir.withSuffix("/" + addPath);
+      /**
+       * Queues the matching objects of the next page, and plans listings
+       * for the subdirectories on it that may hold more.
+       */
+      private void listPage()
+          throws IOException, InterruptedException, ExecutorException {
+        if (current == null) {
+          current = pending.pop();
+        }
+        Storage.Objects.List list = service.objects().list(bucket)
+            .setPrefix(current.getPrefix())
+            .setDelimiter(current.getDelimiter())
+            .setMaxResults((long) module.getListPageSize())
+            .setFields(LIST_FIELDS);
+        if (pageToken != null) {
+          list.setPageToken(pageToken);
+        }
+
+        Objects objects = executor.execute(list);
+
+        if (objects.getItems() != null) {
+          for (StorageObject o : objects.getItems()) {
+            if (wildcard.matches(o.getName())) {
+              enqueue(new StorageObjectId(bucket, o));
+            }
+          }
+        }
+        if (objects.getPrefixes() != null) {
+          for (String subdirectory : objects.getPrefixes()) {
+            WildcardPattern.Listing next =
+                wildcard.descend(current, subdirectory);
+            if (next != null) {
+              pending.push(next);
+            }
+          }
+        }
+        pageToken = Strings.emptyToNull(objects.getNextPageToken());
+        if (pageToken == null) {
+          current = null;
+        }
+      }
 
-        performDownloadWithRetry(executor, service, obj, localName, module,
-            listener);
-        objects.remove();
+      private void enqueue(StorageObjectId obj) throws InterruptedException {
+        while (!queue.offer(obj, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+          if (failed.get()) {
+            // No worker is left to make room.
+            return;
+          }
+        }
+        found.incrementAndGet();
       }
     };
-
-    try {
-      RetryStorageOperation.performRequestWithReinitCredentials(a);
-    } catch (ExecutorException e) {
-      throw new IOException(Messages.Download_DownloadException(), e);
-    } catch (InterruptedException e) {
-      throw new IOException(Messages.Download_DownloadException(), e);
-    }
   }
 
+  // How long the lister and the workers wait on the queue at a time before
+  // checking whether the others are done.
+  static final long POLL_MILLIS = 100;
+
   private void initiateDownloadsAtWorkspace(
       final GoogleRobotCredentials credentials,
-      final Run run, final List<StorageObjectId> objects,
-      final FilePath localDir, final TaskListener listener,
-      final String version, final String resolvedPrefix)
+      final Run run, final String bucket, final WildcardPattern wildcard,
+      final String pattern, final FilePath localDir,
+      final TaskListener listener, final String version,
+      final String resolvedPrefix, @Nullable FilePath cacheFile,
+      @Nullable FilePath agentCacheDir)
       throws IOException, InterruptedException {
+    final int parallelism = getParallelism() > 0
+        ? getParallelism() : module.getDownloadParallelism();
     try {
       // Use remotable credential to access the storage service from the
       // remote machine.
       final GoogleRobotCredentials remoteCredentials =
           checkNotNull(credentials).forRemote(module.getRequirement());
+      // Both the cache and the download directory are on the agent.
+      final String cachePath =
+          cacheFile == null ? null : cacheFile.getRemote();
+      final String agentCachePath =
+          agentCacheDir == null ? null : agentCacheDir.getRemote();
 
       localDir.act(
           new Callable<Void, IOException>() {
             @Override
             public Void call() throws IOException {
-              performDownloads(remoteCredentials, localDir, objects, listener,
-                  version, resolvedPrefix);
+              StorageClientPool.getInstance().releaseOnClose(
+                  Channel.current());
+              performDownloads(remoteCredentials, bucket, wildcard,
+                  pattern, localDir, listener, version, resolvedPrefix,
+                  parallelism, cachePath == null ? null : new File(cachePath),
+                  agentCachePath == null ? null : new File(agentCachePath));
               return (Void) null;
             }
 
@@ -311,11 +1155,27 @@ public class DownloadStep extends Builder implements SimpleBuildStep,
   /**
    * A class to store StorageObject information in a serializable manner.
    *
+   * Listings may hold many of these, so only what downloads use is kept,
+   * in compact form: the bucket is shared with the other objects of the
+   * listing, and the checksums are kept as numbers and bytes rather than
+   * base64 strings.
    */
   protected static class StorageObjectId implements Serializable {
-    public StorageObjectId(StorageObject obj) {
-      this.bucket = obj.getBucket();
+    /**
+     * @param bucket The bucket the object was listed from, since the
+     * listing does not ask for the bucket of each object.
+     */
+    public StorageObjectId(String bucket, StorageObject obj) {
+      this.bucket = bucket;
       this.name = obj.getName();
+      this.generation = obj.getGeneration() == null
+          ? NONE : obj.getGeneration().longValue();
+      this.size = obj.getSize() == null ? NONE : obj.getSize().longValue();
+      this.crc32c = obj.getCrc32c() == null
+          ? NONE : Crc32c.decode(obj.getCrc32c());
+      this.md5Hash = obj.getMd5Hash() == null
+          ? null : BaseEncoding.base64().decode(obj.getMd5Hash());
+      this.gzipEncoded = "gzip".equals(obj.getContentEncoding());
     }
 
     public String getBucket() {
@@ -326,108 +1186,73 @@ public class DownloadStep extends Builder implements SimpleBuildStep,
       return name;
     }
 
-    private final String bucket;
-    private final String name;
-  }
-
-  /**
-   * Split the string on wildcards.
-   *
-   * String.split removes trailing empty strings, for example, "a", "a*" and
-   * "a**" and would procude the same result, so that method is not suitable.
-   */
-  public static String[] split(String uri) throws AbortException {
-    int occurs = StringUtils.countMatches(uri, "*");
+    @Nullable
+    public Long getGeneration() {
+      return generation == NONE ? null : generation;
+    }
 
-    if (occurs == 0) {
-      return new String[]{uri};
+    /**
+     * The size of the object, in bytes, or -1 if the service did not say.
+     */
+    public long getSize() {
+      return size;
     }
 
-    if (occurs > 1) {
-      throw new AbortException(
-          Messages.Download_UnsupportedMultipleAsterisks(uri));
+    @Nullable
+    public String getCrc32c() {
+      return crc32c == NONE ? null : Crc32c.encode(crc32c);
     }
 
-    int index = uri.indexOf('*');
-    return new String[]{uri.substring(0, index), uri.substring(index + 1)};
-  }
-  /**
-   * Verifies that the given path is supported within current limitations
-   */
-  private static void verifySupported(BucketPath path) throws AbortException {
-    if (path.getBucket().contains("*")) {
-      throw new AbortException(
-          Messages.Download_UnsupportedAsteriskInBucket(path.getBucket()));
+    @Nullable
+    public String getMd5Hash() {
+      return md5Hash == null ? null : BaseEncoding.base64().encode(md5Hash);
     }
-    String[] pieces = split(path.getObject());
-    if (pieces.length == 2) {
-      if (pieces[1].contains("/")) {
-        throw new AbortException(
-            Messages.Download_UnsupportedDirSuffix(path.getObject()));
-      }
+
+    /**
+     * Whether the object is stored compressed with gzip, in which case the
+     * service may serve it decompressed.
+     */
+    public boolean isGzipEncoded() {
+      return gzipEncoded;
     }
+
+    // Stands for a number the service did not return, which generations,
+    // sizes and checksums cannot be.
+    private static final long NONE = -1;
+
+    private final String bucket;
+    private final String name;
+    private final long generation;
+    private final long size;
+    private final long crc32c;
+    private final byte[] md5Hash;
+    private final boolean gzipEncoded;
   }
 
   /**
-   * Take the bucket path and return a list of objects in the cloud that match
-   * it.
-   *
-   * This will eventually handle wildcards, but for now is limited to directly
-   * specifying the object.
+   * The fields of the objects that {@link StorageObjectId} keeps, so that
+   * requests ask for no other metadata.
    */
-  private List<StorageObjectId> resolveBucketPath(BucketPath bucketPath,
-      GoogleRobotCredentials credentials, String version)
-      throws IOException, ExecutorException {
-    Storage service = module.getStorageService(credentials, version);
-    Executor executor = module.newExecutor();
-
-    List<StorageObjectId> result = new ArrayList<StorageObjectId>();
-
-    verifySupported(bucketPath);
+  private static final String OBJECT_FIELDS =
+      "name,generation,size,crc32c,md5Hash,contentEncoding";
 
-    // Allow a single asterisk in the object name for now.
-    // Let the behavior be consistent with
-    // https://cloud.google.com/storage/docs/gsutil/addlhelp/WildcardNames
-    //
-    // Support for richer constructs will be added as needed.
-
-    String[] pieces = split(bucketPath.getObject());
-
-    if (pieces.length == 1) {
-      // No wildcards. Do simple lookup
-      Storage.Objects.Get obj = service.objects()
-          .get(bucketPath.getBucket(), bucketPath.getObject());
-
-      result.add(new StorageObjectId(executor.execute(obj)));
+  /**
+   * The fields of a listing that the lister uses.
+   */
+  private static final String LIST_FIELDS =
+      "items(" + OBJECT_FIELDS + "),prefixes,nextPageToken";
 
-      return result;
+  /**
+   * Compiles the wildcard of the object part of the given path, which may
+   * use any of the wildcards of gsutil, unlike the bucket part.
+   */
+  static WildcardPattern compileWildcard(BucketPath path)
+      throws AbortException {
+    if (path.getBucket().contains("*")) {
+      throw new AbortException(
+          Messages.Download_UnsupportedAsteriskInBucket(path.getBucket()));
     }
-
-    // Single wildcard, of the form pre/fix/log_*_some.txt
-
-    String bucketPathPrefix = pieces[0];
-    String bucketPathSuffix = pieces[1];
-
-    String pageToken = "";
-    do {
-      Storage.Objects.List list = service.objects().list(bucketPath.getBucket())
-          .setPrefix(bucketPathPrefix).setDelimiter("/");
-      if (pageToken.length() > 0) {
-        list.setPageToken(pageToken);
-      }
-
-      Objects objects = executor.execute(list);
-      pageToken = objects.getNextPageToken();
-
-      // Collect the items that match the suffix
-      for (StorageObject o : objects.getItems()) {
-        if (o.getName().endsWith(bucketPathSuffix)) {
-          result.add(new StorageObjectId(o));
-        }
-      }
-    } while (pageToken != null && pageToken.length() > 0);
-
-    return result;
+    return WildcardPattern.compile(path.getObject());
   }
 
   /**
@@ -490,7 +1315,7 @@ public class DownloadStep extends Builder implements SimpleBuildStep,
         throws IOException {
       try {
         BucketPath path = new BucketPath(bucketUri);
-        verifySupported(path);
+        compileWildcard(path);
       } catch (AbortException e) {
         return FormValidation.error(e.getMessage());
       } catch (IllegalArgumentException e) {
@@ -15,20 +15,30 @@
  */
 package com.google.jenkins.plugins.storage;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.jenkins.plugins.storage.AbstractUploadDescriptor.GCS_SCHEME;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.jenkins.plugins.credentials.domains.RequiresDomain;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
 import com.google.jenkins.plugins.storage.reports.ProjectGcsUploadReport;
@@ -40,10 +50,12 @@ import hudson.model.AbstractProject;
 import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
+import hudson.util.StreamTaskListener;
 
 /**
  * A Jenkins plugin for uploading files to Google Cloud Storage (GCS).
@@ -97,23 +109,61 @@ public class GoogleCloudStorageUploader extends Recorder {
 
   private final List<AbstractUpload> uploads;
 
+  /**
+   * The number of uploads to perform concurrently.  When this is not
+   * positive, the global default is used.
+   */
+  @DataBoundSetter
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  private int parallelism;
+
   /**
    * {@inheritDoc}
    */
   @Override
   public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
       BuildListener listener) throws IOException, InterruptedException {
-    // TODO(mattmoor): threadpool?
+    int parallelism = getParallelism() > 0
+        ? getParallelism() : DEFAULT_PARALLELISM;
+    if (parallelism <= 1) {
+      return performSequentially(uploads, build, listener);
+    }
+
+    // The uploads of the build log run once all of the others are done and
+    // their output is in the build log, which they would otherwise miss.
+    List<AbstractUpload> concurrent = Lists.newArrayList();
+    List<AbstractUpload> last = Lists.newArrayList();
+    for (AbstractUpload upload : uploads) {
+      if (upload instanceof StdoutUpload) {
+        last.add(upload);
+      } else {
+        concurrent.add(upload);
+      }
+    }
+    boolean result = performConcurrently(concurrent,
+        Math.min(concurrent.size(), parallelism), build, listener);
+    listener.getLogger().flush();
+    return performSequentially(last, build, listener) && result;
+  }
+
+  /**
+   * Performs the given uploads one after another, logging their output as
+   * it happens.
+   *
+   * @return whether all of the uploads succeeded.
+   */
+  private boolean performSequentially(List<AbstractUpload> uploads,
+      AbstractBuild<?, ?> build, TaskListener listener) throws IOException {
     boolean result = true;
     for (AbstractUpload upload : uploads) {
-      try {
-        upload.perform(getCredentialsId(), build, listener);
-      } catch (UploadException e) {
-        e.printStackTrace(listener.error(
-            Messages.StorageUtil_PrefixFormat(
-                getDescriptor().getDisplayName(),
-                Messages.GoogleCloudStorageUploader_ExceptionDuringUpload(
-                    e.getMessage()))));
+      if (!performUpload(upload, build, listener)) {
         build.setResult(Result.FAILURE);
         result = false;
       }
@@ -121,6 +171,90 @@ public class GoogleCloudStorageUploader extends Recorder {
     return result;
   }
 
+  /**
+   * Performs the given uploads with up to {@code threads} of them at once.
+   *
+   * @return whether all of the uploads succeeded.
+   */
+  private boolean performConcurrently(List<AbstractUpload> uploads,
+      int threads, final AbstractBuild<?, ?> build, TaskListener listener)
+      throws IOException, InterruptedException {
+    if (threads <= 1) {
+      return performSequentially(uploads, build, listener);
+    }
+
+    // Each upload logs to its own buffer, which is copied to the build log
+    // once it is done and all the uploads before it have been, so that
+    // the output of concurrent uploads does not interleave.
+    ExecutorService pool = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder()
+            .setNameFormat(getClass().getSimpleName() + "-%d")
+            .setDaemon(true)
+            .build());
+    try {
+      List<ByteArrayOutputStream> logs = Lists.newArrayList();
+      List<Future<Boolean>> results = Lists.newArrayList();
+      for (final AbstractUpload upload : uploads) {
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        logs.add(log);
+        results.add(pool.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            TaskListener uploadListener =
+                new StreamTaskListener(log, build.getCharset());
+            try {
+              return performUpload(upload, build, uploadListener);
+            } finally {
+              uploadListener.getLogger().flush();
+            }
+          }
+        }));
+      }
+
+      boolean result = true;
+      for (int i = 0; i < results.size(); i++) {
+        boolean succeeded;
+        try {
+          succeeded = results.get(i).get();
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause(), IOException.class);
+          throw new IOException(e.getCause());
+        } finally {
+          logs.get(i).writeTo(listener.getLogger());
+        }
+        if (!succeeded) {
+          build.setResult(Result.FAILURE);
+          result = false;
+        }
+      }
+      return result;
+    } finally {
+      // Interrupts any upload still running, e.g. if the build was aborted
+      // while we waited for them.
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Performs a single upload, reporting its failure to the listener.
+   *
+   * @return whether the upload succeeded.
+   */
+  private boolean performUpload(AbstractUpload upload,
+      AbstractBuild<?, ?> build, TaskListener listener) throws IOException {
+    try {
+      upload.perform(getCredentialsId(), build, listener);
+      return true;
+    } catch (UploadException e) {
+      e.printStackTrace(listener.error(
+          Messages.StorageUtil_PrefixFormat(
+              getDescriptor().getDisplayName(),
+              Messages.GoogleCloudStorageUploader_ExceptionDuringUpload(
+                  e.getMessage()))));
+      return false;
+    }
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -186,4 +320,12 @@ public class GoogleCloudStorageUploader extends Recorder {
   public Action getProjectAction(AbstractProject<?, ?> project) {
     return new ProjectGcsUploadReport(project);
   }
+
+  /**
+   * The default for {@link #getParallelism}, which may be overridden with a
+   * system property on the Jenkins master.  Uploads run one after another
+   * unless the job or the master asks otherwise, as they always have.
+   */
+  private static final int DEFAULT_PARALLELISM = Integer.getInteger(
+      GoogleCloudStorageUploader.class.getName() + ".parallelism", 1);
 }
@@ -20,12 +20,11 @@ import java.io.InputStream;
 import java.io.Serializable;
 import java.security.GeneralSecurityException;
 
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.storage.Storage;
 import com.google.jenkins.plugins.credentials.domains.DomainRequirementProvider;
 import com.google.jenkins.plugins.credentials.domains.RequiresDomain;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+import com.google.jenkins.plugins.storage.util.StorageClientPool;
 import com.google.jenkins.plugins.util.Executor;
 
 import hudson.Plugin;
@@ -70,10 +69,8 @@ public class UploadModule implements Serializable {
         version = version.split(" ")[0];
         appName = appName.concat("/").concat(version);
       }
-      return new Storage.Builder(new NetHttpTransport(), new JacksonFactory(),
-          credentials.getGoogleCredential(getRequirement()))
-          .setApplicationName(appName)
-          .build();
+      return StorageClientPool.getInstance().getClient(credentials,
+          getRequirement(), appName);
     } catch (GeneralSecurityException e) {
       throw new IOException(
           Messages.UploadModule_ExceptionStorageService(), e);
@@ -87,6 +84,108 @@ public class UploadModule implements Serializable {
     return 5;
   }
 
+  /**
+   * Controls how many files a single upload transfers concurrently, unless
+   * the upload specifies its own parallelism.
+   */
+  public int getUploadParallelism() {
+    return DEFAULT_UPLOAD_PARALLELISM;
+  }
+
+  /**
+   * Controls how many objects a single download transfers concurrently,
+   * unless the download specifies its own parallelism.
+   */
+  public int getDownloadParallelism() {
+    return DEFAULT_DOWNLOAD_PARALLELISM;
+  }
+
+  /**
+   * Controls how many objects a single copy rewrites concurrently, unless
+   * the copy specifies its own parallelism.  The content stays within the
+   * service, so each copy costs little more than its requests.
+   */
+  public int getCopyParallelism() {
+    return DEFAULT_COPY_PARALLELISM;
+  }
+
+  /**
+   * Controls the size, in MiB, from which files are uploaded through a
+   * resumable session, unless the upload specifies its own threshold.
+   * Smaller files use a single, faster, direct request.
+   */
+  public int getResumableUploadThreshold() {
+    return 64;
+  }
+
+  /**
+   * Controls the size, in MiB, of each request of a resumable upload,
+   * unless the upload specifies its own chunk size.
+   */
+  public int getUploadChunkSize() {
+    return 8;
+  }
+
+  /**
+   * Controls how many slices large files are split into for a composite
+   * upload, unless the upload specifies its own count.  The default of 1
+   * leaves files whole, since composite objects carry no MD5 hash and their
+   * temporary parts require permission to delete objects.
+   */
+  public int getCompositeUploadSlices() {
+    return 1;
+  }
+
+  /**
+   * Controls the most byte ranges that large objects are split into and
+   * downloaded concurrently, unless the download specifies its own count.
+   */
+  public int getDownloadSlices() {
+    return 4;
+  }
+
+  /**
+   * Controls the minimum size, in MiB, of each slice of a composite upload
+   * or of a sliced download, unless it specifies its own minimum.
+   */
+  public int getMinSliceSize() {
+    return 64;
+  }
+
+  /**
+   * Controls how many objects each page of the listing of a download
+   * holds at most, which is also how many listed objects wait for a
+   * download worker at most.  The service returns no more than 1000.
+   */
+  public int getListPageSize() {
+    return 1000;
+  }
+
+  /**
+   * Controls the most MiB that the cache of downloaded objects on each
+   * agent holds, beyond which the least recently used are evicted.
+   */
+  public int getAgentCacheSize() {
+    return 10 * 1024;
+  }
+
+  /**
+   * Controls the size, in bytes, below which files are not worth compressing
+   * with gzip.
+   */
+  public int getGzipMinimumSize() {
+    return 1024;
+  }
+
+  /**
+   * Controls how long, in seconds, the buckets that uploads resolve are
+   * cached before they are checked for changes.  When this is not positive,
+   * every upload fetches its bucket.
+   */
+  public long getBucketCacheTtl() {
+    return DEFAULT_BUCKET_CACHE_TTL;
+  }
+
   /**
    * Prefix the given log message with our module.
    */
@@ -101,4 +200,33 @@ public class UploadModule implements Serializable {
   }
 
   private static final String PLUGIN_NAME = "google-storage-plugin";
+
+  /**
+   * The global default for {@link #getUploadParallelism}, which may be
+   * overridden with a system property on the Jenkins master.
+   */
+  private static final int DEFAULT_UPLOAD_PARALLELISM = Integer.getInteger(
+      UploadModule.class.getName() + ".uploadParallelism", 4);
+
+  /**
+   * The global default for {@link #getDownloadParallelism}, which may be
+   * overridden with a system property on the Jenkins master.
+   */
+  private static final int DEFAULT_DOWNLOAD_PARALLELISM = Integer.getInteger(
+      UploadModule.class.getName() + ".downloadParallelism", 4);
+
+  /**
+   * The global default for {@link #getCopyParallelism}, which may be
+   * overridden with a system property on the Jenkins master.
+   */
+  private static final int DEFAULT_COPY_PARALLELISM = Integer.getInteger(
+      UploadModule.class.getName() + ".copyParallelism", 16);
+
+  /**
+   * The default for {@link #getBucketCacheTtl}, which may be overridden with
+   * a system property on each JVM that uploads, since each has its own
+   * cache.
+   */
+  private static final long DEFAULT_BUCKET_CACHE_TTL = Long.getLong(
+      UploadModule.class.getName() + ".bucketCacheTtl", 300);
 }
@@ -15,6 +15,7 @@
  */
 package com.google.jenkins.plugins.storage.reports;
 
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nullable;
@@ -90,6 +91,12 @@ public abstract class AbstractGcsUploadReport implements Action {
    */
   public abstract Set<String> getStorageObjects();
 
+  /**
+   * @return the files that were uploaded within archives (qualified with
+   *         bucket name), mapped to their archive object.
+   */
+  public abstract Map<String, String> getArchivedObjects();
+
   /**
    * @return the buckets that were used as upload destinations.
    */
@@ -16,10 +16,12 @@
 package com.google.jenkins.plugins.storage.reports;
 
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nullable;
 
+import com.google.api.client.util.Maps;
 import com.google.api.client.util.Sets;
 import com.google.jenkins.plugins.storage.util.BucketPath;
 
@@ -37,11 +39,14 @@ public class BuildGcsUploadReport extends AbstractGcsUploadReport {
 
   private final Set<String> buckets;
   private final Set<String> files;
+  // Null in reports saved before archives were uploaded.
+  private Map<String, String> archivedFiles;
 
   public BuildGcsUploadReport(Run<?, ?> run) {
     super(run);
     this.buckets = Sets.newHashSet();
     this.files = Sets.newHashSet();
+    this.archivedFiles = Maps.newHashMap();
   }
 
   /**
@@ -89,7 +94,7 @@ public class BuildGcsUploadReport extends AbstractGcsUploadReport {
    * @param bucketName
    *          the name of the destination bucket.
    */
-  public void addBucket(String bucketName) {
+  public synchronized void addBucket(String bucketName) {
     buckets.add(bucketName);
   }
 
@@ -99,10 +104,27 @@ public class BuildGcsUploadReport extends AbstractGcsUploadReport {
    * @param bucket
    *          the directory location in the cloud
    */
-  public void addUpload(String relativePath, BucketPath bucket) {
+  public synchronized void addUpload(String relativePath, BucketPath bucket) {
     files.add(bucket.getPath() + "/" + relativePath);
   }
 
+  /**
+   * @param relativePath
+   *          the relative path (to the workspace) of the archived file.
+   * @param archiveName
+   *          the name of the archive that the file was uploaded in.
+   * @param bucket
+   *          the directory location in the cloud
+   */
+  public synchronized void addArchiveMember(String relativePath,
+      String archiveName, BucketPath bucket) {
+    if (archivedFiles == null) {
+      archivedFiles = Maps.newHashMap();
+    }
+    archivedFiles.put(bucket.getPath() + "/" + relativePath,
+        bucket.getPath() + "/" + archiveName);
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -119,6 +141,17 @@ public class BuildGcsUploadReport extends AbstractGcsUploadReport {
     return Collections.unmodifiableSet(files);
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getArchivedObjects() {
+    if (archivedFiles == null) {
+      return Collections.emptyMap();
+    }
+    return Collections.unmodifiableMap(archivedFiles);
+  }
+
 
   /**
    * {@inheritDoc}
@@ -15,8 +15,10 @@
  */
 package com.google.jenkins.plugins.storage.reports;
 
+import java.util.Map;
 import java.util.Set;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 import hudson.model.AbstractProject;
@@ -66,6 +68,16 @@ public class ProjectGcsUploadReport extends AbstractGcsUploadReport {
                          : links.getStorageObjects();
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Map<String, String> getArchivedObjects() {
+    BuildGcsUploadReport links = BuildGcsUploadReport.of(getProject());
+    return links == null ? ImmutableMap.<String, String>of()
+                         : links.getArchivedObjects();
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.jenkins.plugins.storage.Messages;
+
+/**
+ * A tar archive of many files, produced as it is read, so that they can be
+ * uploaded as a single object without a temporary archive.
+ *
+ * The archive is laid out so that each file can later be fetched on its own
+ * with a ranged read, at the offset and length that {@link #getIndex}
+ * reports for it.  When compressed, every header and every file is deflated
+ * as a separate gzip member, which concatenate into a valid {@code .tar.gz},
+ * and the range of a file is a complete gzip stream of its content.
+ *
+ * Reading it again produces the very same bytes, as retries expect.  The
+ * offsets are recorded as the archive is read, so this is not thread-safe.
+ */
+public class ArchiveByteSource extends ByteSource {
+
+  /**
+   * A file to include in the archive.
+   */
+  public static class Member {
+    /**
+     * @param name The path of the file within the archive.
+     * @param content The content of the file.
+     * @param size The number of bytes of {@code content} to archive.
+     * @param lastModified The modification time of the file, in
+     * milliseconds since the epoch.
+     */
+    public Member(String name, ByteSource content, long size,
+        long lastModified) {
+      this(name, content, size, lastModified, false /* executable */);
+    }
+
+    /**
+     * @param executable Whether the file is executable, which archives it
+     * with execute permission.
+     */
+    public Member(String name, ByteSource content, long size,
+        long lastModified, boolean executable) {
+      checkArgument(!name.isEmpty());
+      checkArgument(size >= 0);
+      this.name = name;
+      this.content = checkNotNull(content);
+      this.size = size;
+      this.lastModified = lastModified;
+      this.executable = executable;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    private final String name;
+    private final ByteSource content;
+    private final long size;
+    private final long lastModified;
+    private final boolean executable;
+  }
+
+  /**
+   * @param members The files to archive, in order.
+   * @param compressed Whether to compress the archive with gzip.
+   */
+  public ArchiveByteSource(List<Member> members, boolean compressed) {
+    this.members = ImmutableList.copyOf(members);
+    this.compressed = compressed;
+
+    // Each member has a header segment, which also pads the previous
+    // member's content, and a content segment.  The last segment pads the
+    // last member and ends the archive.
+    List<ByteSource> segments = Lists.newArrayList();
+    for (int i = 0; i < this.members.size(); i++) {
+      segments.add(new HeaderSource(i));
+      segments.add(new ContentSource(this.members.get(i)));
+    }
+    segments.add(new HeaderSource(this.members.size()));
+    this.segments = ImmutableList.copyOf(segments);
+    this.lengths = new long[segments.size()];
+    Arrays.fill(lengths, -1);
+  }
+
+  /**
+   * The number of bytes in the archive, or
+   * {@link ResumableUpload#UNKNOWN_LENGTH} when it is compressed, since
+   * that is only known once it has been read.
+   */
+  public long getLength() throws IOException {
+    if (compressed) {
+      return ResumableUpload.UNKNOWN_LENGTH;
+    }
+    long length = 0;
+    for (int i = 0; i < members.size(); i++) {
+      length += header(i).length + members.get(i).size;
+    }
+    return length + header(members.size()).length;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputStream openStream() throws IOException {
+    return new ArchiveStream();
+  }
+
+  /**
+   * Whether the archive has been read to its end, so that the offsets of
+   * its members are known.
+   */
+  public boolean isComplete() {
+    for (long length : lengths) {
+      if (length < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The index of the archive, with a line per member that has the offset
+   * and length of its content within the archive and its name, separated
+   * by tabs.
+   *
+   * @throws IllegalStateException if the archive has not been read yet.
+   */
+  public String getIndex() {
+    checkState(isComplete());
+    StringBuilder index = new StringBuilder();
+    long offset = 0;
+    for (int i = 0; i < members.size(); i++) {
+      offset += lengths[2 * i];
+      long length = lengths[2 * i + 1];
+      index.append(offset).append('\t')
+          .append(length).append('\t')
+          .append(members.get(i).name).append('\n');
+      offset += length;
+    }
+    return index.toString();
+  }
+
+  /**
+   * The bytes of the header segment {@code i}: the padding of the content
+   * of the previous member, followed by the tar header of member
+   * {@code i}, or by the end of the archive after the last member.
+   */
+  private byte[] header(int i) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (i > 0) {
+      out.write(new byte[padding(members.get(i - 1).size)]);
+    }
+    if (i < members.size()) {
+      writeHeader(out, members.get(i));
+    } else {
+      out.write(new byte[2 * BLOCK_SIZE]);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes a ustar header for the given member, preceded by a pax extended
+   * header when its name or size does not fit.
+   */
+  private static void writeHeader(ByteArrayOutputStream out, Member member)
+      throws IOException {
+    byte[] name = member.name.getBytes(Charsets.UTF_8);
+    int split = splitName(name);
+    boolean largeSize = member.size > MAX_USTAR_SIZE;
+    if (split < 0 || largeSize) {
+      StringBuilder records = new StringBuilder();
+      if (split < 0) {
+        records.append(paxRecord("path", member.name));
+      }
+      if (largeSize) {
+        records.append(paxRecord("size", Long.toString(member.size)));
+      }
+      byte[] data = records.toString().getBytes(Charsets.UTF_8);
+      out.write(ustarHeader(PAX_NAME, 0, data.length, member.lastModified,
+          FILE_MODE, PAX_TYPE));
+      out.write(data);
+      out.write(new byte[padding(data.length)]);
+      if (split < 0) {
+        // Keep what fits, for readers that ignore pax headers.
+        name = Arrays.copyOf(name, NAME_LENGTH);
+        split = 0;
+      }
+    }
+    out.write(ustarHeader(name, split, largeSize ? 0 : member.size,
+        member.lastModified, member.executable ? EXECUTABLE_MODE : FILE_MODE,
+        FILE_TYPE));
+  }
+
+  /**
+   * The position of the slash at which the name is split between the
+   * prefix and name fields of a ustar header, 0 if it fits in the name
+   * field, or -1 if it does not fit.
+   */
+  private static int splitName(byte[] name) {
+    if (name.length <= NAME_LENGTH) {
+      return 0;
+    }
+    int last = Math.min(PREFIX_LENGTH, name.length - 2);
+    for (int i = name.length - NAME_LENGTH - 1; i <= last; i++) {
+      if (name[i] == '/') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * A pax extended header record, which starts with its own length.
+   */
+  private static String paxRecord(String key, String value) {
+    int length = key.getBytes(Charsets.UTF_8).length
+        + value.getBytes(Charsets.UTF_8).length + 3;
+    int digits = Integer.toString(length).length();
+    if (Integer.toString(length + digits).length() > digits) {
+      digits++;
+    }
+    return (length + digits) + " " + key + "=" + value + "\n";
+  }
+
+  private static byte[] ustarHeader(byte[] name, int split, long size,
+      long lastModified, long mode, byte type) {
+    byte[] header = new byte[BLOCK_SIZE];
+    if (split > 0) {
+      System.arraycopy(name, split + 1, header, 0, name.length - split - 1);
+      System.arraycopy(name, 0, header, PREFIX_OFFSET, split);
+    } else {
+      System.arraycopy(name, 0, header, 0, name.length);
+    }
+    writeOctal(header, MODE_OFFSET, 8, mode);
+    writeOctal(header, UID_OFFSET, 8, 0);
+    writeOctal(header, GID_OFFSET, 8, 0);
+    writeOctal(header, SIZE_OFFSET, 12, size);
+    writeOctal(header, MTIME_OFFSET, 12, Math.max(0, lastModified / 1000));
+    header[TYPE_OFFSET] = type;
+    System.arraycopy(USTAR_MAGIC, 0, header, MAGIC_OFFSET,
+        USTAR_MAGIC.length);
+
+    // The checksum is computed with its own field filled with spaces.
+    Arrays.fill(header, CHECKSUM_OFFSET, CHECKSUM_OFFSET + 8, (byte) ' ');
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xff;
+    }
+    writeOctal(header, CHECKSUM_OFFSET, 7, checksum);
+    return header;
+  }
+
+  // Writes value as zero-padded octal digits that fill the field but for
+  // its terminating NUL.
+  private static void writeOctal(byte[] header, int offset, int length,
+      long value) {
+    String digits = Long.toOctalString(value);
+    int start = offset + length - 1 - digits.length();
+    Arrays.fill(header, offset, start, (byte) '0');
+    for (int i = 0; i < digits.length(); i++) {
+      header[start + i] = (byte) digits.charAt(i);
+    }
+    header[offset + length - 1] = 0;
+  }
+
+  private static int padding(long size) {
+    return (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+  }
+
+  /**
+   * Produces the bytes of a header segment when it is opened, so that the
+   * headers of many members are not all held at once.
+   */
+  private class HeaderSource extends ByteSource {
+    public HeaderSource(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+      return ByteStreams.asByteSource(header(index)).openStream();
+    }
+
+    private final int index;
+  }
+
+  /**
+   * The content of a member, which fails if the file has become shorter
+   * than the size in its header.
+   */
+  private static class ContentSource extends ByteSource {
+    public ContentSource(Member member) {
+      this.member = member;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+      final InputStream stream =
+          ByteStreams.limit(member.content.openStream(), member.size);
+      return new InputStream() {
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+          int b = stream.read();
+          if (b < 0) {
+            checkEnd();
+          } else {
+            position++;
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int count = stream.read(b, off, len);
+          if (count < 0) {
+            checkEnd();
+          } else {
+            position += count;
+          }
+          return count;
+        }
+
+        private void checkEnd() throws IOException {
+          if (position < member.size) {
+            throw new IOException(Messages.ArchiveByteSource_Truncated(
+                member.name, member.size));
+          }
+        }
+
+        @Override
+        public void close() throws IOException {
+          stream.close();
+        }
+      };
+    }
+
+    private final Member member;
+  }
+
+  /**
+   * Reads the segments one after the other, compressing each of them when
+   * the archive is compressed, and records their lengths as it reaches
+   * their ends.
+   */
+  private class ArchiveStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (segment < segments.size()) {
+        if (current == null) {
+          ByteSource source = segments.get(segment);
+          current = (compressed ? new GzipByteSource(source) : source)
+              .openStream();
+          position = 0;
+        }
+        int count = current.read(b, off, len);
+        if (count >= 0) {
+          position += count;
+          return count;
+        }
+        current.close();
+        current = null;
+        lengths[segment++] = position;
+      }
+      return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (current != null) {
+        current.close();
+      }
+    }
+
+    private int segment;
+    private InputStream current;
+    private long position;
+  }
+
+  private static final int BLOCK_SIZE = 512;
+  private static final int NAME_LENGTH = 100;
+  private static final int PREFIX_LENGTH = 155;
+  private static final long MAX_USTAR_SIZE = 077777777777L;
+  private static final long FILE_MODE = 0644;
+  private static final long EXECUTABLE_MODE = 0755;
+
+  private static final int MODE_OFFSET = 100;
+  private static final int UID_OFFSET = 108;
+  private static final int GID_OFFSET = 116;
+  private static final int SIZE_OFFSET = 124;
+  private static final int MTIME_OFFSET = 136;
+  private static final int CHECKSUM_OFFSET = 148;
+  private static final int TYPE_OFFSET = 156;
+  private static final int MAGIC_OFFSET = 257;
+  private static final int PREFIX_OFFSET = 345;
+
+  // "ustar" and its NUL, followed by the version "00".
+  private static final byte[] USTAR_MAGIC =
+      {'u', 's', 't', 'a', 'r', 0, '0', '0'};
+  private static final byte FILE_TYPE = '0';
+  private static final byte PAX_TYPE = 'x';
+  private static final byte[] PAX_NAME =
+      "PaxHeader".getBytes(Charsets.UTF_8);
+
+  private final List<Member> members;
+  private final boolean compressed;
+  private final List<ByteSource> segments;
+  private final long[] lengths;
+}
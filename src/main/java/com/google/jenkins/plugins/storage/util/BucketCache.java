@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import static com.google.api.client.http.HttpStatusCodes
+    .STATUS_CODE_NOT_MODIFIED;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.ObjectAccessControl;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.jenkins.plugins.util.Executor;
+import com.google.jenkins.plugins.util.ExecutorException;
+import com.google.jenkins.plugins.util.ForbiddenException;
+import com.google.jenkins.plugins.util.NotFoundException;
+
+/**
+ * Keeps the buckets that uploads have resolved, so that every upload of
+ * every build on this JVM does not fetch the full metadata of its bucket
+ * again.  Only the name, default object ACL and metageneration of each
+ * bucket are kept, keyed by the credentials that fetched it.
+ *
+ * Once an entry is older than the time to live it is revalidated, with a
+ * request that only returns the bucket if its metageneration changed, i.e.
+ * if its metadata was updated since.  An entry is dropped when the bucket
+ * turns out to be missing or forbidden.
+ */
+public class BucketCache {
+
+  /**
+   * The cache shared by all uploads on this JVM.
+   */
+  public static BucketCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param ticker The source of the time at which entries are fetched.
+   */
+  BucketCache(Ticker ticker) {
+    this.ticker = checkNotNull(ticker);
+  }
+
+  /**
+   * Returns the cached bucket, after revalidating it if it is older than
+   * {@code ttlSeconds}.
+   *
+   * @return the bucket, or null if it should be fetched (or created) anew.
+   * @throws ForbiddenException if the credentials may no longer access the
+   * bucket.
+   */
+  @Nullable
+  public Bucket get(Executor executor, Storage service,
+      String credentialsId, String bucketName, long ttlSeconds)
+      throws IOException, ExecutorException {
+    String key = getKey(credentialsId, bucketName);
+    Entry entry = cache.getIfPresent(key);
+    if (entry == null) {
+      return null;
+    }
+    if (ticker.read() - entry.fetched < TimeUnit.SECONDS.toNanos(ttlSeconds)) {
+      return entry.bucket.clone();
+    }
+
+    try {
+      return put(credentialsId, executor.execute(service.buckets()
+          .get(bucketName)
+          .setProjection("full") // to retrieve the bucket ACLs
+          .setIfMetagenerationNotMatch(entry.bucket.getMetageneration())));
+    } catch (HttpResponseException e) {
+      if (e.getStatusCode() != STATUS_CODE_NOT_MODIFIED) {
+        throw e;
+      }
+      cache.put(key, new Entry(entry.bucket, ticker.read()));
+      return entry.bucket.clone();
+    } catch (NotFoundException e) {
+      invalidate(credentialsId, bucketName);
+      return null;
+    } catch (ForbiddenException e) {
+      invalidate(credentialsId, bucketName);
+      throw e;
+    }
+  }
+
+  /**
+   * Caches a bucket that was just fetched or created.
+   *
+   * @return the given bucket, for convenience.
+   */
+  public Bucket put(String credentialsId, Bucket bucket) {
+    // Copy the ACL into a list that the cached bucket can be cloned with.
+    List<ObjectAccessControl> acl = bucket.getDefaultObjectAcl() == null
+        ? null : Lists.newArrayList(bucket.getDefaultObjectAcl());
+    Bucket kept = new Bucket()
+        .setName(bucket.getName())
+        .setDefaultObjectAcl(acl)
+        .setMetageneration(bucket.getMetageneration());
+    cache.put(getKey(credentialsId, bucket.getName()),
+        new Entry(kept, ticker.read()));
+    return bucket;
+  }
+
+  /**
+   * Drops the cached bucket, e.g. because requests to it were rejected.
+   */
+  public void invalidate(String credentialsId, String bucketName) {
+    cache.invalidate(getKey(credentialsId, bucketName));
+  }
+
+  private static String getKey(String credentialsId, String bucketName) {
+    // Bucket names cannot contain slashes.
+    return credentialsId + "/" + bucketName;
+  }
+
+  /**
+   * A cached bucket, and when it was last known to be current.
+   */
+  private static class Entry {
+    public Entry(Bucket bucket, long fetched) {
+      this.bucket = bucket;
+      this.fetched = fetched;
+    }
+
+    public final Bucket bucket;
+    public final long fetched;
+  }
+
+  // Plenty for the buckets that a single Jenkins uploads to.
+  private static final int MAX_ENTRIES = 1000;
+
+  private static final BucketCache INSTANCE =
+      new BucketCache(Ticker.systemTicker());
+
+  private final Ticker ticker;
+  private final Cache<String, Entry> cache = CacheBuilder.newBuilder()
+      .maximumSize(MAX_ENTRIES)
+      .build();
+}
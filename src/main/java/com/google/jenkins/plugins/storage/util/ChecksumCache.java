@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.jenkins.plugins.storage.Messages;
+
+/**
+ * Remembers the checksums of local files, so that the files that a download
+ * finds unchanged since the last build need not be read again to compare
+ * them with their object.
+ *
+ * A checksum is reused as long as the size and modification time of its
+ * file are those it was computed for.  The cache is kept in a file of its
+ * own, of which only the entries used since it was loaded are saved, so
+ * that files that are no longer downloaded drop out of it.
+ */
+public class ChecksumCache {
+
+  /**
+   * Loads the cache that was saved in the given file, if any.
+   *
+   * @param file Where the cache is kept, or null for a cache that is not
+   * kept beyond this object.
+   */
+  public static ChecksumCache load(@Nullable File file) {
+    ChecksumCache cache = new ChecksumCache(file);
+    if (file == null || !file.isFile()) {
+      return cache;
+    }
+    try {
+      for (String line : Files.readLines(file, Charsets.UTF_8)) {
+        List<String> fields = ImmutableList.copyOf(
+            Splitter.on('\t').limit(5).split(line));
+        if (fields.size() != 5) {
+          continue;
+        }
+        try {
+          cache.saved.put(fields.get(4), new Entry(
+              Long.parseLong(fields.get(2)), Long.parseLong(fields.get(3)),
+              decode(fields.get(0)), decode(fields.get(1))));
+        } catch (NumberFormatException e) {
+          // Skip what we did not write.
+        }
+      }
+    } catch (IOException e) {
+      // The cache only saves work, so start over without it.
+    }
+    return cache;
+  }
+
+  private ChecksumCache(@Nullable File file) {
+    this.file = file;
+  }
+
+  /**
+   * Whether the given local file has the given size and checksum, comparing
+   * the CRC32C if there is one, and else the MD5 hash.
+   */
+  public boolean matches(File local, long size, @Nullable String crc32c,
+      @Nullable String md5Hash) throws IOException {
+    if (size < 0 || !local.isFile() || local.length() != size) {
+      return false;
+    }
+    if (crc32c != null) {
+      return crc32c.equals(getEntry(local, true).crc32c);
+    }
+    if (md5Hash != null) {
+      return md5Hash.equals(getEntry(local, false).md5Hash);
+    }
+    return false;
+  }
+
+  /**
+   * Records the checksums of a file whose content is known, e.g. because
+   * it was just downloaded from an object with these checksums.
+   */
+  public void put(File local, @Nullable String crc32c,
+      @Nullable String md5Hash) {
+    used.put(local.getPath(), new Entry(local.length(), local.lastModified(),
+        crc32c, md5Hash));
+  }
+
+  /**
+   * Saves the entries used since the cache was loaded.
+   */
+  public void save() throws IOException {
+    if (file == null) {
+      return;
+    }
+    Files.createParentDirs(file);
+    File temp = new File(file.getPath() + ".tmp");
+    Writer out = Files.newWriter(temp, Charsets.UTF_8);
+    try {
+      for (Map.Entry<String, Entry> entry : used.entrySet()) {
+        Entry value = entry.getValue();
+        out.write(encode(value.crc32c) + "\t" + encode(value.md5Hash) + "\t"
+            + value.size + "\t" + value.lastModified + "\t"
+            + entry.getKey() + "\n");
+      }
+    } finally {
+      out.close();
+    }
+    // Renaming does not replace an existing file everywhere.
+    file.delete();
+    if (!temp.renameTo(file)) {
+      throw new IOException(
+          Messages.ChecksumCache_RenameFailed(temp, file));
+    }
+  }
+
+  /**
+   * Returns the checksums of the file, computing the requested one unless
+   * it is cached for the current size and modification time of the file.
+   */
+  private Entry getEntry(File local, boolean crc32c) throws IOException {
+    String key = local.getPath();
+    long size = local.length();
+    long lastModified = local.lastModified();
+
+    Entry entry = used.get(key);
+    if (entry == null) {
+      entry = saved.get(key);
+    }
+    if (entry == null || entry.size != size
+        || entry.lastModified != lastModified) {
+      entry = new Entry(size, lastModified, null, null);
+    }
+    if (crc32c && entry.crc32c == null) {
+      entry = new Entry(size, lastModified,
+          StorageUtil.computeCrc32c(Files.asByteSource(local)),
+          entry.md5Hash);
+    } else if (!crc32c && entry.md5Hash == null) {
+      entry = new Entry(size, lastModified, entry.crc32c,
+          StorageUtil.computeMd5(Files.asByteSource(local)));
+    }
+    used.put(key, entry);
+    return entry;
+  }
+
+  private static String encode(@Nullable String checksum) {
+    return checksum == null ? NONE : checksum;
+  }
+
+  @Nullable
+  private static String decode(String field) {
+    return NONE.equals(field) ? null : field;
+  }
+
+  /**
+   * The checksums of a file of the given size and modification time.
+   */
+  private static class Entry {
+    public Entry(long size, long lastModified, @Nullable String crc32c,
+        @Nullable String md5Hash) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.crc32c = crc32c;
+      this.md5Hash = md5Hash;
+    }
+
+    public final long size;
+    public final long lastModified;
+    public final String crc32c;
+    public final String md5Hash;
+  }
+
+  // Stands for a checksum that was not computed, which base64 cannot be.
+  private static final String NONE = "-";
+
+  private final File file;
+  private final Map<String, Entry> saved = Maps.newHashMap();
+  private final ConcurrentMap<String, Entry> used = Maps.newConcurrentMap();
+}
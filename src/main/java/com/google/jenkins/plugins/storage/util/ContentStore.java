@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.api.client.http.HttpStatusCodes
+    .STATUS_CODE_NOT_FOUND;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import hudson.FilePath;
+
+/**
+ * Stores files once each, as objects named by the SHA-256 of their content,
+ * so that the identical files of many builds share a single object.  What
+ * a build uploaded is recorded by a manifest, which maps the paths of its
+ * files to the hashes of their content.
+ *
+ * Whether the objects for the hashes of a build exist is asked with batch
+ * requests, each of which carries up to {@link #MAX_BATCH_SIZE} lookups, so
+ * that a build of many files that are all stored already costs only a few
+ * requests.
+ */
+public class ContentStore {
+
+  /**
+   * The most requests that a single batch request carries.
+   */
+  public static final int MAX_BATCH_SIZE = 100;
+
+  /**
+   * The endpoint for batches of requests to the given service, e.g.
+   * {@code https://www.googleapis.com/batch/storage/v1} for the default
+   * root URL.
+   */
+  public static GenericUrl getBatchUrl(Storage service) {
+    return new GenericUrl(service.getRootUrl() + "batch/"
+        + CharMatcher.is('/').trimTrailingFrom(service.getServicePath()));
+  }
+
+  /**
+   * The failure of a request of a batch, as it would have been thrown had
+   * the request been sent on its own, so that e.g. a 401 lets the caller
+   * refresh its credentials.
+   */
+  public static HttpResponseException toException(GoogleJsonError error,
+      HttpHeaders responseHeaders) {
+    return new HttpResponseException.Builder(error.getCode(),
+        error.getMessage(), responseHeaders)
+        .setMessage(error.getCode() + " " + error.getMessage())
+        .build();
+  }
+
+  /**
+   * The name of the object that holds the given content.
+   *
+   * @param storePath The path of the store within its bucket, or empty for
+   * its root.
+   * @param hash The hexadecimal SHA-256 of the content.
+   */
+  public static String getObjectName(String storePath, String hash) {
+    if (storePath.isEmpty()) {
+      return hash;
+    }
+    return storePath.endsWith("/") ? storePath + hash : storePath + "/" + hash;
+  }
+
+  /**
+   * Computes the SHA-256 of the given files, reading up to
+   * {@code parallelism} of them concurrently.
+   *
+   * @param files The files to hash, by any key.
+   * @return the hexadecimal hashes, by the key of their file.
+   */
+  public static <K> Map<K, String> hashFiles(Map<K, FilePath> files,
+      int parallelism) throws IOException, InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(
+        Math.max(1, parallelism),
+        new ThreadFactoryBuilder()
+            .setNameFormat(ContentStore.class.getSimpleName() + "-%d")
+            .setDaemon(true)
+            .build());
+    try {
+      Map<K, Future<String>> hashes = Maps.newLinkedHashMap();
+      for (Map.Entry<K, FilePath> entry : files.entrySet()) {
+        final FilePath file = entry.getValue();
+        hashes.put(entry.getKey(), pool.submit(new Callable<String>() {
+          @Override
+          public String call() throws IOException {
+            return StorageUtil.asByteSource(file).hash(Hashing.sha256())
+                .toString();
+          }
+        }));
+      }
+
+      Map<K, String> result = Maps.newLinkedHashMap();
+      for (Map.Entry<K, Future<String>> hash : hashes.entrySet()) {
+        try {
+          result.put(hash.getKey(), hash.getValue().get());
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IOException(e.getCause());
+        }
+      }
+      return result;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Asks which of the given objects exist, with batches of up to
+   * {@link #MAX_BATCH_SIZE} requests for their names only.  Only a 404
+   * means that an object is missing; the first other failure of a batch is
+   * thrown once the batch is done.
+   *
+   * @return the names of the objects that exist.
+   */
+  public static Set<String> findExisting(Storage service, String bucket,
+      Collection<String> names) throws IOException {
+    final Set<String> existing = Sets.newHashSet();
+    final List<HttpResponseException> failures = Lists.newArrayList();
+    for (List<String> chunk : Iterables.partition(names, MAX_BATCH_SIZE)) {
+      BatchRequest batch = service.batch();
+      batch.setBatchUrl(getBatchUrl(service));
+      for (final String name : chunk) {
+        service.objects().get(bucket, name)
+            .setFields("name")
+            .queue(batch, new JsonBatchCallback<StorageObject>() {
+              @Override
+              public void onSuccess(StorageObject object,
+                  HttpHeaders responseHeaders) {
+                existing.add(name);
+              }
+
+              @Override
+              public void onFailure(GoogleJsonError error,
+                  HttpHeaders responseHeaders) {
+                if (error.getCode() != STATUS_CODE_NOT_FOUND) {
+                  failures.add(toException(error, responseHeaders));
+                }
+              }
+            });
+      }
+      batch.execute();
+      if (!failures.isEmpty()) {
+        throw failures.get(0);
+      }
+    }
+    return existing;
+  }
+
+  /**
+   * The manifest of the given files, a line of "hash  path" for each, as
+   * {@code sha256sum} prints and checks them.
+   *
+   * @param hashes The hexadecimal SHA-256 of each file, by its path.
+   */
+  public static String getManifest(SortedMap<String, String> hashes) {
+    StringBuilder manifest = new StringBuilder();
+    for (Map.Entry<String, String> entry : hashes.entrySet()) {
+      manifest.append(entry.getValue()).append("  ")
+          .append(entry.getKey()).append('\n');
+    }
+    return manifest.toString();
+  }
+}
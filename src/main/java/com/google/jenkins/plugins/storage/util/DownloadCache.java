@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+
+/**
+ * A cache of downloaded objects, shared by the builds of a machine, so that
+ * an object that was downloaded once is not transferred again.  Entries are
+ * keyed by what identifies the content of an object, i.e. its bucket, name
+ * and generation, and only hold content that was verified against it.
+ *
+ * Files are taken from the cache as hard links to its entries, or copies
+ * where the file system cannot link them.  Entries are read-only, which
+ * their links share, so that a build cannot change the cache by writing to
+ * a file it downloaded.
+ *
+ * Builds share the cache without locks: entries are written under a
+ * temporary name and renamed into place whole, and an entry that is
+ * evicted while a build takes it is a miss.  The least recently used
+ * entries are evicted when the cache grows beyond its size.
+ */
+public class DownloadCache {
+
+  /**
+   * @param dir The directory that holds the cache, which need not exist.
+   */
+  public DownloadCache(File dir) {
+    this.objects = new File(dir, "objects");
+    this.temp = new File(dir, "tmp");
+  }
+
+  /**
+   * The key of the given generation of an object.
+   *
+   * @param variant Distinguishes the forms an object may be written in,
+   * e.g. compressed or not, or empty.
+   */
+  public static String keyOf(String bucket, String name, long generation,
+      String variant) {
+    return bucket + "\n" + name + "\n" + generation + "\n" + variant;
+  }
+
+  /**
+   * Replaces the given file with the cached content for the key, if any.
+   *
+   * @param size The size the content must have, or -1 if it is not known.
+   * @return whether the file now holds the cached content.
+   */
+  public boolean fetch(String key, long size, File target)
+      throws IOException {
+    File entry = entryFor(key);
+    if (!entry.isFile() || (size >= 0 && entry.length() != size)) {
+      return false;
+    }
+    // Record the use, for eviction.
+    entry.setLastModified(System.currentTimeMillis());
+    try {
+      place(entry, target);
+    } catch (IOException e) {
+      // E.g. the entry was evicted after we found it.
+      if (!entry.isFile()) {
+        return false;
+      }
+      throw e;
+    }
+    return true;
+  }
+
+  /**
+   * Adds the content of the given file, which was downloaded for the key,
+   * to the cache.  The file becomes read-only if it is linked to the cache.
+   */
+  public void put(String key, File source) throws IOException {
+    File entry = entryFor(key);
+    if (entry.isFile()) {
+      return;
+    }
+    entry.getParentFile().mkdirs();
+    temp.mkdirs();
+    File staged = new File(temp, UUID.randomUUID().toString());
+    try {
+      linkOrCopy(source, staged);
+      staged.setWritable(false, false);
+      move(staged, entry);
+    } finally {
+      staged.delete();
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the cache holds at most
+   * the given number of bytes, along with what failed puts left behind.
+   */
+  public void evict(long maxBytes) {
+    List<Entry> entries = Lists.newArrayList();
+    long total = 0;
+    for (File subdirectory : list(objects)) {
+      for (File file : list(subdirectory)) {
+        Entry entry = new Entry(file);
+        entries.add(entry);
+        total += entry.length;
+      }
+    }
+    if (total > maxBytes) {
+      Collections.sort(entries, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+          return Long.compare(a.lastModified, b.lastModified);
+        }
+      });
+      for (Entry entry : entries) {
+        if (total <= maxBytes) {
+          break;
+        }
+        if (entry.file.delete()) {
+          total -= entry.length;
+        }
+      }
+    }
+    long stale = System.currentTimeMillis() - STALE_MILLIS;
+    for (File staged : list(temp)) {
+      if (staged.lastModified() < stale) {
+        staged.delete();
+      }
+    }
+  }
+
+  /**
+   * An entry as it was when the cache was scanned for eviction, since
+   * other builds may use it meanwhile.
+   */
+  private static class Entry {
+    public Entry(File file) {
+      this.file = file;
+      this.length = file.length();
+      this.lastModified = file.lastModified();
+    }
+
+    public final File file;
+    public final long length;
+    public final long lastModified;
+  }
+
+  /**
+   * Links or copies the entry to a temporary file beside the target, and
+   * renames it over the target, so that the target is replaced rather than
+   * written to, which would change the files it is linked to.
+   */
+  private void place(File entry, File target) throws IOException {
+    File parent = target.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+    File staged = new File(parent,
+        "." + target.getName() + "." + UUID.randomUUID() + ".tmp");
+    try {
+      linkOrCopy(entry, staged);
+      move(staged, target);
+    } finally {
+      staged.delete();
+    }
+  }
+
+  private static void linkOrCopy(File source, File target)
+      throws IOException {
+    try {
+      Files.createLink(target.toPath(), source.toPath());
+    } catch (UnsupportedOperationException e) {
+      copy(source, target);
+    } catch (FileSystemException e) {
+      // E.g. the files are on different file systems.
+      if (!source.isFile()) {
+        throw e;
+      }
+      copy(source, target);
+    }
+  }
+
+  private static void copy(File source, File target) throws IOException {
+    Files.copy(source.toPath(), target.toPath());
+    // A copy is not shared, so it need not be read-only like its source.
+    target.setWritable(true);
+  }
+
+  private static void move(File source, File target) throws IOException {
+    Path from = source.toPath();
+    Path to = target.toPath();
+    try {
+      Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // Not all file systems rename over an existing file.
+      Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * The file that holds the entry of the key, which is named after a hash
+   * of it and spread over subdirectories to keep them small.
+   */
+  private File entryFor(String key) {
+    String hash = Hashing.sha256().hashString(key, Charsets.UTF_8)
+        .toString();
+    return new File(new File(objects, hash.substring(0, 2)), hash);
+  }
+
+  private static File[] list(File dir) {
+    File[] files = dir.listFiles();
+    return files == null ? new File[0] : files;
+  }
+
+  // How old what a failed put left behind must be to be deleted, so that
+  // the puts of other builds are left alone.
+  private static final long STALE_MILLIS = 24 * 60 * 60 * 1000L;
+
+  private final File objects;
+  private final File temp;
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes to a file channel from a given position on, through a large
+ * buffer that is written with a single positional write once full.
+ * Downloads receive their content in reads of a few kilobytes, which this
+ * turns into few, large writes, without the native buffer that
+ * {@link java.io.FileOutputStream} allocates for each of them.  Several
+ * streams may write different ranges of the same channel concurrently.
+ *
+ * Buffers are pooled across streams, since a download writes many files.
+ * They are heap arrays: what is written arrives in arrays, and the channel
+ * copies each buffer once into a direct buffer that the JVM caches per
+ * thread, so a direct buffer of our own would only add a copy.
+ *
+ * Subclasses may override {@link #afterWrite} to see the bytes once they
+ * are in the file, e.g. to hash exactly what was written.  This is not
+ * thread-safe.
+ */
+public class FileChannelOutputStream extends OutputStream {
+
+  /**
+   * @param channel The channel to write to, which the stream does not close.
+   * @param position Where in the file to write the first byte.
+   */
+  public FileChannelOutputStream(FileChannel channel, long position) {
+    this.channel = checkNotNull(channel);
+    this.position = position;
+    byte[] pooled = POOL.poll();
+    this.buffer = pooled == null ? new byte[BUFFER_SIZE] : pooled;
+  }
+
+  /**
+   * Where in the file the bytes written so far end, which only counts the
+   * bytes that are in the file rather than in the buffer.
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkState(buffer != null, "Stream closed");
+    while (len > 0) {
+      int count = Math.min(len, buffer.length - buffered);
+      System.arraycopy(b, off, buffer, buffered, count);
+      buffered += count;
+      off += count;
+      len -= count;
+      if (buffered == buffer.length) {
+        flush();
+      }
+    }
+  }
+
+  /**
+   * Writes the buffered bytes to the file.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (buffer == null || buffered == 0) {
+      return;
+    }
+    ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, buffered);
+    while (bytes.hasRemaining()) {
+      int count = channel.write(bytes, position);
+      afterWrite(buffer, bytes.position() - count, count);
+      position += count;
+    }
+    buffered = 0;
+  }
+
+  /**
+   * Flushes the stream and returns its buffer to the pool.  The channel is
+   * left open.
+   */
+  @Override
+  public void close() throws IOException {
+    if (buffer == null) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      if (POOL.size() < MAX_POOLED) {
+        POOL.add(buffer);
+      }
+      buffer = null;
+    }
+  }
+
+  /**
+   * Called with the bytes that were just written to the file.
+   */
+  protected void afterWrite(byte[] b, int off, int len) {
+  }
+
+  // Large enough to write a download in few system calls, and small enough
+  // for the JVM to keep the direct buffer it copies each one to.
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  // More than the concurrent writes of a download, by default.
+  private static final int MAX_POOLED = 32;
+
+  private static final Queue<byte[]> POOL =
+      new ConcurrentLinkedQueue<byte[]>();
+
+  private final FileChannel channel;
+  private long position;
+  private byte[] buffer;
+  private int buffered;
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * The gzip compression of some content, produced as it is read, so that
+ * content can be compressed on its way to the service without a temporary
+ * copy.
+ *
+ * Reading it again produces the very same bytes, as retries expect, since
+ * the header carries no timestamp.
+ */
+public class GzipByteSource extends ByteSource {
+
+  /**
+   * The number of bytes at the start of some content that
+   * {@link #isCompressible} compresses to decide.
+   */
+  public static final int SAMPLE_SIZE = 64 * 1024;
+
+  /**
+   * The largest ratio of compressed to original size of the sample for which
+   * compression is deemed worthwhile.
+   */
+  public static final double MAX_COMPRESSION_RATIO = 0.9;
+
+  /**
+   * @param content The content to compress.
+   */
+  public GzipByteSource(ByteSource content) {
+    this.content = checkNotNull(content);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputStream openStream() throws IOException {
+    return new CompressingStream(content.openStream());
+  }
+
+  /**
+   * Whether the start of the given content compresses well enough to be
+   * worth compressing all of it, so that data which is already compressed
+   * (or random) is sent as is.
+   */
+  public static boolean isCompressible(ByteSource content)
+      throws IOException {
+    byte[] sample = new byte[SAMPLE_SIZE];
+    int length;
+    InputStream stream = content.openStream();
+    try {
+      length = ByteStreams.read(stream, sample, 0, sample.length);
+    } finally {
+      Closeables.close(stream, true /* swallowIOException */);
+    }
+    if (length == 0) {
+      return false;
+    }
+
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(sample, 0, length);
+      deflater.finish();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (!deflater.finished()) {
+        deflater.deflate(buffer);
+      }
+      return deflater.getBytesWritten() <= length * MAX_COMPRESSION_RATIO;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Produces the gzip header, the deflated content and the gzip trailer, in
+   * turn, as they are read.
+   */
+  private static class CompressingStream extends InputStream {
+    public CompressingStream(InputStream source) {
+      this.source = source;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (pendingOffset == pendingLength) {
+        if (!fill()) {
+          return -1;
+        }
+      }
+      int count = Math.min(len, pendingLength - pendingOffset);
+      System.arraycopy(pending, pendingOffset, b, off, count);
+      pendingOffset += count;
+      return count;
+    }
+
+    /**
+     * Produces the next bytes to return, which may be none.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+      if (!headerDone) {
+        headerDone = true;
+        setPending(HEADER, HEADER.length);
+        return true;
+      }
+      if (!deflater.finished()) {
+        if (deflater.needsInput()) {
+          int count = source.read(input);
+          if (count < 0) {
+            deflater.finish();
+          } else {
+            crc.update(input, 0, count);
+            deflater.setInput(input, 0, count);
+          }
+        }
+        setPending(output, deflater.deflate(output));
+        return true;
+      }
+      if (!trailerDone) {
+        trailerDone = true;
+        byte[] trailer = new byte[TRAILER_SIZE];
+        writeInt(trailer, 0, crc.getValue());
+        writeInt(trailer, 4, deflater.getBytesRead());
+        setPending(trailer, trailer.length);
+        return true;
+      }
+      return false;
+    }
+
+    private void setPending(byte[] bytes, int length) {
+      pending = bytes;
+      pendingOffset = 0;
+      pendingLength = length;
+    }
+
+    // Writes the low four bytes of value in little-endian order.
+    private static void writeInt(byte[] b, int off, long value) {
+      for (int i = 0; i < 4; i++) {
+        b[off + i] = (byte) (value >>> (8 * i));
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      deflater.end();
+      source.close();
+    }
+
+    private final InputStream source;
+    private final Deflater deflater =
+        new Deflater(Deflater.DEFAULT_COMPRESSION, true /* nowrap */);
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private final byte[] output = new byte[BUFFER_SIZE];
+
+    private byte[] pending;
+    private int pendingOffset;
+    private int pendingLength;
+    private boolean headerDone;
+    private boolean trailerDone;
+  }
+
+  // A gzip member header for deflated data, without a name or modification
+  // time, and an unknown operating system.
+  private static final byte[] HEADER = {
+    0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+  private static final int TRAILER_SIZE = 8;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ByteSource content;
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteSource;
+import com.google.jenkins.plugins.storage.Messages;
+
+/**
+ * Computes the CRC32C and MD5 of content as it is read for an upload, so
+ * that the object the service reports can be verified without reading the
+ * content a second time.
+ *
+ * A retry opens the content again, and may skip the part the service
+ * already has or read some bytes again.  Each byte is hashed only the first
+ * time it is read, so the hashes are those of the content as long as every
+ * byte was read once, in order.  This is not thread-safe: the streams are
+ * expected to be read one after the other.
+ */
+public class HashingByteSource extends ByteSource {
+
+  /**
+   * @param content The content to hash as it is read.
+   * @param length The number of bytes in {@code content}, or
+   * {@link ResumableUpload#UNKNOWN_LENGTH} to rely on reading up to its end.
+   */
+  public HashingByteSource(ByteSource content, long length) {
+    this.content = checkNotNull(content);
+    this.length = length;
+    try {
+      this.md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputStream openStream() throws IOException {
+    return new FilterInputStream(content.openStream()) {
+      private long position;
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          hash(position++, new byte[] {(byte) b}, 0, 1);
+        } else {
+          end(position);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count > 0) {
+          hash(position, b, off, count);
+          position += count;
+        } else if (count < 0) {
+          end(position);
+        }
+        return count;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        position += skipped;
+        return skipped;
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Hashes whatever part of the {@code count} bytes read at {@code position}
+   * has not been hashed yet.
+   */
+  private void hash(long position, byte[] b, int off, int count) {
+    if (position > hashed) {
+      // Bytes were skipped that we never saw, so we cannot vouch for the
+      // content anymore.
+      incomplete = true;
+      return;
+    }
+    long seen = hashed - position;
+    if (seen >= count) {
+      return;
+    }
+    long start = System.nanoTime();
+    crc32c.update(b, off + (int) seen, count - (int) seen);
+    md5.update(b, off + (int) seen, count - (int) seen);
+    hashNanos += System.nanoTime() - start;
+    hashed += count - seen;
+  }
+
+  /**
+   * Notes that the content ends at {@code position}.
+   */
+  private void end(long position) {
+    if (position == hashed) {
+      ended = true;
+    }
+  }
+
+  /**
+   * Whether every byte of the content has been hashed, so that
+   * {@link #getCrc32c} and {@link #getMd5Hash} describe all of it.
+   */
+  public boolean isComplete() {
+    if (incomplete) {
+      return false;
+    }
+    return length == ResumableUpload.UNKNOWN_LENGTH
+        ? ended : hashed == length;
+  }
+
+  /**
+   * The number of bytes hashed so far.
+   */
+  public long getHashedLength() {
+    return hashed;
+  }
+
+  /**
+   * The CRC32C of the content, encoded like {@link StorageObject#getCrc32c}.
+   */
+  public String getCrc32c() {
+    return Crc32c.encode(crc32c.getValue());
+  }
+
+  /**
+   * The MD5 of the content, encoded like {@link StorageObject#getMd5Hash}.
+   */
+  public String getMd5Hash() {
+    try {
+      // Digest a copy, so that this can be asked more than once.
+      return BaseEncoding.base64().encode(
+          ((MessageDigest) md5.clone()).digest());
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The time spent hashing so far, in nanoseconds.
+   */
+  public long getHashNanos() {
+    return hashNanos;
+  }
+
+  /**
+   * Compares the hashes of the content with those that the service reports
+   * for the object it stored.  Nothing is compared unless every byte was
+   * hashed, and only the hashes that the service reports are compared.
+   *
+   * @param object The object returned by the upload.
+   * @throws IOException if the object does not have the content we sent.
+   */
+  public void verify(StorageObject object) throws IOException {
+    if (!isComplete()) {
+      return;
+    }
+    if (object.getCrc32c() != null
+        && !object.getCrc32c().equals(getCrc32c())) {
+      throw new IOException(Messages.HashingByteSource_Mismatch(
+          object.getName(), "CRC32C", object.getCrc32c(), getCrc32c()));
+    }
+    if (object.getMd5Hash() != null
+        && !object.getMd5Hash().equals(getMd5Hash())) {
+      throw new IOException(Messages.HashingByteSource_Mismatch(
+          object.getName(), "MD5", object.getMd5Hash(), getMd5Hash()));
+    }
+  }
+
+  private final ByteSource content;
+  private final long length;
+  private final Crc32c crc32c = new Crc32c();
+  private final MessageDigest md5;
+
+  private long hashed;
+  private boolean incomplete;
+  private boolean ended;
+  private long hashNanos;
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static com.google.api.client.http.HttpStatusCodes
+    .STATUS_CODE_NOT_FOUND;
+import static com.google.api.client.http.HttpStatusCodes
+    .STATUS_CODE_UNAUTHORIZED;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * Mirrors local files under a prefix of a bucket, so that the prefix holds
+ * the files and nothing else: besides the files that are new or changed
+ * being uploaded, the objects under the prefix that no file maps to any
+ * longer are deleted.
+ *
+ * The stale objects are found from the same listing of the prefix that the
+ * changed files are, and deleted with batch requests, each of which carries
+ * up to {@link ContentStore#MAX_BATCH_SIZE} deletions.
+ */
+public class ObjectMirror {
+
+  /**
+   * The objects that were listed under the prefix but that none of the
+   * files is uploaded as.
+   *
+   * @param listed The names of the objects under the prefix.
+   * @param names The names of the objects of the files.
+   * @return the names of the stale objects, in order.
+   */
+  public static SortedSet<String> findStale(Set<String> listed,
+      Set<String> names) {
+    SortedSet<String> stale = new TreeSet<String>(listed);
+    stale.removeAll(names);
+    return stale;
+  }
+
+  /**
+   * Deletes the given objects, with batches of up to
+   * {@link ContentStore#MAX_BATCH_SIZE} requests.  An object that is
+   * already gone counts as deleted.  A deletion refused with a 401 is
+   * thrown once its batch is done, as if it had been sent on its own, so
+   * that the caller can refresh its credentials and delete the rest.
+   *
+   * @return the error of each object that could not be deleted, by name,
+   * in order.
+   */
+  public static SortedMap<String, String> deleteObjects(Storage service,
+      String bucket, Collection<String> names) throws IOException {
+    final SortedMap<String, String> failures = new TreeMap<String, String>();
+    final List<HttpResponseException> unauthorized = Lists.newArrayList();
+    for (List<String> chunk :
+        Iterables.partition(names, ContentStore.MAX_BATCH_SIZE)) {
+      BatchRequest batch = service.batch();
+      batch.setBatchUrl(ContentStore.getBatchUrl(service));
+      for (final String name : chunk) {
+        service.objects().delete(bucket, name)
+            .queue(batch, new JsonBatchCallback<Void>() {
+              @Override
+              public void onSuccess(Void content,
+                  HttpHeaders responseHeaders) {
+                // Deleted.
+              }
+
+              @Override
+              public void onFailure(GoogleJsonError error,
+                  HttpHeaders responseHeaders) {
+                if (error.getCode() == STATUS_CODE_UNAUTHORIZED) {
+                  unauthorized.add(
+                      ContentStore.toException(error, responseHeaders));
+                } else if (error.getCode() != STATUS_CODE_NOT_FOUND) {
+                  failures.put(name, error.getMessage());
+                }
+              }
+            });
+      }
+      batch.execute();
+      if (!unauthorized.isEmpty()) {
+        throw unauthorized.get(0);
+      }
+    }
+    return failures;
+  }
+}
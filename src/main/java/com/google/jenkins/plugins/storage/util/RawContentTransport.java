@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.common.base.Throwables;
+
+/**
+ * Wraps a transport so that a request can ask for the content of its
+ * response exactly as it was sent.  {@link com.google.api.client.http
+ * .HttpResponse} decompresses any response whose {@code Content-Encoding}
+ * is gzip, with no way to turn that off, but the checksums of objects
+ * stored compressed with gzip are of the compressed bytes, which is also
+ * what {@code keepCompressed} downloads want to write.  A request marked
+ * with {@link #requestRawContent} has its response report no content
+ * encoding, so that its content reaches the caller untouched.  The mark
+ * itself is not sent.
+ */
+public class RawContentTransport extends HttpTransport {
+
+  /**
+   * @param delegate The transport that sends the requests.
+   */
+  public RawContentTransport(HttpTransport delegate) {
+    this.delegate = checkNotNull(delegate);
+  }
+
+  /**
+   * Marks a request to have the content of its response left as it was
+   * sent.
+   */
+  public static void requestRawContent(HttpHeaders headers) {
+    headers.set(RAW_CONTENT_HEADER, "true");
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean supportsMethod(String method) throws IOException {
+    return delegate.supportsMethod(method);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void shutdown() throws IOException {
+    delegate.shutdown();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  protected LowLevelHttpRequest buildRequest(String method, String url)
+      throws IOException {
+    return new RawContentRequest(delegateBuildRequest(method, url));
+  }
+
+  /**
+   * Builds the request of the delegate, whose {@code buildRequest} is only
+   * visible to subclasses of its own, e.g. {@link com.google.api.client.http
+   * .javanet.NetHttpTransport}, which cannot be extended.
+   */
+  private LowLevelHttpRequest delegateBuildRequest(String method, String url)
+      throws IOException {
+    try {
+      return (LowLevelHttpRequest) BUILD_REQUEST.invoke(delegate, method, url);
+    } catch (InvocationTargetException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * A request of the delegate, which holds back the mark and leaves the
+   * content encoding out of the response if it saw it.
+   */
+  private static class RawContentRequest extends LowLevelHttpRequest {
+    public RawContentRequest(LowLevelHttpRequest request) {
+      this.request = request;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void addHeader(String name, String value) throws IOException {
+      if (RAW_CONTENT_HEADER.equalsIgnoreCase(name)) {
+        raw = true;
+      } else {
+        request.addHeader(name, value);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setTimeout(int connectTimeout, int readTimeout)
+        throws IOException {
+      request.setTimeout(connectTimeout, readTimeout);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LowLevelHttpResponse execute() throws IOException {
+      request.setContentLength(getContentLength());
+      request.setContentEncoding(getContentEncoding());
+      request.setContentType(getContentType());
+      request.setStreamingContent(getStreamingContent());
+      LowLevelHttpResponse response = request.execute();
+      return raw ? new RawContentResponse(response) : response;
+    }
+
+    private final LowLevelHttpRequest request;
+    private boolean raw;
+  }
+
+  /**
+   * A response of the delegate that reports no content encoding.
+   */
+  private static class RawContentResponse extends LowLevelHttpResponse {
+    public RawContentResponse(LowLevelHttpResponse response) {
+      this.response = response;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public InputStream getContent() throws IOException {
+      return response.getContent();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getContentEncoding() {
+      return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getContentLength() throws IOException {
+      return response.getContentLength();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getContentType() throws IOException {
+      return response.getContentType();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getStatusLine() throws IOException {
+      return response.getStatusLine();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getStatusCode() throws IOException {
+      return response.getStatusCode();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getReasonPhrase() throws IOException {
+      return response.getReasonPhrase();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getHeaderCount() throws IOException {
+      return response.getHeaderCount();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getHeaderName(int index) throws IOException {
+      return response.getHeaderName(index);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getHeaderValue(int index) throws IOException {
+      return response.getHeaderValue(index);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void disconnect() throws IOException {
+      response.disconnect();
+    }
+
+    private final LowLevelHttpResponse response;
+  }
+
+  /**
+   * The header that marks a request, which is never sent.
+   */
+  private static final String RAW_CONTENT_HEADER = "X-Raw-Content";
+
+  private static final Method BUILD_REQUEST;
+  static {
+    try {
+      BUILD_REQUEST = HttpTransport.class.getDeclaredMethod("buildRequest",
+          String.class, String.class);
+      BUILD_REQUEST.setAccessible(true);
+    } catch (NoSuchMethodException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final HttpTransport delegate;
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.jenkins.plugins.storage.Messages;
+
+/**
+ * Uploads an object through a resumable upload session, see:
+ * https://cloud.google.com/storage/docs/json_api/v1/how-tos/resumable-upload
+ *
+ * The session outlives a failed call to {@link #upload}, so that calling it
+ * again asks the service how many bytes it has committed and only sends the
+ * remainder, instead of sending the whole content again.
+ */
+public class ResumableUpload {
+
+  /**
+   * The granularity that the service requires of all but the last chunk.
+   */
+  public static final int CHUNK_GRANULARITY = 256 * 1024;
+
+  /**
+   * The length of content whose size is only known once it has been read,
+   * e.g. because it is compressed as it is sent.
+   */
+  public static final long UNKNOWN_LENGTH = -1;
+
+  /**
+   * Prepares a resumable upload.  No request is made until {@link #upload}.
+   *
+   * @param bucket The bucket to upload the object to.
+   * @param object The metadata of the object to create.
+   * @param content The content of the object, which can be read more than
+   * once.
+   * @param length The number of bytes in {@code content}, or
+   * {@link #UNKNOWN_LENGTH}.
+   * @param chunkSize The number of bytes to send per request, a multiple of
+   * {@link #CHUNK_GRANULARITY}.
+   */
+  public ResumableUpload(String bucket, StorageObject object,
+      ByteSource content, long length, int chunkSize) {
+    checkArgument(chunkSize > 0 && chunkSize % CHUNK_GRANULARITY == 0,
+        "Chunk size must be a positive multiple of %s: %s",
+        CHUNK_GRANULARITY, chunkSize);
+    this.bucket = checkNotNull(bucket);
+    this.object = checkNotNull(object);
+    this.content = checkNotNull(content);
+    this.length = length;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Whether a session has been started, so that {@link #upload} will resume
+   * it rather than start from the beginning.
+   */
+  public boolean isStarted() {
+    return sessionUrl != null;
+  }
+
+  /**
+   * The number of bytes the service had committed as of the last response.
+   */
+  public long getCommittedOffset() {
+    return committed;
+  }
+
+  /**
+   * Starts or resumes the upload, and sends the remaining content.
+   *
+   * @param service The storage service to issue the requests with.
+   * @return the object created by the upload.
+   * @throws IOException if the upload could not be completed, in which case
+   * it may be resumed by calling this again.  Once the upload completes,
+   * calling this again uploads the content anew.
+   */
+  public StorageObject upload(Storage service) throws IOException {
+    StorageObject result;
+    if (sessionUrl == null) {
+      startSession(service);
+    } else {
+      result = queryCommittedOffset(service);
+      if (result != null) {
+        return result;
+      }
+    }
+
+    InputStream stream = content.openStream();
+    boolean threw = true;
+    try {
+      ByteStreams.skipFully(stream, committed);
+
+      // The buffer holds the bytes starting at the committed offset, since
+      // the service may commit only part of a chunk.
+      byte[] buffer = new byte[(int) Math.min(chunkSize, getRemaining())];
+      int buffered = 0;
+      do {
+        int chunk = (int) Math.min(buffer.length, getRemaining());
+        buffered += ByteStreams.read(stream, buffer, buffered,
+            chunk - buffered);
+        long total = length;
+        if (buffered < chunk) {
+          if (length != UNKNOWN_LENGTH) {
+            throw new EOFException(Messages.ResumableUpload_ContentTruncated(
+                object.getName(), committed + buffered, length));
+          }
+          // We found the end of the content, so this is the last chunk.
+          chunk = buffered;
+          total = committed + buffered;
+        }
+
+        long chunkStart = committed;
+        result = putChunk(service, buffer, chunk, total);
+
+        int consumed = (int) (committed - chunkStart);
+        System.arraycopy(buffer, consumed, buffer, 0, chunk - consumed);
+        buffered = chunk - consumed;
+      } while (result == null);
+      threw = false;
+      return result;
+    } finally {
+      Closeables.close(stream, threw);
+    }
+  }
+
+  /**
+   * The number of bytes that remain to be committed, as far as we know.
+   */
+  private long getRemaining() {
+    return length == UNKNOWN_LENGTH ? Long.MAX_VALUE : length - committed;
+  }
+
+  /**
+   * Formats the total length for a Content-Range header.
+   */
+  private static String formatTotal(long total) {
+    return total == UNKNOWN_LENGTH ? "*" : String.valueOf(total);
+  }
+
+  /**
+   * Creates the session, whose URL is then used for all further requests.
+   */
+  private void startSession(Storage service) throws IOException {
+    GenericUrl url = new GenericUrl(service.getRootUrl() + "upload/"
+        + service.getServicePath() + "b/" + bucket + "/o");
+    url.set("uploadType", "resumable");
+
+    HttpRequest request = service.getRequestFactory().buildPostRequest(url,
+        new JsonHttpContent(service.getJsonFactory(), object));
+    request.getHeaders().set("X-Upload-Content-Type", object.getContentType());
+    if (length != UNKNOWN_LENGTH) {
+      request.getHeaders().set("X-Upload-Content-Length", length);
+    }
+
+    HttpResponse response = request.execute();
+    try {
+      String location = response.getHeaders().getLocation();
+      if (location == null) {
+        throw new IOException(
+            Messages.ResumableUpload_NoSession(object.getName()));
+      }
+      sessionUrl = new GenericUrl(location);
+      committed = 0;
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  /**
+   * Asks the service how much of the content it has, after a failure.
+   *
+   * @return the created object, if the service already has all of it.
+   */
+  @Nullable
+  private StorageObject queryCommittedOffset(Storage service)
+      throws IOException {
+    HttpRequest request = service.getRequestFactory()
+        .buildPutRequest(sessionUrl, new EmptyContent());
+    request.getHeaders().setContentRange("bytes */" + formatTotal(length));
+    return execute(service, request);
+  }
+
+  /**
+   * Sends the first {@code count} bytes of {@code buffer} at the committed
+   * offset.  An empty chunk only tells the service the total length.
+   *
+   * @return the created object, if this completed the upload.
+   */
+  @Nullable
+  private StorageObject putChunk(Storage service, byte[] buffer, int count,
+      long total) throws IOException {
+    HttpRequest request = service.getRequestFactory()
+        .buildPutRequest(sessionUrl, new ByteArrayContent(
+            object.getContentType(), buffer, 0, count));
+    if (count == 0) {
+      request.getHeaders().setContentRange("bytes */" + formatTotal(total));
+    } else {
+      request.getHeaders().setContentRange("bytes " + committed + "-"
+          + (committed + count - 1) + "/" + formatTotal(total));
+    }
+    return execute(service, request);
+  }
+
+  /**
+   * Executes a request against the session, and updates the committed
+   * offset from its response.
+   *
+   * @return the created object, if the upload is complete.
+   */
+  @Nullable
+  private StorageObject execute(Storage service, HttpRequest request)
+      throws IOException {
+    request.setParser(service.getObjectParser());
+    request.setThrowExceptionOnExecuteError(false);
+    // 308 means "Resume Incomplete" here, not a redirect.
+    request.setFollowRedirects(false);
+
+    HttpResponse response = request.execute();
+    try {
+      int status = response.getStatusCode();
+      if (status == 200 || status == 201) {
+        // The session is over, so that another attempt (e.g. because the
+        // caller rejects the result) has to start a new one.
+        sessionUrl = null;
+        if (length != UNKNOWN_LENGTH) {
+          committed = length;
+        }
+        return response.parseAs(StorageObject.class);
+      }
+      if (status == STATUS_CODE_RESUME_INCOMPLETE) {
+        String range = response.getHeaders().getRange();
+        long offset = parseRange(range);
+        if (length != UNKNOWN_LENGTH && offset > length) {
+          throw new IOException(Messages.ResumableUpload_BadRange(range));
+        }
+        if (offset < committed) {
+          throw new IOException(Messages.ResumableUpload_OffsetRegressed(
+              object.getName(), committed, offset));
+        }
+        committed = offset;
+        return null;
+      }
+      if (status == 404 || status == 410) {
+        // The session has expired, so the next attempt has to start over.
+        sessionUrl = null;
+        committed = 0;
+      }
+      throw new HttpResponseException(response);
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  /**
+   * Parses the "Range: bytes=0-N" header of a 308 response into the number
+   * of committed bytes.  No header means that nothing was committed.
+   */
+  static long parseRange(@Nullable String range) throws IOException {
+    if (range == null) {
+      return 0;
+    }
+    int dash = range.lastIndexOf('-');
+    if (!range.startsWith("bytes=") || dash < 0) {
+      throw new IOException(Messages.ResumableUpload_BadRange(range));
+    }
+    try {
+      return Long.parseLong(range.substring(dash + 1)) + 1;
+    } catch (NumberFormatException e) {
+      throw new IOException(Messages.ResumableUpload_BadRange(range), e);
+    }
+  }
+
+  private static final int STATUS_CODE_RESUME_INCOMPLETE = 308;
+
+  private final String bucket;
+  private final StorageObject object;
+  private final ByteSource content;
+  private final long length;
+  private final int chunkSize;
+
+  @Nullable
+  private GenericUrl sessionUrl;
+  private long committed;
+}
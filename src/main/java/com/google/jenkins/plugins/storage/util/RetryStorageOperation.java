@@ -18,13 +18,26 @@ package com.google.jenkins.plugins.storage.util;
 import static java.util.logging.Level.SEVERE;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 import static com.google.api.client.http.HttpStatusCodes
     .STATUS_CODE_UNAUTHORIZED;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.api.client.http.HttpResponseException;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.jenkins.plugins.storage.Messages;
 import com.google.jenkins.plugins.util.Executor;
 import com.google.jenkins.plugins.util.ExecutorException;
@@ -37,6 +50,17 @@ public class RetryStorageOperation {
   private static final Logger logger =
       Logger.getLogger(RetryStorageOperation.class.getName());
 
+  /**
+   * The threads that run concurrent operations, shared by all of them so
+   * that nested operations do not each start a pool of their own.  How
+   * many run at once is bounded by the permits their callers pass.
+   */
+  private static final ExecutorService THREADS = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder()
+          .setNameFormat(RetryStorageOperation.class.getSimpleName() + "-%d")
+          .setDaemon(true)
+          .build());
+
   /**
    * An operation to be retried
    */
@@ -145,4 +169,186 @@ public class RetryStorageOperation {
     performRequestWithReinitCredentials(a,
         MAX_REMOTE_CREDENTIAL_EXPIRED_RETRIES);
   }
+
+  /**
+   * Wraps the given operation into one that runs it to completion with
+   * {@link #performRequestWithReinitCredentials(RepeatOperation)}, as its
+   * single action, and then records how it ended: {@code failed} is set if
+   * it ended abnormally in any way, including the failures that escape its
+   * own actions (e.g. a second 401, or a failure to initialize its
+   * credentials), and {@code finished}, if given, is set in any case.
+   *
+   * Operations that share their work with
+   * {@link #performRequestsWithReinitCredentials} and wait on each other
+   * rely on this to stop once the others are gone for good, rather than
+   * wait forever.
+   *
+   * @param a The operation to run.
+   * @param failed Set if the operation fails.
+   * @param finished Set once the operation is over, or null.
+   */
+  public static <Ex extends Throwable> RepeatOperation<Ex> signalingExit(
+      final RepeatOperation<Ex> a, final AtomicBoolean failed,
+      @Nullable final AtomicBoolean finished) {
+    checkNotNull(a);
+    checkNotNull(failed);
+    return new RepeatOperation<Ex>() {
+      private boolean ran;
+
+      public void initCredentials() {
+        // The wrapped operation initializes its own.
+      }
+
+      public void act()
+          throws IOException, InterruptedException, ExecutorException, Ex {
+        ran = true;
+        boolean succeeded = false;
+        try {
+          performRequestWithReinitCredentials(a);
+          succeeded = true;
+        } catch (HttpResponseException e) {
+          // The wrapped operation already had its chance to refresh its
+          // credentials, so that it is not run again for a 401.
+          throw new IOException(
+              Messages.AbstractUpload_ExceptionFileUpload(), e);
+        } finally {
+          if (!succeeded) {
+            failed.set(true);
+          }
+          if (finished != null) {
+            finished.set(true);
+          }
+        }
+      }
+
+      public boolean moreWork() {
+        return !ran;
+      }
+    };
+  }
+
+  /**
+   * Runs each of the given operations to completion with
+   * {@link #performRequestWithReinitCredentials(RepeatOperation)}, each on
+   * its own thread, and waits for all of them to finish.
+   *
+   * The operations are expected to share their work (e.g. by polling a
+   * common queue), but each of them must keep its own credentials, so that
+   * an expired credential in one only causes that one to re-initialize.
+   *
+   * The first operation is run on the calling thread. When several
+   * operations fail, the failure of the first one (in list order) is
+   * thrown, so that the outcome does not depend on thread scheduling.
+   *
+   * @param operations The operations to execute concurrently.
+   * @param <Ex> An action-specific exception that might be thrown.
+   */
+  public static <Ex extends Throwable> void
+  performRequestsWithReinitCredentials(
+      List<? extends RepeatOperation<Ex>> operations)
+      throws IOException, InterruptedException, ExecutorException, Ex {
+    performRequestsWithReinitCredentials(operations,
+        new Semaphore(operations.size() - 1));
+  }
+
+  /**
+   * Like {@link #performRequestsWithReinitCredentials(List)}, but an
+   * operation other than the first only gets a thread of its own if it can
+   * take one of the given permits, which it returns once it finishes.  The
+   * operations that get no thread are not run at all, and leave their
+   * share of the work to the others.
+   *
+   * Operations that run operations of their own with the same permits,
+   * e.g. to split a large file into slices, run the first of them on their
+   * own thread, so that all of them together never use more threads than
+   * there are permits, besides the calling thread.
+   *
+   * @param operations The operations to execute concurrently.
+   * @param threads The permits for threads besides the calling one.
+   * @param <Ex> An action-specific exception that might be thrown.
+   */
+  public static <Ex extends Throwable> void
+  performRequestsWithReinitCredentials(
+      List<? extends RepeatOperation<Ex>> operations, final Semaphore threads)
+      throws IOException, InterruptedException, ExecutorException, Ex {
+    checkArgument(!operations.isEmpty());
+    List<Future<Void>> results = Lists.newArrayList();
+    try {
+      for (final RepeatOperation<Ex> operation
+          : operations.subList(1, operations.size())) {
+        if (!threads.tryAcquire()) {
+          break;
+        }
+        results.add(THREADS.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            try {
+              performRequestWithReinitCredentials(operation);
+            } catch (Throwable e) {
+              // Ex need not be an Exception, so wrap everything and let
+              // rethrow() unwrap it on the calling thread.
+              throw new ExecutionException(e);
+            } finally {
+              threads.release();
+            }
+            return (Void) null;
+          }
+        }));
+      }
+
+      Throwable firstFailure = null;
+      try {
+        performRequestWithReinitCredentials(operations.get(0));
+      } catch (InterruptedException e) {
+        throw e;
+      } catch (Throwable e) {
+        firstFailure = e;
+      }
+      for (Future<Void> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          if (firstFailure == null) {
+            firstFailure = e.getCause();
+          }
+        }
+      }
+      if (firstFailure != null) {
+        RetryStorageOperation.<Ex>rethrow(firstFailure);
+      }
+    } finally {
+      // Interrupts any operation still running if we were interrupted
+      // while waiting for them.
+      for (Future<Void> result : results) {
+        result.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Rethrows a failure captured on a worker thread with its original type.
+   */
+  @SuppressWarnings("unchecked")
+  private static <Ex extends Throwable> void rethrow(Throwable t)
+      throws IOException, InterruptedException, ExecutorException, Ex {
+    if (t instanceof ExecutionException && t.getCause() != null) {
+      t = t.getCause();
+    }
+    if (t instanceof IOException) {
+      throw (IOException) t;
+    }
+    if (t instanceof InterruptedException) {
+      throw (InterruptedException) t;
+    }
+    if (t instanceof ExecutorException) {
+      throw (ExecutorException) t;
+    }
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    throw (Ex) t;
+  }
 }
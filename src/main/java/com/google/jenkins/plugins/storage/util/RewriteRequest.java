@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.api.client.util.Key;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.StorageRequest;
+import com.google.api.services.storage.model.StorageObject;
+
+/**
+ * A request to rewrite an object into another, which the service does
+ * without the content leaving it.  Large objects, and those copied across
+ * locations or storage classes, take several requests: until the response
+ * says it is done, each request continues with the token that the previous
+ * one returned.
+ *
+ * The version of the client library we build against predates the rewrite
+ * method, so this describes it the way the library describes the others.
+ */
+public class RewriteRequest extends StorageRequest<RewriteResponse> {
+
+  private static final String REST_PATH = "b/{sourceBucket}/o/{sourceObject}"
+      + "/rewriteTo/b/{destinationBucket}/o/{destinationObject}";
+
+  /**
+   * @param metadata The metadata of the destination object, or null to
+   * keep that of the source object.
+   */
+  public RewriteRequest(Storage service, String sourceBucket,
+      String sourceObject, String destinationBucket,
+      String destinationObject, @Nullable StorageObject metadata) {
+    super(service, "POST", REST_PATH, metadata, RewriteResponse.class);
+    this.sourceBucket = checkNotNull(sourceBucket);
+    this.sourceObject = checkNotNull(sourceObject);
+    this.destinationBucket = checkNotNull(destinationBucket);
+    this.destinationObject = checkNotNull(destinationObject);
+  }
+
+  public String getSourceBucket() {
+    return sourceBucket;
+  }
+
+  @Key
+  private String sourceBucket;
+
+  public String getSourceObject() {
+    return sourceObject;
+  }
+
+  @Key
+  private String sourceObject;
+
+  public String getDestinationBucket() {
+    return destinationBucket;
+  }
+
+  @Key
+  private String destinationBucket;
+
+  public String getDestinationObject() {
+    return destinationObject;
+  }
+
+  @Key
+  private String destinationObject;
+
+  /**
+   * The generation of the source object to copy, rather than its latest.
+   */
+  public RewriteRequest setSourceGeneration(@Nullable Long sourceGeneration) {
+    this.sourceGeneration = sourceGeneration;
+    return this;
+  }
+
+  @Nullable
+  public Long getSourceGeneration() {
+    return sourceGeneration;
+  }
+
+  @Key
+  private Long sourceGeneration;
+
+  /**
+   * The token that the previous request of this rewrite returned, to
+   * continue where it stopped, or null for the first request.
+   */
+  public RewriteRequest setRewriteToken(@Nullable String rewriteToken) {
+    this.rewriteToken = rewriteToken;
+    return this;
+  }
+
+  @Nullable
+  public String getRewriteToken() {
+    return rewriteToken;
+  }
+
+  @Key
+  private String rewriteToken;
+
+  /**
+   * The most bytes that a single request rewrites, or null to let the
+   * service decide.  Must be a multiple of 1 MiB.
+   */
+  public RewriteRequest setMaxBytesRewrittenPerCall(
+      @Nullable Long maxBytesRewrittenPerCall) {
+    this.maxBytesRewrittenPerCall = maxBytesRewrittenPerCall;
+    return this;
+  }
+
+  @Nullable
+  public Long getMaxBytesRewrittenPerCall() {
+    return maxBytesRewrittenPerCall;
+  }
+
+  @Key
+  private Long maxBytesRewrittenPerCall;
+
+  @Override
+  public RewriteRequest setFields(String fields) {
+    return (RewriteRequest) super.setFields(fields);
+  }
+
+  @Override
+  public RewriteRequest set(String parameterName, Object value) {
+    return (RewriteRequest) super.set(parameterName, value);
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import javax.annotation.Nullable;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonString;
+import com.google.api.client.util.Key;
+import com.google.api.services.storage.model.StorageObject;
+
+/**
+ * The response to a {@link RewriteRequest}, which says how far the rewrite
+ * got and, until it is done, how to continue it.
+ */
+public class RewriteResponse extends GenericJson {
+
+  /**
+   * Whether the rewrite is complete, in which case {@link #getResource}
+   * holds the destination object.
+   */
+  public boolean isDone() {
+    return Boolean.TRUE.equals(done);
+  }
+
+  public RewriteResponse setDone(@Nullable Boolean done) {
+    this.done = done;
+    return this;
+  }
+
+  @Key
+  private Boolean done;
+
+  /**
+   * The token to continue the rewrite with, until it is done.
+   */
+  @Nullable
+  public String getRewriteToken() {
+    return rewriteToken;
+  }
+
+  public RewriteResponse setRewriteToken(@Nullable String rewriteToken) {
+    this.rewriteToken = rewriteToken;
+    return this;
+  }
+
+  @Key
+  private String rewriteToken;
+
+  /**
+   * How many bytes the rewrite has copied so far.
+   */
+  @Nullable
+  public Long getTotalBytesRewritten() {
+    return totalBytesRewritten;
+  }
+
+  public RewriteResponse setTotalBytesRewritten(
+      @Nullable Long totalBytesRewritten) {
+    this.totalBytesRewritten = totalBytesRewritten;
+    return this;
+  }
+
+  @Key
+  @JsonString
+  private Long totalBytesRewritten;
+
+  /**
+   * The size of the object being rewritten, in bytes.
+   */
+  @Nullable
+  public Long getObjectSize() {
+    return objectSize;
+  }
+
+  public RewriteResponse setObjectSize(@Nullable Long objectSize) {
+    this.objectSize = objectSize;
+    return this;
+  }
+
+  @Key
+  @JsonString
+  private Long objectSize;
+
+  /**
+   * The destination object, once the rewrite is done.
+   */
+  @Nullable
+  public StorageObject getResource() {
+    return resource;
+  }
+
+  public RewriteResponse setResource(@Nullable StorageObject resource) {
+    this.resource = resource;
+    return this;
+  }
+
+  @Key
+  private StorageObject resource;
+
+  @Override
+  public RewriteResponse set(String fieldName, Object value) {
+    return (RewriteResponse) super.set(fieldName, value);
+  }
+
+  @Override
+  public RewriteResponse clone() {
+    return (RewriteResponse) super.clone();
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nullable;
+
+import static com.google.api.client.http.HttpStatusCodes
+    .STATUS_CODE_UNAUTHORIZED;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.storage.Storage;
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.jenkins.plugins.credentials.oauth
+    .GoogleOAuth2ScopeRequirement;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+
+import hudson.remoting.Channel;
+
+/**
+ * Shares the HTTP transport and the {@link Storage} clients of this JVM, so
+ * that successive requests, files and builds reuse the same kept-alive
+ * connections instead of each paying for a new TCP and TLS handshake.  The
+ * transport is a {@link NetHttpTransport}, whose connections the JVM keeps
+ * alive and reuses by itself, wrapped in a {@link RawContentTransport} so
+ * that downloads can ask for what is stored.
+ *
+ * Clients are kept per credentials instance and scope.  The instance
+ * matters, rather than just the credentials ID, because the credentials
+ * sent to an agent carry their own access token; a client is dropped along
+ * with the credentials it was built with.  A client is also dropped once a
+ * request of it is refused with a 401 that its credential cannot refresh,
+ * so that the caller, which then re-initializes its credentials, gets a
+ * client built with fresh ones rather than the same one back.  Everything
+ * is released when the channel to the master closes, e.g. when an agent
+ * disconnects.
+ */
+public class StorageClientPool {
+
+  /**
+   * The pool shared by all uploads and downloads on this JVM.
+   */
+  public static StorageClientPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the client for the given credentials and scope, building it
+   * the first time.
+   */
+  public synchronized Storage getClient(GoogleRobotCredentials credentials,
+      GoogleOAuth2ScopeRequirement requirement, String appName)
+      throws GeneralSecurityException {
+    Map<String, Storage> byScope = clients.getIfPresent(credentials);
+    if (byScope == null) {
+      byScope = Maps.newHashMap();
+      clients.put(credentials, byScope);
+    }
+    String key = Joiner.on('\n').join(
+        Joiner.on(' ').join(
+            Ordering.natural().sortedCopy(requirement.getScopes())),
+        appName);
+    Storage client = byScope.get(key);
+    if (client == null) {
+      client = new Storage.Builder(getTransport(), new JacksonFactory(),
+          new EvictingInitializer(
+              credentials.getGoogleCredential(requirement)))
+          .setApplicationName(appName)
+          .build();
+      byScope.put(key, client);
+    }
+    return client;
+  }
+
+  /**
+   * Releases the pool once the given channel closes.  Callables that run
+   * on agents pass {@link Channel#current}, which is null on the master,
+   * whose pool lives as long as it does.
+   */
+  public synchronized void releaseOnClose(@Nullable Channel channel) {
+    if (channel == null || !watchedChannels.add(channel)) {
+      return;
+    }
+    channel.addListener(new Channel.Listener() {
+        @Override
+        public void onClosed(Channel closed, IOException cause) {
+          release();
+        }
+      });
+  }
+
+  /**
+   * Drops the transport and the clients that use it.
+   */
+  public synchronized void release() {
+    transport = null;
+    clients.invalidateAll();
+  }
+
+  private HttpTransport getTransport() {
+    if (transport == null) {
+      transport = new RawContentTransport(new NetHttpTransport());
+    }
+    return transport;
+  }
+
+  /**
+   * Drops the client whose requests the given initializer initializes.
+   */
+  private synchronized void evict(HttpRequestInitializer initializer) {
+    for (Map<String, Storage> byScope : clients.asMap().values()) {
+      for (Map.Entry<String, Storage> entry : byScope.entrySet()) {
+        if (entry.getValue().getRequestFactory().getInitializer()
+            == initializer) {
+          byScope.remove(entry.getKey());
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Initializes the requests of a client with its credential, and evicts
+   * the client once a request is refused for credentials that the
+   * credential could not refresh.
+   */
+  private class EvictingInitializer implements HttpRequestInitializer {
+    public EvictingInitializer(Credential credential) {
+      this.credential = credential;
+    }
+
+    @Override
+    public void initialize(HttpRequest request) throws IOException {
+      credential.initialize(request);
+      final HttpUnsuccessfulResponseHandler handler =
+          request.getUnsuccessfulResponseHandler();
+      request.setUnsuccessfulResponseHandler(
+          new HttpUnsuccessfulResponseHandler() {
+            @Override
+            public boolean handleResponse(HttpRequest request,
+                HttpResponse response, boolean supportsRetry)
+                throws IOException {
+              if (handler != null
+                  && handler.handleResponse(request, response, supportsRetry)) {
+                return true;
+              }
+              if (response.getStatusCode() == STATUS_CODE_UNAUTHORIZED) {
+                evict(EvictingInitializer.this);
+              }
+              return false;
+            }
+          });
+    }
+
+    private final Credential credential;
+  }
+
+  private static final StorageClientPool INSTANCE = new StorageClientPool();
+
+  private HttpTransport transport;
+  // The clients hold nothing that refers to their credentials, which would
+  // keep them from being collected.
+  private final Cache<GoogleRobotCredentials, Map<String, Storage>> clients =
+      CacheBuilder.newBuilder().weakKeys().build();
+  private final Set<Channel> watchedChannels =
+      Collections.newSetFromMap(new WeakHashMap<Channel, Boolean>());
+}
@@ -16,10 +16,17 @@
 package com.google.jenkins.plugins.storage.util;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.LinkedList;
+import java.util.zip.CheckedOutputStream;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
 import com.google.jenkins.plugins.storage.UploadException;
 
@@ -105,4 +112,41 @@ public class StorageUtil {
     }
     return result;
   }
+
+  /**
+   * View the contents of the given file as a {@link ByteSource}, which can
+   * be opened as many times as needed, e.g. to retry a request.
+   */
+  public static ByteSource asByteSource(final FilePath file) {
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        try {
+          return file.read();
+        } catch (InterruptedException e) {
+          throw (IOException) new InterruptedIOException().initCause(e);
+        }
+      }
+    };
+  }
+
+  /**
+   * Computes the checksum of the given content, encoded the way the
+   * {@code crc32c} field of a storage object is.
+   */
+  public static String computeCrc32c(ByteSource content) throws IOException {
+    Crc32c crc = new Crc32c();
+    content.copyTo(new CheckedOutputStream(ByteStreams.nullOutputStream(),
+        crc));
+    return Crc32c.encode(crc.getValue());
+  }
+
+  /**
+   * Computes the MD5 hash of the given content, encoded the way the
+   * {@code md5Hash} field of a storage object is.
+   */
+  public static String computeMd5(ByteSource content) throws IOException {
+    return BaseEncoding.base64().encode(
+        content.hash(Hashing.md5()).asBytes());
+  }
 }
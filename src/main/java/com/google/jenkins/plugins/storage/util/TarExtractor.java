@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.jenkins.plugins.storage.Messages;
+
+/**
+ * Extracts the files of a tar archive as it is read, e.g. as it is
+ * downloaded, so that it need not be stored first.  This reads the ustar
+ * archives of {@link ArchiveByteSource}, including the pax extended
+ * headers it writes for long names and large files, and the usual archives
+ * of other tools.  Regular files and directories are extracted, with their
+ * modification time and execute permission; other entries, such as links,
+ * are skipped.
+ *
+ * Every entry must land within the directory it is extracted to.  Existing
+ * files are replaced rather than written to, so that files they are linked
+ * with are left alone.
+ */
+public class TarExtractor {
+
+  /**
+   * Extracts the archive into the given directory.
+   *
+   * @param archive The uncompressed archive, which is read to its end but
+   * not closed.
+   * @param dir The directory to extract to, which need not exist.
+   * @return the number of files extracted.
+   * @throws IOException if the archive is malformed or names a file
+   * outside of {@code dir}.
+   */
+  public static int extract(InputStream archive, File dir)
+      throws IOException {
+    String root = dir.getCanonicalPath() + File.separator;
+    byte[] header = new byte[BLOCK_SIZE];
+    // The path and size of the next entry, from a pax extended header.
+    String paxPath = null;
+    long paxSize = -1;
+    int count = 0;
+    while (true) {
+      ByteStreams.readFully(archive, header);
+      if (isZero(header)) {
+        // The end of the archive.  Read what pads it, so that a compressed
+        // stream gets to check its trailer.
+        ByteStreams.copy(archive, ByteStreams.nullOutputStream());
+        return count;
+      }
+      checkHeader(header);
+
+      long size = paxSize >= 0 ? paxSize : parseOctal(header, SIZE_OFFSET, 12);
+      String name = paxPath != null ? paxPath : getName(header);
+      paxPath = null;
+      paxSize = -1;
+      byte type = header[TYPE_OFFSET];
+
+      if (type == PAX_TYPE) {
+        byte[] data = new byte[(int) size];
+        ByteStreams.readFully(archive, data);
+        skipPadding(archive, size);
+        String records = new String(data, Charsets.UTF_8);
+        paxPath = getPaxRecord(records, "path");
+        String paxSizeRecord = getPaxRecord(records, "size");
+        if (paxSizeRecord != null) {
+          paxSize = Long.parseLong(paxSizeRecord);
+        }
+        continue;
+      }
+
+      if (type == FILE_TYPE || type == OLD_FILE_TYPE) {
+        File file = resolve(dir, root, name);
+        long mode = parseOctal(header, MODE_OFFSET, 8);
+        writeFile(archive, file, size);
+        file.setLastModified(parseOctal(header, MTIME_OFFSET, 12) * 1000);
+        if ((mode & 0100) != 0) {
+          file.setExecutable(true);
+        }
+        count++;
+      } else {
+        if (type == DIRECTORY_TYPE) {
+          resolve(dir, root, name).mkdirs();
+        }
+        // Links and the like have no content, but skip what others have.
+        ByteStreams.skipFully(archive, size);
+      }
+      skipPadding(archive, size);
+    }
+  }
+
+  /**
+   * The file that the entry of the given name is extracted to.
+   *
+   * @param root The canonical path of {@code dir}, with a trailing
+   * separator.
+   */
+  private static File resolve(File dir, String root, String name)
+      throws IOException {
+    File file = new File(dir, name);
+    // The directory itself, as the "./" entry that archives of "." start
+    // with, has no trailing separator.
+    if (name.startsWith("/")
+        || !(file.getCanonicalPath() + File.separator).startsWith(root)) {
+      throw new IOException(Messages.TarExtractor_OutsideDirectory(name));
+    }
+    return file;
+  }
+
+  /**
+   * Replaces the given file with the next {@code size} bytes of the
+   * archive.
+   */
+  private static void writeFile(InputStream archive, File file, long size)
+      throws IOException {
+    file.getParentFile().mkdirs();
+    file.delete();
+    OutputStream out = new FileOutputStream(file);
+    try {
+      long copied = ByteStreams.copy(ByteStreams.limit(archive, size), out);
+      if (copied < size) {
+        throw new IOException(
+            Messages.TarExtractor_Truncated(file.getName(), size));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * The name of the entry, which ustar headers may split between a prefix
+   * and a name.
+   */
+  private static String getName(byte[] header) {
+    String name = getString(header, 0, NAME_LENGTH);
+    if (isUstar(header)) {
+      String prefix = getString(header, PREFIX_OFFSET, PREFIX_LENGTH);
+      if (!prefix.isEmpty()) {
+        name = prefix + "/" + name;
+      }
+    }
+    return name;
+  }
+
+  /**
+   * The value of the given key in the records of a pax extended header,
+   * each of which is "length key=value\n", or null if it has none.
+   */
+  @Nullable
+  private static String getPaxRecord(String records, String key) {
+    String value = null;
+    for (String record : records.split("\n")) {
+      int space = record.indexOf(' ');
+      int equals = record.indexOf('=');
+      if (space >= 0 && equals > space
+          && record.substring(space + 1, equals).equals(key)) {
+        // Later records override earlier ones.
+        value = record.substring(equals + 1);
+      }
+    }
+    return value;
+  }
+
+  private static void checkHeader(byte[] header) throws IOException {
+    long expected;
+    try {
+      expected = parseOctal(header, CHECKSUM_OFFSET, 8);
+    } catch (NumberFormatException e) {
+      throw new IOException(Messages.TarExtractor_BadHeader(), e);
+    }
+    long checksum = 0;
+    for (int i = 0; i < header.length; i++) {
+      boolean inChecksum = i >= CHECKSUM_OFFSET && i < CHECKSUM_OFFSET + 8;
+      checksum += inChecksum ? ' ' : header[i] & 0xff;
+    }
+    if (checksum != expected) {
+      throw new IOException(Messages.TarExtractor_BadHeader());
+    }
+  }
+
+  private static boolean isUstar(byte[] header) {
+    return getString(header, MAGIC_OFFSET, 6).startsWith("ustar");
+  }
+
+  private static boolean isZero(byte[] header) {
+    for (byte b : header) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Reads a NUL-terminated field.
+  private static String getString(byte[] header, int offset, int length) {
+    int end = offset;
+    while (end < offset + length && header[end] != 0) {
+      end++;
+    }
+    return new String(header, offset, end - offset, Charsets.UTF_8);
+  }
+
+  // Reads octal digits, which may be padded with spaces or NULs.
+  private static long parseOctal(byte[] header, int offset, int length) {
+    String digits = getString(header, offset, length).trim();
+    return digits.isEmpty() ? 0 : Long.parseLong(digits, 8);
+  }
+
+  private static void skipPadding(InputStream archive, long size)
+      throws IOException {
+    ByteStreams.skipFully(archive,
+        (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+  }
+
+  private static final int BLOCK_SIZE = 512;
+  private static final int NAME_LENGTH = 100;
+  private static final int PREFIX_LENGTH = 155;
+
+  private static final int MODE_OFFSET = 100;
+  private static final int SIZE_OFFSET = 124;
+  private static final int MTIME_OFFSET = 136;
+  private static final int CHECKSUM_OFFSET = 148;
+  private static final int TYPE_OFFSET = 156;
+  private static final int MAGIC_OFFSET = 257;
+  private static final int PREFIX_OFFSET = 345;
+
+  private static final byte FILE_TYPE = '0';
+  private static final byte OLD_FILE_TYPE = 0;
+  private static final byte DIRECTORY_TYPE = '5';
+  private static final byte PAX_TYPE = 'x';
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.jenkins.plugins.util.Executor;
+import com.google.jenkins.plugins.util.ExecutorException;
+import com.google.jenkins.plugins.util.NotFoundException;
+
+import hudson.FilePath;
+
+/**
+ * Finds the local files whose content the destination of an upload already
+ * has, so that they need not be uploaded again.
+ *
+ * Files are compared by size first, and only files of the same size as
+ * their object are read, to compare their checksum with the object's CRC32C
+ * (or MD5, should an object have no CRC32C).  Objects stored compressed
+ * with gzip are compared with the compression of their file instead.
+ */
+public class UnchangedFiles {
+
+  /**
+   * The only fields of the listing that we compare, which keeps the
+   * response of a large listing small.
+   */
+  public static final String LIST_FIELDS =
+      "items(name,size,crc32c,md5Hash,contentEncoding),nextPageToken";
+
+  /**
+   * Lists all of the objects under the given prefix, a page at a time.
+   *
+   * @param executor The executor to issue the requests with.
+   * @param service The storage service to issue the requests to.
+   * @param bucket The bucket to list.
+   * @param prefix The prefix of the objects to list, or null for all.
+   * @return the objects, with only their {@link #LIST_FIELDS}, by name.
+   * An empty map if the bucket does not exist yet.
+   */
+  public static Map<String, StorageObject> listObjects(Executor executor,
+      Storage service, String bucket, @Nullable String prefix)
+      throws IOException, ExecutorException {
+    Map<String, StorageObject> result = Maps.newHashMap();
+    String pageToken = null;
+    do {
+      Storage.Objects.List list = service.objects().list(bucket)
+          .setPrefix(prefix)
+          .setFields(LIST_FIELDS)
+          .setPageToken(pageToken);
+
+      Objects objects;
+      try {
+        objects = executor.execute(list);
+      } catch (NotFoundException e) {
+        // A bucket that does not exist has nothing in common with us.
+        return result;
+      }
+      if (objects.getItems() != null) {
+        for (StorageObject object : objects.getItems()) {
+          result.put(object.getName(), object);
+        }
+      }
+      pageToken = objects.getNextPageToken();
+    } while (pageToken != null && pageToken.length() > 0);
+    return result;
+  }
+
+  /**
+   * Compares the given local files with the listed objects of the same name,
+   * reading the files with up to {@code parallelism} threads.
+   *
+   * @param files The local files to compare, by the name of their object.
+   * @param objects The objects at the destination, by name.
+   * @param parallelism How many files to read concurrently.
+   * @return the names of the files whose object has the same content.
+   */
+  public static Set<String> findUnchanged(Map<String, FilePath> files,
+      Map<String, StorageObject> objects, int parallelism)
+      throws IOException, InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(
+        Math.max(1, parallelism),
+        new ThreadFactoryBuilder()
+            .setNameFormat(UnchangedFiles.class.getSimpleName() + "-%d")
+            .setDaemon(true)
+            .build());
+    try {
+      Map<String, Future<Boolean>> checks = Maps.newLinkedHashMap();
+      for (Map.Entry<String, FilePath> entry : files.entrySet()) {
+        final FilePath file = entry.getValue();
+        final StorageObject object = objects.get(entry.getKey());
+        if (object == null) {
+          continue;
+        }
+        checks.put(entry.getKey(), pool.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException, InterruptedException {
+            return isUnchanged(StorageUtil.asByteSource(file), file.length(),
+                object);
+          }
+        }));
+      }
+
+      Set<String> result = Sets.newHashSet();
+      for (Map.Entry<String, Future<Boolean>> check : checks.entrySet()) {
+        try {
+          if (check.getValue().get()) {
+            result.add(check.getKey());
+          }
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          if (e.getCause() instanceof InterruptedException) {
+            throw (InterruptedException) e.getCause();
+          }
+          throw new IOException(e.getCause());
+        }
+      }
+      return result;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Whether the given content is the same as that of the given object.
+   *
+   * @param content The local content.
+   * @param length The length of the local content, which is compared before
+   * reading it.
+   * @param object The object, with at least the {@link #LIST_FIELDS}.
+   */
+  public static boolean isUnchanged(ByteSource content, long length,
+      StorageObject object) throws IOException {
+    if (GZIP_ENCODING.equals(object.getContentEncoding())) {
+      // The object holds the content as the upload compressed it, which
+      // compressing it again reproduces.  Its size is only known once it is
+      // compressed, so the checksum is all there is to compare.
+      return hasChecksum(new GzipByteSource(content), object);
+    }
+    if (object.getSize() == null || object.getSize().longValue() != length) {
+      return false;
+    }
+    return hasChecksum(content, object);
+  }
+
+  /**
+   * Whether the checksum of the given content is that of the object.
+   */
+  private static boolean hasChecksum(ByteSource content,
+      StorageObject object) throws IOException {
+    if (object.getCrc32c() != null) {
+      return object.getCrc32c().equals(StorageUtil.computeCrc32c(content));
+    }
+    if (object.getMd5Hash() != null) {
+      return object.getMd5Hash().equals(StorageUtil.computeMd5(content));
+    }
+    return false;
+  }
+
+  private static final String GZIP_ENCODING = "gzip";
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.jenkins.plugins.storage.Messages;
+
+import hudson.AbortException;
+
+/**
+ * A compiled wildcard for object names, which behaves consistently with
+ * gsutil, see:
+ * https://cloud.google.com/storage/docs/gsutil/addlhelp/WildcardNames
+ *
+ * <ul>
+ * <li>{@code *} matches any characters within a directory level, i.e. other
+ * than '/'.</li>
+ * <li>{@code **} matches any characters, across directory levels.</li>
+ * <li>{@code ?} matches a single character other than '/'.</li>
+ * <li>{@code [abc]}, {@code [a-c]} match a single character of the class,
+ * and {@code [!abc]} one that is not in it.</li>
+ * </ul>
+ *
+ * Besides matching names, the pattern plans how to list the objects it may
+ * match with as little of the bucket as possible.  Each listing asks for
+ * the literal prefix of the pattern at one directory level, delimited by
+ * '/', so that the service returns the objects of that level and only the
+ * names of its subdirectories.  Only the subdirectories that match the
+ * pattern at that level are listed in turn.  Listing descends a whole
+ * subtree at once only where the pattern has a {@code **}.
+ */
+public class WildcardPattern implements Serializable {
+
+  /**
+   * Compiles the given object name pattern.
+   *
+   * @throws AbortException if the pattern is malformed.
+   */
+  public static WildcardPattern compile(String pattern)
+      throws AbortException {
+    ImmutableList.Builder<Segment> segments = ImmutableList.builder();
+    for (String segment : Splitter.on('/').split(pattern)) {
+      segments.add(new Segment(segment, pattern));
+    }
+    return new WildcardPattern(pattern, segments.build());
+  }
+
+  private WildcardPattern(String pattern, List<Segment> segments)
+      throws AbortException {
+    this.pattern = pattern;
+    this.segments = segments;
+    this.regex = Pattern.compile(toRegex(pattern, pattern));
+  }
+
+  /**
+   * The pattern this was compiled from.
+   */
+  public String getPattern() {
+    return pattern;
+  }
+
+  /**
+   * Whether the pattern has no wildcards, i.e. names a single object.
+   */
+  public boolean isLiteral() {
+    for (Segment segment : segments) {
+      if (segment.isWildcard()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether the given object name matches the whole pattern.
+   */
+  public boolean matches(String name) {
+    return regex.matcher(name).matches();
+  }
+
+  /**
+   * The listing to start with, which covers everything the pattern may
+   * match.
+   */
+  public Listing getFirstListing() {
+    return listingAt("", 0);
+  }
+
+  /**
+   * Returns the listing of a subdirectory that the given listing returned,
+   * or null if nothing under it can match, e.g. because its name does not
+   * match the pattern at its level.
+   *
+   * @param subdirectory A prefix returned by the listing, i.e. the path of
+   * the subdirectory, usually with a trailing '/'.
+   */
+  @Nullable
+  public Listing descend(Listing listing, String subdirectory) {
+    if (listing.getDelimiter() == null
+        || listing.level == segments.size() - 1
+        || !subdirectory.startsWith(listing.directory)) {
+      // Only objects remain to match, which the listing returned itself.
+      return null;
+    }
+    String name = subdirectory.substring(listing.directory.length());
+    if (name.endsWith("/")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    if (name.contains("/")
+        || !segments.get(listing.level).matches(name)) {
+      return null;
+    }
+    return listingAt(listing.directory + name + "/", listing.level + 1);
+  }
+
+  /**
+   * Plans the listing for the given level of the pattern, under the given
+   * directory, which matches the levels before it.  Literal levels are
+   * part of the directory rather than listed.
+   */
+  private Listing listingAt(String directory, int level) {
+    int last = segments.size() - 1;
+    while (level < last && !segments.get(level).isWildcard()) {
+      directory += segments.get(level).text + "/";
+      level++;
+    }
+    Segment segment = segments.get(level);
+    return new Listing(directory, level,
+        directory + segment.literalPrefix,
+        segment.recursive ? null : DELIMITER);
+  }
+
+  /**
+   * A request to list the objects whose names start with a prefix, and
+   * whether to stop at the next delimiter.
+   */
+  public static class Listing implements Serializable {
+    private Listing(String directory, int level, String prefix,
+        @Nullable String delimiter) {
+      this.directory = directory;
+      this.level = level;
+      this.prefix = prefix;
+      this.delimiter = delimiter;
+    }
+
+    public String getPrefix() {
+      return prefix;
+    }
+
+    /**
+     * The delimiter to list with, or null to list the whole subtree under
+     * the prefix.
+     */
+    @Nullable
+    public String getDelimiter() {
+      return delimiter;
+    }
+
+    @Override
+    public String toString() {
+      return prefix + (delimiter == null ? "**" : "");
+    }
+
+    // The directory that the levels before this one matched.
+    private final String directory;
+    private final int level;
+    private final String prefix;
+    private final String delimiter;
+  }
+
+  /**
+   * A directory level of the pattern.
+   */
+  private static class Segment implements Serializable {
+    public Segment(String text, String pattern) throws AbortException {
+      this.text = text;
+      this.recursive = text.contains("**");
+      int firstWildcard = indexOfWildcard(text);
+      this.literalPrefix = firstWildcard < 0
+          ? text : text.substring(0, firstWildcard);
+      this.regex = firstWildcard < 0 || recursive
+          ? null : Pattern.compile(toRegex(text, pattern));
+    }
+
+    public boolean isWildcard() {
+      return !literalPrefix.equals(text);
+    }
+
+    /**
+     * Whether the given directory name matches this level.  Recursive
+     * levels are not listed level by level, so they match no directory.
+     */
+    public boolean matches(String name) {
+      if (regex == null) {
+        return !recursive && text.equals(name);
+      }
+      return regex.matcher(name).matches();
+    }
+
+    public final String text;
+    public final String literalPrefix;
+    public final boolean recursive;
+    private final Pattern regex;
+  }
+
+  private static int indexOfWildcard(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '*' || c == '?' || c == '[') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Translates wildcards into a regular expression.
+   *
+   * @param pattern The whole pattern, to report errors with.
+   */
+  private static String toRegex(String text, String pattern)
+      throws AbortException {
+    StringBuilder regex = new StringBuilder();
+    int i = 0;
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      if (c == '*') {
+        if (i + 1 < text.length() && text.charAt(i + 1) == '*') {
+          regex.append(".*");
+          i += 2;
+        } else {
+          regex.append("[^/]*");
+          i++;
+        }
+      } else if (c == '?') {
+        regex.append("[^/]");
+        i++;
+      } else if (c == '[') {
+        i = appendClass(text, i, regex, pattern);
+      } else {
+        regex.append(escape(c));
+        i++;
+      }
+    }
+    return regex.toString();
+  }
+
+  /**
+   * Translates the character class that starts at the given position.
+   *
+   * @return the position after the class.
+   */
+  private static int appendClass(String text, int start, StringBuilder regex,
+      String pattern) throws AbortException {
+    int i = start + 1;
+    StringBuilder members = new StringBuilder();
+    boolean negated = i < text.length()
+        && (text.charAt(i) == '!' || text.charAt(i) == '^');
+    if (negated) {
+      i++;
+    }
+    // A closing bracket that comes first is a member, as in gsutil.
+    boolean first = true;
+    for (; i < text.length(); i++, first = false) {
+      char c = text.charAt(i);
+      if (c == ']' && !first) {
+        // Neither kind of class matches across directory levels.
+        regex.append(negated ? "[^/" : "[").append(members).append(']');
+        return i + 1;
+      }
+      boolean range = c == '-' && !first && i + 1 < text.length()
+          && text.charAt(i + 1) != ']';
+      members.append(range ? "-" : escape(c));
+    }
+    throw new AbortException(Messages.WildcardPattern_UnclosedClass(pattern));
+  }
+
+  private static String escape(char c) {
+    return Character.isLetterOrDigit(c) ? String.valueOf(c) : "\\" + c;
+  }
+
+  private static final String DELIMITER = "/";
+
+  private final String pattern;
+  private final List<Segment> segments;
+  private final Pattern regex;
+}
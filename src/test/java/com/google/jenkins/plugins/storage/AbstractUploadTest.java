@@ -15,8 +15,10 @@
  */
 package com.google.jenkins.plugins.storage;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.List;
 import java.util.Set;
 
@@ -27,6 +29,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.when;
 
@@ -47,22 +50,32 @@ import static com.google.common.base.Predicates.not;
 import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.http.StubHttpResponseException;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.ComposeRequest;
 import com.google.api.services.storage.model.ObjectAccessControl;
+import com.google.api.services.storage.model.Objects;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.common.base.Charsets;
 import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
 import com.google.jenkins.plugins.storage.ClassicUpload.DescriptorImpl;
 import com.google.jenkins.plugins.storage.reports.BuildGcsUploadReport;
+import com.google.jenkins.plugins.storage.util.BucketCache;
+import com.google.jenkins.plugins.storage.util.GzipByteSource;
+import com.google.jenkins.plugins.storage.util.MockBatchTransport;
 import com.google.jenkins.plugins.storage.util.RetryStorageOperation;
+import com.google.jenkins.plugins.storage.util.StorageUtil;
 import com.google.jenkins.plugins.util.ConflictException;
 import com.google.jenkins.plugins.util.ForbiddenException;
 import com.google.jenkins.plugins.util.MockExecutor;
@@ -575,6 +588,557 @@ public class AbstractUploadTest {
     underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
   }
 
+  @Test
+  public void testFailureDoesNotStopOtherFiles() throws Exception {
+    final boolean sharedPublicly = false;
+    final boolean forFailedJobs = true;
+    final boolean showInline = false;
+    final String pathPrefix = null;
+
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(workspaceFile, workspaceFile2));
+
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        sharedPublicly, forFailedJobs, showInline, pathPrefix,
+        new MockUploadModule(executor), /* no retries */
+        FAKE_DETAILS,
+        uploads);
+
+    executor.throwWhen(Storage.Buckets.Get.class, notFoundException);
+    executor.passThruWhen(Storage.Buckets.Insert.class,
+        MockUploadModule.checkBucketName(BUCKET_NAME));
+    executor.throwWhen(Storage.Objects.Insert.class,
+        new IOException("should fail this file only"),
+        MockUploadModule.checkObjectName(FILENAME));
+    // The second file is still uploaded.
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        MockUploadModule.checkObjectName(FILENAME2));
+
+    try {
+      underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+    } catch (UploadException e) {
+      assertTrue(e.getMessage().contains(FILENAME));
+      assertEquals("should fail this file only", e.getCause().getMessage());
+      return;
+    }
+    fail("Expected the failed file to fail the upload");
+  }
+
+  @Test
+  public void testParallelFailureIsReported() throws Exception {
+    final boolean sharedPublicly = false;
+    final boolean forFailedJobs = true;
+    final boolean showInline = false;
+    final String pathPrefix = null;
+
+    Bucket bucket = new Bucket();
+    bucket.setName(BUCKET_NAME);
+    bucket.setDefaultObjectAcl(Lists.newArrayList(new ObjectAccessControl()));
+
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(workspaceFile, workspaceFile2));
+
+    // The workers find the bucket in the cache, so that the only request
+    // that reaches the executor, whose expectations are ordered, is the
+    // one of the file that can be read.
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        sharedPublicly, forFailedJobs, showInline, pathPrefix,
+        new MockUploadModule(executor) {
+          @Override
+          public long getBucketCacheTtl() {
+            return 3600;
+          }
+        },
+        FAKE_DETAILS,
+        uploads);
+    underTest.setParallelism(2);
+    workspaceFile2.delete();
+
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        MockUploadModule.checkObjectName(FILENAME));
+
+    BucketCache.getInstance().put(CREDENTIALS_ID, bucket);
+    try {
+      underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+      fail("Expected the unreadable file to fail the upload");
+    } catch (UploadException e) {
+      // Only the file that could not be read failed.
+      assertEquals(Messages.AbstractUpload_FilesFailedToUpload(1, 2,
+          FILENAME2), e.getMessage());
+    } finally {
+      BucketCache.getInstance().invalidate(CREDENTIALS_ID, BUCKET_NAME);
+    }
+  }
+
+  @Test
+  public void testCompositeUpload() throws Exception {
+    final boolean sharedPublicly = false;
+    final boolean forFailedJobs = true;
+    final boolean showInline = false;
+    final String pathPrefix = null;
+
+    // Large enough for two slices of 1 MiB
+    workspaceFile.copyFrom(
+        new ByteArrayInputStream(new byte[2 * 1024 * 1024 + 1]));
+
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(workspaceFile));
+
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        sharedPublicly, forFailedJobs, showInline, pathPrefix,
+        new MockUploadModule(executor),
+        FAKE_DETAILS,
+        uploads);
+    underTest.setCompositeSlices(4);
+    underTest.setMinSliceSize(1);
+
+    executor.throwWhen(Storage.Buckets.Get.class, notFoundException);
+    executor.passThruWhen(Storage.Buckets.Insert.class,
+        MockUploadModule.checkBucketName(BUCKET_NAME));
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        checkPartName(FILENAME, 0));
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        checkPartName(FILENAME, 1));
+    executor.passThruWhen(Storage.Objects.Compose.class,
+        new Predicate<Storage.Objects.Compose>() {
+          @Override
+          public boolean apply(Storage.Objects.Compose operation) {
+            ComposeRequest request = (ComposeRequest) operation
+                .getJsonContent();
+            // The final object keeps the annotations of the upload.
+            assertEquals(FILENAME, operation.getDestinationObject());
+            assertNotNull(request.getDestination().getContentDisposition());
+            assertEquals(2, request.getSourceObjects().size());
+            return true;
+          }
+        });
+    executor.passThruWhen(Storage.Objects.Delete.class);
+    executor.passThruWhen(Storage.Objects.Delete.class);
+
+    underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+  }
+
+  @Test
+  public void testCompositeUploadDeletesPartsOnFailure() throws Exception {
+    final boolean sharedPublicly = false;
+    final boolean forFailedJobs = true;
+    final boolean showInline = false;
+    final String pathPrefix = null;
+
+    workspaceFile.copyFrom(
+        new ByteArrayInputStream(new byte[2 * 1024 * 1024]));
+
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(workspaceFile));
+
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        sharedPublicly, forFailedJobs, showInline, pathPrefix,
+        new MockUploadModule(executor),
+        FAKE_DETAILS,
+        uploads);
+    underTest.setCompositeSlices(2);
+    underTest.setMinSliceSize(1);
+
+    executor.throwWhen(Storage.Buckets.Get.class, notFoundException);
+    executor.passThruWhen(Storage.Buckets.Insert.class,
+        MockUploadModule.checkBucketName(BUCKET_NAME));
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        checkPartName(FILENAME, 0));
+    executor.throwWhen(Storage.Objects.Insert.class,
+        new IOException("should fail the second part"));
+    executor.passThruWhen(Storage.Objects.Delete.class);
+    // The second part was never created.
+    executor.throwWhen(Storage.Objects.Delete.class, notFoundException);
+
+    try {
+      underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+    } catch (UploadException e) {
+      assertEquals("should fail the second part",
+          e.getCause().getMessage());
+      return;
+    }
+    fail("Expected the failed part to fail the upload");
+  }
+
+  private static Predicate<Storage.Objects.Insert> checkPartName(
+      final String objectName, final int part) {
+    return new Predicate<Storage.Objects.Insert>() {
+      @Override
+      public boolean apply(Storage.Objects.Insert operation) {
+        StorageObject object = (StorageObject) operation.getJsonContent();
+        assertTrue(object.getName().startsWith(objectName + ".part-"));
+        assertTrue(object.getName().endsWith("-" + part));
+        return true;
+      }
+    };
+  }
+
+  @Test
+  public void testSkipUnchanged() throws Exception {
+    final boolean sharedPublicly = false;
+    final boolean forFailedJobs = true;
+    final boolean showInline = false;
+    final String pathPrefix = null;
+
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(workspaceFile, workspaceFile2));
+
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        sharedPublicly, forFailedJobs, showInline, pathPrefix,
+        new MockUploadModule(executor),
+        FAKE_DETAILS,
+        uploads);
+    underTest.setSkipUnchanged(true);
+
+    byte[] content = workspaceFileContent.getBytes(Charsets.UTF_8);
+    String crc32c = StorageUtil.computeCrc32c(
+        ByteStreams.asByteSource(content));
+    BigInteger size = BigInteger.valueOf(content.length);
+    executor.when(Storage.Objects.List.class, new Objects()
+        .setItems(ImmutableList.of(
+            new StorageObject().setName(FILENAME).setSize(size)
+                .setCrc32c(crc32c),
+            // Same size, different content
+            new StorageObject().setName(FILENAME2).setSize(size)
+                .setCrc32c("AAAAAA=="))));
+    executor.when(Storage.Buckets.Get.class, new Bucket().setName(BUCKET_NAME));
+    // Only the changed file is uploaded.
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        MockUploadModule.checkObjectName(FILENAME2));
+
+    underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+  }
+
+  @Test
+  public void testSkipUnchangedGzipContent() throws Exception {
+    FilePath log = workspace.child("build.log");
+    String logContent = Strings.repeat("[INFO] Some filler content\n", 1000);
+    log.write(logContent, Charsets.UTF_8.name());
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace, ImmutableList.of(log));
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        false /* sharedPublicly */, true /* forFailedJobs */,
+        false /* showInline */, null /* pathPrefix */,
+        new MockUploadModule(executor), FAKE_DETAILS, uploads);
+    underTest.setSkipUnchanged(true);
+    underTest.setGzipContent(true);
+
+    // An earlier run stored the log compressed, with the checksum of the
+    // compressed content, which the log must still be taken to match.
+    byte[] compressed = new GzipByteSource(ByteStreams.asByteSource(
+        logContent.getBytes(Charsets.UTF_8))).read();
+    executor.when(Storage.Objects.List.class, new Objects()
+        .setItems(ImmutableList.of(new StorageObject().setName("build.log")
+            .setContentEncoding("gzip")
+            .setSize(BigInteger.valueOf(compressed.length))
+            .setCrc32c(StorageUtil.computeCrc32c(
+                ByteStreams.asByteSource(compressed))))));
+    // Nothing is uploaded.
+    executor.when(Storage.Buckets.Get.class, new Bucket().setName(BUCKET_NAME));
+
+    underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+  }
+
+  @Test
+  public void testMirror() throws Exception {
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(workspaceFile, workspaceFile2));
+    MockBatchTransport transport = new MockBatchTransport();
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        false /* sharedPublicly */, true /* forFailedJobs */,
+        false /* showInline */, null /* pathPrefix */,
+        newBatchModule(transport), FAKE_DETAILS, uploads);
+    underTest.setMirror(true);
+    underTest.setMirrorBucketRoot(true);
+
+    byte[] content = workspaceFileContent.getBytes(Charsets.UTF_8);
+    String crc32c = StorageUtil.computeCrc32c(
+        ByteStreams.asByteSource(content));
+    BigInteger size = BigInteger.valueOf(content.length);
+    executor.when(Storage.Objects.List.class, new Objects()
+        .setItems(ImmutableList.of(
+            new StorageObject().setName(FILENAME).setSize(size)
+                .setCrc32c(crc32c),
+            // No longer uploaded
+            new StorageObject().setName("stale.baz").setSize(size)
+                .setCrc32c(crc32c))));
+    transport.existing.add("stale.baz");
+    // Only the new file is uploaded, and then the stale object deleted.
+    executor.when(Storage.Buckets.Get.class, new Bucket().setName(BUCKET_NAME));
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        MockUploadModule.checkObjectName(FILENAME2));
+
+    underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+    assertEquals(1, transport.batches.size());
+    assertTrue(transport.existing.isEmpty());
+  }
+
+  @Test(expected = UploadException.class)
+  public void testMirrorBucketRootRefused() throws Exception {
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(workspaceFile));
+    MockBatchTransport transport = new MockBatchTransport();
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        false /* sharedPublicly */, true /* forFailedJobs */,
+        false /* showInline */, null /* pathPrefix */,
+        newBatchModule(transport), FAKE_DETAILS, uploads);
+    underTest.setMirror(true);
+    transport.existing.add("stale.baz");
+
+    // Nothing is listed, uploaded or deleted.
+    try {
+      underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+    } finally {
+      assertTrue(transport.batches.isEmpty());
+    }
+  }
+
+  @Test
+  public void testMirrorUnauthorizedDeletionRefreshesCredentials()
+      throws Exception {
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(workspaceFile));
+    final MockBatchTransport transport = new MockBatchTransport();
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        false /* sharedPublicly */, true /* forFailedJobs */,
+        false /* showInline */, null /* pathPrefix */,
+        new MockUploadModule(executor) {
+          @Override
+          public Storage getStorageService(
+              GoogleRobotCredentials credentials, String version) {
+            // The deletion is refused until the credentials are
+            // initialized again after it.
+            if (!transport.batches.isEmpty()) {
+              transport.unauthorized.clear();
+            }
+            return transport.newService();
+          }
+        }, FAKE_DETAILS, uploads);
+    underTest.setMirror(true);
+    underTest.setMirrorBucketRoot(true);
+
+    byte[] content = workspaceFileContent.getBytes(Charsets.UTF_8);
+    executor.when(Storage.Objects.List.class, new Objects()
+        .setItems(ImmutableList.of(
+            new StorageObject().setName(FILENAME)
+                .setSize(BigInteger.valueOf(content.length))
+                .setCrc32c(StorageUtil.computeCrc32c(
+                    ByteStreams.asByteSource(content))),
+            new StorageObject().setName("stale.baz"))));
+    transport.existing.add("stale.baz");
+    transport.unauthorized.add("stale.baz");
+
+    underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+    assertTrue(transport.existing.isEmpty());
+  }
+
+  @Test
+  public void testMirrorDryRun() throws Exception {
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(workspaceFile));
+    MockBatchTransport transport = new MockBatchTransport();
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        false /* sharedPublicly */, true /* forFailedJobs */,
+        false /* showInline */, null /* pathPrefix */,
+        newBatchModule(transport), FAKE_DETAILS, uploads);
+    underTest.setMirror(true);
+    underTest.setMirrorBucketRoot(true);
+    underTest.setDryRun(true);
+
+    executor.when(Storage.Objects.List.class, new Objects()
+        .setItems(ImmutableList.of(new StorageObject().setName("stale.baz"))));
+    transport.existing.add("stale.baz");
+
+    // Nothing is uploaded or deleted.
+    underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+    assertTrue(transport.batches.isEmpty());
+    assertTrue(transport.existing.contains("stale.baz"));
+  }
+
+  @Test
+  public void testMirrorGzipContent() throws Exception {
+    FilePath log = workspace.child("build.log");
+    String logContent = Strings.repeat("[INFO] Some filler content\n", 1000);
+    log.write(logContent, Charsets.UTF_8.name());
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(log, workspaceFile));
+    MockBatchTransport transport = new MockBatchTransport();
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        false /* sharedPublicly */, true /* forFailedJobs */,
+        false /* showInline */, null /* pathPrefix */,
+        newBatchModule(transport), FAKE_DETAILS, uploads);
+    underTest.setMirror(true);
+    underTest.setMirrorBucketRoot(true);
+    underTest.setGzipContent(true);
+
+    // The log was stored compressed by an earlier run, so its object has
+    // the size and checksum of the compressed content.
+    byte[] compressed = new GzipByteSource(ByteStreams.asByteSource(
+        logContent.getBytes(Charsets.UTF_8))).read();
+    executor.when(Storage.Objects.List.class, new Objects()
+        .setItems(ImmutableList.of(new StorageObject().setName("build.log")
+            .setContentEncoding("gzip")
+            .setSize(BigInteger.valueOf(compressed.length))
+            .setCrc32c(StorageUtil.computeCrc32c(
+                ByteStreams.asByteSource(compressed))))));
+    // Only the new file is uploaded, and nothing is stale.
+    executor.when(Storage.Buckets.Get.class, new Bucket().setName(BUCKET_NAME));
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        checkContentEncoding(FILENAME, null));
+
+    underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+    assertTrue(transport.batches.isEmpty());
+  }
+
+  /**
+   * A module whose storage service sends the batched lookups and deletions
+   * of content-addressed uploads and mirrors to the given transport, while
+   * the executor answers every other request.
+   */
+  private MockUploadModule newBatchModule(
+      final MockBatchTransport transport) {
+    return new MockUploadModule(executor) {
+      @Override
+      public Storage getStorageService(GoogleRobotCredentials credentials,
+          String version) {
+        return transport.newService();
+      }
+    };
+  }
+
+  /**
+   * Checks that the inserted object is the manifest, with the given
+   * content.
+   */
+  private static Predicate<Storage.Objects.Insert> checkManifest(
+      final String expected) {
+    return new Predicate<Storage.Objects.Insert>() {
+      @Override
+      public boolean apply(Storage.Objects.Insert operation) {
+        StorageObject object = (StorageObject) operation.getJsonContent();
+        assertEquals("manifest.sha256", object.getName());
+        InputStreamContent content = (InputStreamContent)
+            operation.getMediaHttpUploader().getMediaContent();
+        try {
+          assertEquals(expected, new String(
+              ByteStreams.toByteArray(content.getInputStream()),
+              Charsets.UTF_8));
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+        return true;
+      }
+    };
+  }
+
+  @Test
+  public void testContentStore() throws Exception {
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(workspaceFile, workspaceFile2,
+                workspaceSubdirFile));
+    MockBatchTransport transport = new MockBatchTransport();
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        false /* sharedPublicly */, true /* forFailedJobs */,
+        false /* showInline */, null /* pathPrefix */,
+        newBatchModule(transport), FAKE_DETAILS, uploads);
+    underTest.setContentStore("cas");
+
+    // The three files share their content, which is uploaded once.
+    String hash = Hashing.sha256()
+        .hashString(workspaceFileContent, Charsets.UTF_8).toString();
+    executor.when(Storage.Buckets.Get.class, new Bucket().setName(BUCKET_NAME));
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        MockUploadModule.checkObjectName("cas/" + hash));
+    executor.when(Storage.Buckets.Get.class, new Bucket().setName(BUCKET_NAME));
+    executor.passThruWhen(Storage.Objects.Insert.class, checkManifest(
+        hash + "  " + FILENAME + "\n"
+        + hash + "  " + FILENAME2 + "\n"
+        + hash + "  " + SUBDIR_FILENAME + "\n"));
+
+    underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+    assertEquals(1, transport.batches.size());
+  }
+
+  @Test
+  public void testContentStoreExisting() throws Exception {
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(workspaceFile));
+    MockBatchTransport transport = new MockBatchTransport();
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        false /* sharedPublicly */, true /* forFailedJobs */,
+        false /* showInline */, null /* pathPrefix */,
+        newBatchModule(transport), FAKE_DETAILS, uploads);
+    underTest.setContentStore("cas");
+
+    // The store has the content already, so only the manifest is uploaded.
+    String hash = Hashing.sha256()
+        .hashString(workspaceFileContent, Charsets.UTF_8).toString();
+    transport.existing.add("cas/" + hash);
+    executor.when(Storage.Buckets.Get.class, new Bucket().setName(BUCKET_NAME));
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        checkManifest(hash + "  " + FILENAME + "\n"));
+
+    underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+  }
+
+  @Test
+  public void testGzipContent() throws Exception {
+    final boolean sharedPublicly = false;
+    final boolean forFailedJobs = true;
+    final boolean showInline = false;
+    final String pathPrefix = null;
+
+    FilePath log = workspace.child("build.log");
+    log.write(Strings.repeat("[INFO] Some filler content\n", 1000),
+        Charsets.UTF_8.name());
+
+    final AbstractUpload.UploadSpec uploads =
+        new AbstractUpload.UploadSpec(workspace,
+            ImmutableList.of(log, workspaceFile));
+
+    FakeUpload underTest = new FakeUpload(BUCKET_URI,
+        sharedPublicly, forFailedJobs, showInline, pathPrefix,
+        new MockUploadModule(executor),
+        FAKE_DETAILS,
+        uploads);
+    underTest.setGzipContent(true);
+
+    executor.when(Storage.Buckets.Get.class,
+        new Bucket().setName(BUCKET_NAME));
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        checkContentEncoding("build.log", "gzip"));
+    // Too small to be worth compressing
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        checkContentEncoding(FILENAME, null));
+
+    underTest.perform(CREDENTIALS_ID, build, TaskListener.NULL);
+  }
+
+  private static Predicate<Storage.Objects.Insert> checkContentEncoding(
+      final String objectName, @Nullable final String encoding) {
+    return new Predicate<Storage.Objects.Insert>() {
+      @Override
+      public boolean apply(Storage.Objects.Insert operation) {
+        StorageObject object = (StorageObject) operation.getJsonContent();
+        assertEquals(objectName, object.getName());
+        assertEquals(encoding, object.getContentEncoding());
+        return true;
+      }
+    };
+  }
+
   @Test
   public void testNullUploadSpec() throws Exception {
     final boolean sharedPublicly = false;
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.jenkins.plugins.credentials.oauth.AbstractGoogleRobotCredentialsDescriptor;
+import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+import com.google.jenkins.plugins.storage.util.ArchiveByteSource;
+import com.google.jenkins.plugins.util.MockExecutor;
+import com.google.jenkins.plugins.util.NotFoundException;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+
+/**
+ * Tests for {@link CacheStep}.
+ */
+public class CacheStepTest {
+
+  @Rule
+  public JenkinsRule jenkins = new JenkinsRule();
+
+  @Rule
+  public TemporaryFolder tempDir = new TemporaryFolder();
+
+  @Mock
+  private GoogleRobotCredentials credentials;
+  private GoogleCredential credential;
+
+  private final MockExecutor executor = new MockExecutor();
+
+  @Mock
+  private AbstractGoogleRobotCredentialsDescriptor descriptor;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+
+    when(descriptor.getDisplayName()).thenReturn("Credentials Name");
+
+    when(credentials.getId()).thenReturn(CREDENTIALS_ID);
+    when(credentials.getProjectId()).thenReturn(PROJECT_ID);
+    when(credentials.getDescriptor()).thenReturn(descriptor);
+
+    if (jenkins.jenkins != null) {
+      SystemCredentialsProvider.getInstance().getCredentials().add(credentials);
+    }
+
+    credential = new GoogleCredential();
+    when(credentials.getGoogleCredential(isA(
+        GoogleOAuth2ScopeRequirement.class)))
+        .thenReturn(credential);
+
+    // Return ourselves as remotable
+    when(credentials.forRemote(isA(GoogleOAuth2ScopeRequirement.class)))
+        .thenReturn(credentials);
+  }
+
+  private void ConfigurationRoundTripTest(CacheStep s) throws Exception {
+    CacheStep after = jenkins.configRoundtrip(s);
+    jenkins.assertEqualBeans(s, after,
+        "credentialsId,bucketUri,paths,key,keyFiles,restoreKeys,save");
+  }
+
+  @Test
+  public void testRoundtrip() throws Exception {
+    CacheStep step = new CacheStep(CREDENTIALS_ID, BUCKET_URI, "deps",
+        "key", new MockUploadModule(executor));
+    ConfigurationRoundTripTest(step);
+
+    step.setKeyFiles("**/pom.xml");
+    step.setRestoreKeys("key-\nother-");
+    step.setSave(true);
+    ConfigurationRoundTripTest(step);
+  }
+
+  /**
+   * A project that builds in a workspace of the given name.
+   */
+  private FreeStyleProject createProject(String name, CacheStep step)
+      throws IOException {
+    FreeStyleProject project = jenkins.createFreeStyleProject(name);
+    project.setCustomWorkspace(new File(tempDir.getRoot(), name).getPath());
+    project.getBuildersList().add(step);
+    return project;
+  }
+
+  private void write(String path, String content) throws IOException {
+    File file = new File(tempDir.getRoot(), path);
+    file.getParentFile().mkdirs();
+    Files.write(content, file, Charsets.UTF_8);
+  }
+
+  private String read(String path) throws IOException {
+    return Files.toString(new File(tempDir.getRoot(), path), Charsets.UTF_8);
+  }
+
+  private static StorageObject cacheObject(String name, long updated) {
+    return new StorageObject()
+        .setName(name)
+        .setGeneration(GENERATION)
+        .setUpdated(new DateTime(updated));
+  }
+
+  @Test
+  public void testSaveAndRestore() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor);
+    CacheStep save = new CacheStep(CREDENTIALS_ID, BUCKET_URI, "deps",
+        "deps", module);
+    save.setSave(true);
+    FreeStyleProject saving = createProject("saving", save);
+    write("saving/deps/a.txt", "a");
+    write("saving/deps/sub/b.txt", "b");
+    write("saving/other.txt", "other");
+
+    // The cache does not exist yet, so it is saved.
+    final byte[][] archive = new byte[1][];
+    executor.throwWhen(Storage.Objects.Get.class, new NotFoundException());
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        new Predicate<Storage.Objects.Insert>() {
+          @Override
+          public boolean apply(Storage.Objects.Insert operation) {
+            StorageObject object = (StorageObject) operation.getJsonContent();
+            assertEquals(OBJECT_NAME, object.getName());
+            InputStreamContent content = (InputStreamContent)
+                operation.getMediaHttpUploader().getMediaContent();
+            try {
+              archive[0] = ByteStreams.toByteArray(content.getInputStream());
+            } catch (IOException e) {
+              throw new AssertionError(e);
+            }
+            return true;
+          }
+        });
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(saving);
+    jenkins.assertLogContains("Saving 2 files to the cache", build);
+
+    CacheStep restore = new CacheStep(CREDENTIALS_ID, BUCKET_URI, "deps",
+        "deps", module);
+    FreeStyleProject restoring = createProject("restoring", restore);
+    executor.when(Storage.Objects.Get.class, cacheObject(OBJECT_NAME, 0),
+        MockUploadModule.checkGetObject(OBJECT_NAME));
+    module.addNextMedia(new ByteArrayInputStream(archive[0]));
+    build = jenkins.buildAndAssertSuccess(restoring);
+
+    jenkins.assertLogContains("Restored 2 files from the cache", build);
+    assertEquals("a", read("restoring/deps/a.txt"));
+    assertEquals("b", read("restoring/deps/sub/b.txt"));
+    assertTrue(!new File(tempDir.getRoot(), "restoring/other.txt").exists());
+  }
+
+  @Test
+  public void testSaveExisting() throws Exception {
+    CacheStep step = new CacheStep(CREDENTIALS_ID, BUCKET_URI, "deps",
+        "deps", new MockUploadModule(executor));
+    step.setSave(true);
+    FreeStyleProject project = createProject("project", step);
+    write("project/deps/a.txt", "a");
+
+    // Nothing is uploaded, which the executor would not expect.
+    executor.when(Storage.Objects.Get.class, cacheObject(OBJECT_NAME, 0),
+        MockUploadModule.checkGetObject(OBJECT_NAME));
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    jenkins.assertLogContains(
+        "Not saving the cache, which already exists", build);
+  }
+
+  @Test
+  public void testSaveSkipsLinks() throws Exception {
+    CacheStep step = new CacheStep(CREDENTIALS_ID, BUCKET_URI, "deps",
+        "deps", new MockUploadModule(executor));
+    step.setSave(true);
+    FreeStyleProject project = createProject("project", step);
+    write("project/deps/a.txt", "a");
+    java.nio.file.Files.createSymbolicLink(
+        new File(tempDir.getRoot(), "project/deps/link").toPath(),
+        new File(tempDir.getRoot(), "project/deps/a.txt").toPath());
+
+    executor.throwWhen(Storage.Objects.Get.class, new NotFoundException());
+    executor.passThruWhen(Storage.Objects.Insert.class,
+        MockUploadModule.checkObjectName(OBJECT_NAME));
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    jenkins.assertLogContains(
+        "Not saving the symbolic link to the cache: deps/link", build);
+    jenkins.assertLogContains("Saving 1 files to the cache", build);
+  }
+
+  @Test
+  public void testKeyFiles() throws Exception {
+    CacheStep step = new CacheStep(CREDENTIALS_ID, BUCKET_URI, "deps",
+        "deps", new MockUploadModule(executor));
+    step.setKeyFiles("**/pom.xml");
+    FreeStyleProject project = createProject("project", step);
+    write("project/pom.xml", "<project/>");
+
+    executor.throwWhen(Storage.Objects.Get.class, new NotFoundException());
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+    String first = keyOf(build);
+    assertTrue(first.startsWith("deps-"));
+
+    // The key follows the content of the files.
+    executor.throwWhen(Storage.Objects.Get.class, new NotFoundException());
+    assertEquals(first, keyOf(jenkins.buildAndAssertSuccess(project)));
+    write("project/pom.xml", "<project><version>2</version></project>");
+    executor.throwWhen(Storage.Objects.Get.class, new NotFoundException());
+    assertTrue(!first.equals(keyOf(jenkins.buildAndAssertSuccess(project))));
+  }
+
+  private static String keyOf(FreeStyleBuild build) throws IOException {
+    for (String line : build.getLog(100)) {
+      int start = line.indexOf(KEY_MESSAGE);
+      if (start >= 0) {
+        return line.substring(start + KEY_MESSAGE.length());
+      }
+    }
+    throw new AssertionError("The build logged no key");
+  }
+
+  @Test
+  public void testRestoreFallback() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor);
+    CacheStep step = new CacheStep(CREDENTIALS_ID, BUCKET_URI, "deps",
+        "deps-new", module);
+    step.setRestoreKeys("missing-\ndeps-");
+    FreeStyleProject project = createProject("project", step);
+
+    // No cache has the exact key, nor the first restore key, so the most
+    // recent one with the second is restored.
+    executor.throwWhen(Storage.Objects.Get.class, new NotFoundException());
+    executor.when(Storage.Objects.List.class, new Objects());
+    executor.when(Storage.Objects.List.class,
+        new Objects().setItems(ImmutableList.of(
+            cacheObject("caches/deps-old.tar.gz", 1000),
+            cacheObject("caches/deps-newer.tar.gz", 2000),
+            cacheObject("caches/deps-other.txt", 3000))));
+    module.addNextMedia(new ByteArrayInputStream(
+        new ArchiveByteSource(ImmutableList.of(new ArchiveByteSource.Member(
+            "deps/a.txt", ByteStreams.asByteSource(new byte[] {'a'}), 1,
+            1500000000000L)), true /* compressed */).read()));
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    jenkins.assertLogContains(
+        "Restoring the cache: caches/deps-newer.tar.gz", build);
+    assertEquals("a", read("project/deps/a.txt"));
+  }
+
+  @Test
+  public void testRestoreRetriesIntoCleanDirectory() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor, 2 /* retries */);
+    CacheStep step = new CacheStep(CREDENTIALS_ID, BUCKET_URI, "deps",
+        "deps", module);
+    FreeStyleProject project = createProject("project", step);
+    write("project/deps/kept.txt", "kept");
+
+    byte[] large = new byte[256 * 1024];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) (i * 31 + i / 7);
+    }
+    byte[] archive = new ArchiveByteSource(ImmutableList.of(
+        new ArchiveByteSource.Member("deps/a.txt",
+            ByteStreams.asByteSource(new byte[] {'a'}), 1, 1500000000000L),
+        new ArchiveByteSource.Member("deps/large.bin",
+            ByteStreams.asByteSource(large), large.length, 1500000000000L)),
+        true /* compressed */).read();
+
+    // The first download breaks off in the middle of the archive.
+    executor.when(Storage.Objects.Get.class, cacheObject(OBJECT_NAME, 0),
+        MockUploadModule.checkGetObject(OBJECT_NAME));
+    module.addNextMedia(new ByteArrayInputStream(
+        Arrays.copyOf(archive, archive.length / 2)));
+    module.addNextMedia(new ByteArrayInputStream(archive));
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    jenkins.assertLogContains("Restored 2 files from the cache", build);
+    assertEquals("a", read("project/deps/a.txt"));
+    assertEquals("kept", read("project/deps/kept.txt"));
+    assertArrayEquals(large, Files.toByteArray(
+        new File(tempDir.getRoot(), "project/deps/large.bin")));
+    // Neither attempt left the directory it extracted into behind.
+    assertArrayEquals(new String[] {"deps"},
+        new File(tempDir.getRoot(), "project").list());
+  }
+
+  @Test
+  public void testRestoreMissed() throws Exception {
+    CacheStep step = new CacheStep(CREDENTIALS_ID, BUCKET_URI, "deps",
+        "deps", new MockUploadModule(executor));
+    FreeStyleProject project = createProject("project", step);
+
+    executor.throwWhen(Storage.Objects.Get.class, new NotFoundException());
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    jenkins.assertLogContains("No cache matches the key: caches/deps", build);
+  }
+
+  private static final String PROJECT_ID = "foo.com:bar-baz";
+  private static final String CREDENTIALS_ID = "bazinga";
+  private static final String BUCKET_URI = "gs://bucket/caches";
+  private static final String OBJECT_NAME = "caches/deps.tar.gz";
+  private static final long GENERATION = 1234L;
+  private static final String KEY_MESSAGE = "Cache key: ";
+}
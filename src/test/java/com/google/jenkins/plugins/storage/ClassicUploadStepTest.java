@@ -85,7 +85,11 @@ public class ClassicUploadStepTest {
       throws Exception {
     ClassicUploadStep after = jenkins.configRoundtrip(s);
     jenkins
-        .assertEqualBeans(s, after, "bucket,pattern,pathPrefix,credentialsId");
+        .assertEqualBeans(s, after,
+            "bucket,pattern,pathPrefix,credentialsId,parallelism,"
+            + "resumableThreshold,chunkSize,compositeSlices,minSliceSize,"
+            + "skipUnchanged,gzipContent,gzipExtensions,archiveName,"
+            + "contentStore,mirror,dryRun");
   }
 
   @Test
@@ -102,6 +106,34 @@ public class ClassicUploadStepTest {
 
     step.setShowInline(true);
     ConfigurationRoundTripTest(step);
+
+    step.setParallelism(8);
+    ConfigurationRoundTripTest(step);
+
+    step.setResumableThreshold(128);
+    step.setChunkSize(16);
+    ConfigurationRoundTripTest(step);
+
+    step.setCompositeSlices(8);
+    step.setMinSliceSize(32);
+    ConfigurationRoundTripTest(step);
+
+    step.setSkipUnchanged(true);
+    ConfigurationRoundTripTest(step);
+
+    step.setGzipContent(true);
+    step.setGzipExtensions("log,txt");
+    ConfigurationRoundTripTest(step);
+
+    step.setContentStore("cas");
+    ConfigurationRoundTripTest(step);
+
+    step.setMirror(true);
+    step.setDryRun(true);
+    ConfigurationRoundTripTest(step);
+
+    step.setArchiveName("files-$BUILD_NUMBER.tar.gz");
+    ConfigurationRoundTripTest(step);
   }
 
   @Test
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.WithoutJenkins;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static com.google.api.client.http.HttpStatusCodes.STATUS_CODE_UNAUTHORIZED;
+
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.StubHttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.jenkins.plugins.credentials.oauth.AbstractGoogleRobotCredentialsDescriptor;
+import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
+import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+import com.google.jenkins.plugins.storage.util.RewriteRequest;
+import com.google.jenkins.plugins.storage.util.RewriteResponse;
+import com.google.jenkins.plugins.storage.util.WildcardPattern;
+import com.google.jenkins.plugins.util.MockExecutor;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+
+/**
+ * Tests for {@link CopyStep}.
+ */
+public class CopyStepTest {
+
+  @Rule
+  public JenkinsRule jenkins = new JenkinsRule();
+
+  @Mock
+  private GoogleRobotCredentials credentials;
+  private GoogleCredential credential;
+
+  private final MockExecutor executor = new MockExecutor();
+
+  @Mock
+  private AbstractGoogleRobotCredentialsDescriptor descriptor;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+
+    when(descriptor.getDisplayName()).thenReturn("Credentials Name");
+
+    when(credentials.getId()).thenReturn(CREDENTIALS_ID);
+    when(credentials.getProjectId()).thenReturn(PROJECT_ID);
+    when(credentials.getDescriptor()).thenReturn(descriptor);
+
+    if (jenkins.jenkins != null) {
+      SystemCredentialsProvider.getInstance().getCredentials().add(credentials);
+    }
+
+    credential = new GoogleCredential();
+    when(credentials.getGoogleCredential(isA(
+        GoogleOAuth2ScopeRequirement.class)))
+        .thenReturn(credential);
+  }
+
+  private void ConfigurationRoundTripTest(CopyStep s) throws Exception {
+    CopyStep after = jenkins.configRoundtrip(s);
+    jenkins.assertEqualBeans(s, after,
+        "sourceUri,destinationUri,pathPrefix,credentialsId,parallelism");
+  }
+
+  @Test
+  public void testRoundtrip() throws Exception {
+    CopyStep step = new CopyStep(CREDENTIALS_ID, "gs://bucket/*",
+        "gs://other/", new MockUploadModule(executor));
+    ConfigurationRoundTripTest(step);
+
+    step.setPathPrefix("prefix");
+    ConfigurationRoundTripTest(step);
+
+    step.setParallelism(8);
+    ConfigurationRoundTripTest(step);
+  }
+
+  @Test
+  public void testBuild() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor);
+    CopyStep step = new CopyStep(CREDENTIALS_ID,
+        "gs://staging/path/to/obj.txt", "gs://releases/obj.txt", module);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    StorageObject objToCopy = new StorageObject();
+    objToCopy.setName("path/to/obj.txt");
+    objToCopy.setGeneration(GENERATION);
+    executor.when(Storage.Objects.Get.class, objToCopy,
+        MockUploadModule.checkGetObject("path/to/obj.txt"));
+    // The rewrite takes two requests, the second of which continues with
+    // the token returned by the first.
+    executor.when(RewriteRequest.class, new RewriteResponse()
+        .setDone(false).setRewriteToken("token")
+        .setTotalBytesRewritten(1L).setObjectSize(2L),
+        checkRewrite("path/to/obj.txt", "obj.txt", null));
+    executor.when(RewriteRequest.class, new RewriteResponse()
+        .setDone(true).setTotalBytesRewritten(2L).setObjectSize(2L),
+        checkRewrite("path/to/obj.txt", "obj.txt", "token"));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    jenkins.assertLogContains("Copied 1 objects of 2 bytes", build);
+  }
+
+  @Test
+  public void testBuildWildcard() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor);
+    CopyStep step = new CopyStep(CREDENTIALS_ID,
+        "gs://staging/build/*.txt", "gs://releases/1.0", module);
+    step.setPathPrefix("build");
+    // The MockExecutor expects the objects in the order they are listed.
+    step.setParallelism(1);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    Objects objects = new Objects();
+    List<StorageObject> items = Lists.newArrayList();
+    for (String name : ImmutableList.of("build/a.txt", "build/b.log",
+        "build/c.txt")) {
+      items.add(new StorageObject().setName(name));
+    }
+    objects.setItems(items);
+    executor.when(Storage.Objects.List.class, objects);
+    executor.when(RewriteRequest.class,
+        new RewriteResponse().setDone(true).setObjectSize(3L),
+        checkRewrite("build/a.txt", "1.0/a.txt", null));
+    executor.when(RewriteRequest.class,
+        new RewriteResponse().setDone(true).setObjectSize(4L),
+        checkRewrite("build/c.txt", "1.0/c.txt", null));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    jenkins.assertLogContains("Copied 2 objects of 7 bytes", build);
+    assertTrue(executor.sawAll());
+  }
+
+  @Test
+  public void testBuildListingUnauthorizedTwiceFails() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor);
+    CopyStep step = new CopyStep(CREDENTIALS_ID, "gs://staging/build/*",
+        "gs://releases/1.0", module);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    // The listing is retried once with refreshed credentials, after which
+    // the workers waiting on it must stop rather than poll for objects
+    // that never come.
+    executor.throwWhen(Storage.Objects.List.class,
+        new StubHttpResponseException(STATUS_CODE_UNAUTHORIZED, "Stub!"));
+    executor.throwWhen(Storage.Objects.List.class,
+        new StubHttpResponseException(STATUS_CODE_UNAUTHORIZED, "Stub!"));
+
+    project.getBuildersList().add(step);
+    jenkins.assertBuildStatus(Result.FAILURE,
+        project.scheduleBuild2(0).get(60, TimeUnit.SECONDS));
+    assertTrue(executor.sawAll());
+  }
+
+  @Test
+  public void testBuildRewriteFailureFails() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor);
+    CopyStep step = new CopyStep(CREDENTIALS_ID, "gs://staging/build/*",
+        "gs://releases/1.0", module);
+    step.setParallelism(1);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    Objects objects = new Objects();
+    objects.setItems(ImmutableList.of(
+        new StorageObject().setName("build/a.txt"),
+        new StorageObject().setName("build/b.txt")));
+    executor.when(Storage.Objects.List.class, objects);
+    executor.throwWhen(RewriteRequest.class, new IOException("Stub!"),
+        checkRewrite("build/a.txt", "1.0/a.txt", null));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.assertBuildStatus(Result.FAILURE,
+        project.scheduleBuild2(0).get(60, TimeUnit.SECONDS));
+
+    // The second object is not copied once the first has failed for good.
+    jenkins.assertLogNotContains("build/b.txt", build);
+    assertTrue(executor.sawAll());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testGetDestinationName() throws Exception {
+    WildcardPattern literal = WildcardPattern.compile("a/b.txt");
+    WildcardPattern wildcard = WildcardPattern.compile("a/*.txt");
+
+    assertEquals("c.txt",
+        CopyStep.getDestinationName(literal, "c.txt", "a/b.txt", null));
+    assertEquals("c/a/b.txt",
+        CopyStep.getDestinationName(literal, "c/", "a/b.txt", null));
+    assertEquals("a/b.txt",
+        CopyStep.getDestinationName(literal, "", "a/b.txt", null));
+    assertEquals("c/b.txt",
+        CopyStep.getDestinationName(wildcard, "c", "a/b.txt", "a/"));
+    assertEquals("c/a/b.txt",
+        CopyStep.getDestinationName(wildcard, "c", "a/b.txt", "d/"));
+  }
+
+  private static Predicate<RewriteRequest> checkRewrite(
+      final String source, final String destination, final String token) {
+    return new Predicate<RewriteRequest>() {
+      @Override
+      public boolean apply(RewriteRequest request) {
+        assertEquals("staging", request.getSourceBucket());
+        assertEquals(source, request.getSourceObject());
+        assertEquals("releases", request.getDestinationBucket());
+        assertEquals(destination, request.getDestinationObject());
+        assertEquals(token, request.getRewriteToken());
+        return true;
+      }
+    };
+  }
+
+  private static final Long GENERATION = 1234L;
+  private static final String PROJECT_ID = "foo.com:bar-baz";
+  private static final String CREDENTIALS_ID = "bazinga";
+}
@@ -15,17 +15,32 @@
  */
 package com.google.jenkins.plugins.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
-import static org.junit.Assert.fail;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.when;
 
@@ -34,24 +49,30 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.jvnet.hudson.test.JenkinsRule;
-import org.jvnet.hudson.test.WithoutJenkins;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import static com.google.api.client.http.HttpStatusCodes.STATUS_CODE_UNAUTHORIZED;
+
 import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.StubHttpResponseException;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.Objects;
 import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.jenkins.plugins.credentials.oauth.AbstractGoogleRobotCredentialsDescriptor;
 import com.google.jenkins.plugins.credentials.oauth.GoogleOAuth2ScopeRequirement;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+import com.google.jenkins.plugins.storage.util.Crc32c;
 import com.google.jenkins.plugins.util.MockExecutor;
 
-import hudson.AbortException;
 import hudson.FilePath;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Result;
 import hudson.util.IOUtils;
 
 
@@ -104,7 +125,8 @@ public class DownloadStepTest {
     DownloadStep after = jenkins.configRoundtrip(s);
     jenkins
         .assertEqualBeans(s, after,
-            "bucketUri,localDirectory,pathPrefix,credentialsId");
+            "bucketUri,localDirectory,pathPrefix,credentialsId,parallelism,"
+            + "slices,minSliceSize,skipExisting,keepCompressed,cacheOnAgent");
   }
 
   @Test
@@ -115,6 +137,11 @@ public class DownloadStepTest {
 
     step.setPathPrefix("prefix");
     ConfigurationRoundTripTest(step);
+
+    step.setParallelism(8);
+    step.setSlices(16);
+    step.setMinSliceSize(32);
+    ConfigurationRoundTripTest(step);
   }
 
   @Test
@@ -142,6 +169,75 @@ public class DownloadStepTest {
     assertEquals("test", result.readToString());
   }
 
+  @Test
+  public void testBuildSkipExisting() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor);
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/path/to/obj.txt", "", module);
+    step.setSkipExisting(true);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    byte[] content = "test".getBytes(Charsets.UTF_8);
+    Crc32c crc = new Crc32c();
+    crc.update(content, 0, content.length);
+    StorageObject objToGet = new StorageObject();
+    objToGet.setBucket("bucket");
+    objToGet.setName("path/to/obj.txt");
+    objToGet.setGeneration(GENERATION);
+    objToGet.setSize(BigInteger.valueOf(content.length));
+    objToGet.setCrc32c(Crc32c.encode(crc.getValue()));
+    executor.when(Storage.Objects.Get.class, objToGet,
+        MockUploadModule.checkGetObject("path/to/obj.txt"));
+    executor.when(Storage.Objects.Get.class, objToGet,
+        MockUploadModule.checkGetObject("path/to/obj.txt"));
+
+    // Only the first build has anything to download.
+    module.addNextMedia(new ByteArrayInputStream(content));
+
+    project.getBuildersList().add(step);
+    jenkins.buildAndAssertSuccess(project);
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    jenkins.assertLogContains("1 of 1 files were already up to date", build);
+    FilePath result = build.getWorkspace().withSuffix("/path/to/obj.txt");
+    assertEquals("test", result.readToString());
+  }
+
+  @Test
+  public void testBuildCacheOnAgent() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor);
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/path/to/obj.txt", "", module);
+    step.setCacheOnAgent(true);
+
+    byte[] content = "test".getBytes(Charsets.UTF_8);
+    StorageObject objToGet = new StorageObject();
+    objToGet.setBucket("bucket");
+    objToGet.setName("path/to/obj.txt");
+    objToGet.setGeneration(GENERATION);
+    objToGet.setSize(BigInteger.valueOf(content.length));
+    executor.when(Storage.Objects.Get.class, objToGet,
+        MockUploadModule.checkGetObject("path/to/obj.txt"));
+    executor.when(Storage.Objects.Get.class, objToGet,
+        MockUploadModule.checkGetObject("path/to/obj.txt"));
+
+    // Only the first project has anything to download, though the second
+    // one has a workspace of its own.
+    module.addNextMedia(new ByteArrayInputStream(content));
+
+    FreeStyleProject first = jenkins.createFreeStyleProject("first");
+    first.getBuildersList().add(step);
+    jenkins.buildAndAssertSuccess(first);
+    FreeStyleProject second = jenkins.createFreeStyleProject("second");
+    second.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(second);
+
+    jenkins.assertLogContains(
+        "1 of 1 files were taken from the agent cache", build);
+    FilePath result = build.getWorkspace().withSuffix("/path/to/obj.txt");
+    assertEquals("test", result.readToString());
+  }
+
   @Test
   public void testBuildPrefix() throws Exception {
     MockUploadModule module = new MockUploadModule(executor);
@@ -195,34 +291,304 @@ public class DownloadStepTest {
     assertEquals("contents 1", result.readToString());
   }
 
-  private void checkSplitException(String s) {
-    try {
-      DownloadStep.split(s);
-    } catch (AbortException e) {
-      assertTrue(e.getMessage().contains("Multiple asterisks"));
-      return;
+  /**
+   * Serves the requested range of the same content for every download.
+   */
+  private static class RangeUploadModule extends MockUploadModule {
+    public RangeUploadModule(MockExecutor executor, byte[] content) {
+      super(executor);
+      this.content = content;
+    }
+
+    @Override
+    public InputStream executeMediaAsInputStream(Storage.Objects.Get get) {
+      assertEquals(GENERATION, get.getGeneration());
+      String range = get.getRequestHeaders().getRange();
+      assertNotNull(range);
+      assertTrue(range.startsWith("bytes="));
+      String[] bounds = range.substring("bytes=".length()).split("-");
+      int first = Integer.parseInt(bounds[0]);
+      int last = Integer.parseInt(bounds[1]);
+      return new ByteArrayInputStream(content, first, last - first + 1);
     }
-    fail("Expected split to fail on input " + s);
+
+    private final byte[] content;
+  }
+
+  /**
+   * Fails the first download midway through the content, and serves the
+   * rest of it to the retry, which must ask for only that.
+   */
+  private static class FlakyUploadModule extends MockUploadModule {
+    public FlakyUploadModule(MockExecutor executor, byte[] content,
+        int failAt) {
+      super(executor, 2 /* retries */);
+      this.content = content;
+      this.failAt = failAt;
+    }
+
+    @Override
+    public InputStream executeMediaAsInputStream(Storage.Objects.Get get) {
+      assertEquals(GENERATION, get.getGeneration());
+      if (attempts++ == 0) {
+        assertNull(get.getRequestHeaders().getRange());
+        return new SequenceInputStream(
+            new ByteArrayInputStream(content, 0, failAt),
+            new InputStream() {
+              @Override
+              public int read() throws IOException {
+                throw new IOException("Connection reset");
+              }
+            });
+      }
+      assertEquals("bytes=" + failAt + "-",
+          get.getRequestHeaders().getRange());
+      return new ByteArrayInputStream(content, failAt,
+          content.length - failAt);
+    }
+
+    private final byte[] content;
+    private final int failAt;
+    private int attempts;
+  }
+
+  @Test
+  public void testBuildResumed() throws Exception {
+    byte[] content = new byte[100000];
+    new Random(42).nextBytes(content);
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/path/to/large.bin", "",
+        new FlakyUploadModule(executor, content, 40000));
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    executor.when(Storage.Objects.Get.class, largeObject(content, null),
+        MockUploadModule.checkGetObject("path/to/large.bin"));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    FilePath result = build.getWorkspace().withSuffix("/path/to/large.bin");
+    assertArrayEquals(content, IOUtils.toByteArray(result.read()));
+  }
+
+  /**
+   * Serves the content with one byte changed to the first {@code corrupt}
+   * downloads, and intact afterwards, always from the start.
+   */
+  private static class CorruptUploadModule extends MockUploadModule {
+    public CorruptUploadModule(MockExecutor executor, byte[] content,
+        int corrupt) {
+      super(executor, 2 /* retries */);
+      this.content = content;
+      this.corrupt = corrupt;
+    }
+
+    @Override
+    public InputStream executeMediaAsInputStream(Storage.Objects.Get get) {
+      assertNull(get.getRequestHeaders().getRange());
+      byte[] served = content.clone();
+      if (attempts++ < corrupt) {
+        served[served.length / 2] ^= 1;
+      }
+      return new ByteArrayInputStream(served);
+    }
+
+    private final byte[] content;
+    private final int corrupt;
+    private int attempts;
+  }
+
+  private static String crc32c(byte[] content) {
+    Crc32c crc = new Crc32c();
+    crc.update(content, 0, content.length);
+    return Crc32c.encode(crc.getValue());
+  }
+
+  @Test
+  public void testBuildRefetchedOnMismatch() throws Exception {
+    byte[] content = new byte[100000];
+    new Random(42).nextBytes(content);
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/path/to/large.bin", "",
+        new CorruptUploadModule(executor, content, 1));
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    executor.when(Storage.Objects.Get.class,
+        largeObject(content, crc32c(content)),
+        MockUploadModule.checkGetObject("path/to/large.bin"));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    FilePath result = build.getWorkspace().withSuffix("/path/to/large.bin");
+    assertArrayEquals(content, IOUtils.toByteArray(result.read()));
+  }
+
+  @Test
+  public void testBuildMismatchFails() throws Exception {
+    byte[] content = new byte[100000];
+    new Random(42).nextBytes(content);
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/path/to/large.bin", "",
+        new CorruptUploadModule(executor, content, 3));
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    executor.when(Storage.Objects.Get.class,
+        largeObject(content, crc32c(content)),
+        MockUploadModule.checkGetObject("path/to/large.bin"));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.assertBuildStatus(Result.FAILURE,
+        project.scheduleBuild2(0).get());
+
+    assertFalse(build.getWorkspace().withSuffix("/path/to/large.bin")
+        .exists());
+  }
+
+  /**
+   * Serves the stored bytes of objects compressed with gzip, which the
+   * request must ask the transport to leave compressed.
+   */
+  private static class GzipUploadModule extends MockUploadModule {
+    public GzipUploadModule(MockExecutor executor, byte[] content) {
+      super(executor);
+      this.content = content;
+    }
+
+    @Override
+    public InputStream executeMediaAsInputStream(Storage.Objects.Get get) {
+      assertEquals("true", get.getRequestHeaders().get("X-Raw-Content"));
+      return new ByteArrayInputStream(content);
+    }
+
+    private final byte[] content;
+  }
+
+  private static byte[] gzip(String content) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(content.getBytes(Charsets.UTF_8));
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private FreeStyleProject gzipEncodedProject(byte[] compressed,
+      String crc32c, boolean keepCompressed) throws Exception {
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/path/to/obj.txt", "",
+        new GzipUploadModule(executor, compressed));
+    step.setKeepCompressed(keepCompressed);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    StorageObject objToGet = new StorageObject();
+    objToGet.setBucket("bucket");
+    objToGet.setName("path/to/obj.txt");
+    objToGet.setGeneration(GENERATION);
+    // The size and checksum of the compressed content
+    objToGet.setSize(BigInteger.valueOf(compressed.length));
+    objToGet.setCrc32c(crc32c);
+    objToGet.setContentEncoding("gzip");
+    executor.when(Storage.Objects.Get.class, objToGet,
+        MockUploadModule.checkGetObject("path/to/obj.txt"));
+
+    project.getBuildersList().add(step);
+    return project;
+  }
+
+  @Test
+  public void testBuildGzipEncoded() throws Exception {
+    byte[] compressed = gzip("test");
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(
+        gzipEncodedProject(compressed, crc32c(compressed), false));
+
+    FilePath result = build.getWorkspace().withSuffix("/path/to/obj.txt");
+    assertEquals("test", result.readToString());
+  }
+
+  @Test
+  public void testBuildKeepCompressed() throws Exception {
+    byte[] compressed = gzip("test");
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(
+        gzipEncodedProject(compressed, crc32c(compressed), true));
+
+    FilePath result = build.getWorkspace().withSuffix("/path/to/obj.txt");
+    assertArrayEquals(compressed, IOUtils.toByteArray(result.read()));
+  }
+
+  @Test
+  public void testBuildGzipEncodedChecksumMismatch() throws Exception {
+    byte[] compressed = gzip("test");
+    FreeStyleProject project =
+        gzipEncodedProject(compressed, crc32c(gzip("other")), false);
+
+    FreeStyleBuild build = jenkins.assertBuildStatus(Result.FAILURE,
+        project.scheduleBuild2(0).get());
+
+    assertFalse(build.getWorkspace().withSuffix("/path/to/obj.txt")
+        .exists());
+  }
+
+  private StorageObject largeObject(byte[] content, String crc32c) {
+    StorageObject obj = new StorageObject();
+    obj.setBucket("bucket");
+    obj.setName("path/to/large.bin");
+    obj.setGeneration(GENERATION);
+    obj.setSize(BigInteger.valueOf(content.length));
+    obj.setCrc32c(crc32c);
+    return obj;
+  }
+
+  private static byte[] largeContent() {
+    // Three slices of one MiB, and a few more bytes.
+    byte[] content = new byte[3 * 1024 * 1024 + 5];
+    new Random(42).nextBytes(content);
+    return content;
   }
 
   @Test
-  @WithoutJenkins
-  public void testSplit() throws Exception {
-    assertArrayEquals(DownloadStep.split("a"), new String[] {"a"});
-    assertArrayEquals(DownloadStep.split("asdjfkl2358/9/8024@#$@%^$#^#"),
-        new String[] {"asdjfkl2358/9/8024@#$@%^$#^#"});
+  public void testBuildSliced() throws Exception {
+    byte[] content = largeContent();
+    Crc32c crc = new Crc32c();
+    crc.update(content, 0, content.length);
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/path/to/large.bin", "",
+        new RangeUploadModule(executor, content));
+    step.setSlices(3);
+    step.setMinSliceSize(1);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    executor.when(Storage.Objects.Get.class,
+        largeObject(content, Crc32c.encode(crc.getValue())),
+        MockUploadModule.checkGetObject("path/to/large.bin"));
 
-    assertArrayEquals(DownloadStep.split("a*"), new String[] {"a", ""});
-    assertArrayEquals(DownloadStep.split("*"), new String[] {"", ""});
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
 
-    assertArrayEquals(DownloadStep.split("pre-*-post"),
-        new String[] {"pre-", "-post"});
+    FilePath result = build.getWorkspace().withSuffix("/path/to/large.bin");
+    assertTrue(result.exists());
+    assertArrayEquals(content, IOUtils.toByteArray(result.read()));
+  }
+
+  @Test
+  public void testBuildSlicedChecksumMismatch() throws Exception {
+    byte[] content = largeContent();
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/path/to/large.bin", "",
+        new RangeUploadModule(executor, content));
+    step.setSlices(3);
+    step.setMinSliceSize(1);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    executor.when(Storage.Objects.Get.class,
+        largeObject(content, "AAAAAA=="),
+        MockUploadModule.checkGetObject("path/to/large.bin"));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.assertBuildStatus(Result.FAILURE,
+        project.scheduleBuild2(0).get());
 
-    // Not yet supported
-    checkSplitException("**");
-    checkSplitException("a**");
-    checkSplitException("a*b*c");
-    checkSplitException("a/*b/*c");
+    assertFalse(build.getWorkspace().withSuffix("/path/to/large.bin")
+        .exists());
   }
 
   /**
@@ -348,6 +714,223 @@ public class DownloadStepTest {
             "a/b/c.txt"});
   }
 
+  @Test
+  public void testBuildWildcardsPaged() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor);
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/a/*", "", module);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    Objects first = createObjects("a/", Arrays.asList("a/1.txt"));
+    first.setNextPageToken("page2");
+    Objects second = createObjects("a/", Arrays.asList("a/2.txt"));
+    executor.when(Storage.Objects.List.class, first,
+        checkPageToken(null));
+    executor.when(Storage.Objects.List.class, second,
+        checkPageToken("page2"));
+    module.addNextMedia(IOUtils.toInputStream("contents 1", "UTF-8"));
+    module.addNextMedia(IOUtils.toInputStream("contents 1", "UTF-8"));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    jenkins.assertLogContains("Found 2 files to download", build);
+    assertTrue(build.getWorkspace().withSuffix("/a/1.txt").exists());
+    assertTrue(build.getWorkspace().withSuffix("/a/2.txt").exists());
+  }
+
+  @Test
+  public void testBuildWildcardsNested() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor);
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/logs/*/build-?.txt", "", module);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    List<String> names = Arrays.asList("logs/a/build-1.txt",
+        "logs/a/build-22.txt", "logs/a/other.txt", "logs/b.txt");
+    // The first level is listed for its subdirectories, and only the
+    // literal prefix of the second one is listed under each of them.
+    executor.when(Storage.Objects.List.class,
+        createObjects("logs/", names), checkPrefix("logs/"));
+    executor.when(Storage.Objects.List.class,
+        createObjects("logs/a/build-", names), checkPrefix("logs/a/build-"));
+    module.addNextMedia(IOUtils.toInputStream("contents 1", "UTF-8"));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    assertTrue(build.getWorkspace().withSuffix("/logs/a/build-1.txt")
+        .exists());
+    assertFalse(build.getWorkspace().withSuffix("/logs/a/build-22.txt")
+        .exists());
+  }
+
+  /**
+   * Serves the content of each object by its name, whichever worker asks
+   * for it, after failing the first request for it if told to.
+   */
+  private static class NamedUploadModule extends MockUploadModule {
+    public NamedUploadModule(MockExecutor executor) {
+      super(executor);
+    }
+
+    public void addFailure(String name, IOException e) {
+      failures.put(name, e);
+    }
+
+    @Override
+    public InputStream executeMediaAsInputStream(Storage.Objects.Get get)
+        throws IOException {
+      String name = get.getObject();
+      requests.add(name);
+      IOException failure = failures.remove(name);
+      if (failure != null) {
+        throw failure;
+      }
+      return IOUtils.toInputStream(contents(name), "UTF-8");
+    }
+
+    public static String contents(String name) {
+      return "contents of " + name;
+    }
+
+    private final Map<String, IOException> failures =
+        new ConcurrentHashMap<String, IOException>();
+    public final Queue<String> requests = new ConcurrentLinkedQueue<String>();
+  }
+
+  private static List<String> objectNames(String prefix, int count) {
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      names.add(prefix + i + ".txt");
+    }
+    return names;
+  }
+
+  @Test
+  public void testBuildParallel() throws Exception {
+    NamedUploadModule module = new NamedUploadModule(executor);
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/a/*", "", module);
+    step.setParallelism(4);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    List<String> names = objectNames("a/", 20);
+    executor.when(Storage.Objects.List.class, createObjects("a/", names));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    jenkins.assertLogContains("Found 20 files to download", build);
+    assertEquals(names.size(), module.requests.size());
+    for (String name : names) {
+      FilePath result = build.getWorkspace().withSuffix("/" + name);
+      assertEquals(NamedUploadModule.contents(name), result.readToString());
+    }
+  }
+
+  @Test
+  public void testBuildParallelFailureStopsOthers() throws Exception {
+    final CountDownLatch failing = new CountDownLatch(1);
+    NamedUploadModule module = new NamedUploadModule(executor) {
+      @Override
+      public InputStream executeMediaAsInputStream(Storage.Objects.Get get)
+          throws IOException {
+        if (get.getObject().equals("a/0.txt")) {
+          requests.add(get.getObject());
+          failing.countDown();
+          throw new IOException("Stub!");
+        }
+        // Hold the other worker until the download has failed for good.
+        Uninterruptibles.awaitUninterruptibly(failing, 60, TimeUnit.SECONDS);
+        return super.executeMediaAsInputStream(get);
+      }
+    };
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/a/*", "", module);
+    step.setParallelism(2);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    List<String> names = objectNames("a/", 500);
+    executor.when(Storage.Objects.List.class, createObjects("a/", names));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.assertBuildStatus(Result.FAILURE,
+        project.scheduleBuild2(0).get(60, TimeUnit.SECONDS));
+
+    assertFalse(build.getWorkspace().withSuffix("/a/0.txt").exists());
+    // The other worker stopped rather than download all that was left.
+    assertTrue(module.requests.size() < names.size());
+  }
+
+  @Test
+  public void testBuildParallelUnauthorizedRetriesObject() throws Exception {
+    NamedUploadModule module = new NamedUploadModule(executor);
+    module.addFailure("a/3.txt",
+        new StubHttpResponseException(STATUS_CODE_UNAUTHORIZED, "Stub!"));
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/a/*", "", module);
+    step.setParallelism(2);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    List<String> names = objectNames("a/", 6);
+    executor.when(Storage.Objects.List.class, createObjects("a/", names));
+
+    project.getBuildersList().add(step);
+    FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+
+    // The worker refreshed its credentials and downloaded the same object
+    // again, rather than move on without it.
+    assertEquals(names.size() + 1, module.requests.size());
+    FilePath result = build.getWorkspace().withSuffix("/a/3.txt");
+    assertEquals(NamedUploadModule.contents("a/3.txt"), result.readToString());
+  }
+
+  @Test
+  public void testBuildListingUnauthorizedTwiceFails() throws Exception {
+    MockUploadModule module = new MockUploadModule(executor);
+    DownloadStep step = new DownloadStep(CREDENTIALS_ID,
+        "gs://bucket/a/*", "", module);
+    FreeStyleProject project = jenkins.createFreeStyleProject("testBuild");
+
+    // The listing is retried once with refreshed credentials, after which
+    // the workers waiting on it must stop rather than poll for objects
+    // that never come.
+    executor.throwWhen(Storage.Objects.List.class,
+        new StubHttpResponseException(STATUS_CODE_UNAUTHORIZED, "Stub!"));
+    executor.throwWhen(Storage.Objects.List.class,
+        new StubHttpResponseException(STATUS_CODE_UNAUTHORIZED, "Stub!"));
+
+    project.getBuildersList().add(step);
+    jenkins.assertBuildStatus(Result.FAILURE,
+        project.scheduleBuild2(0).get(60, TimeUnit.SECONDS));
+    assertTrue(executor.sawAll());
+  }
+
+  private static Predicate<Storage.Objects.List> checkPrefix(
+      final String prefix) {
+    return new Predicate<Storage.Objects.List>() {
+      @Override
+      public boolean apply(Storage.Objects.List list) {
+        assertEquals(prefix, list.getPrefix());
+        assertEquals("/", list.getDelimiter());
+        return true;
+      }
+    };
+  }
+
+  private static Predicate<Storage.Objects.List> checkPageToken(
+      final String pageToken) {
+    return new Predicate<Storage.Objects.List>() {
+      @Override
+      public boolean apply(Storage.Objects.List list) {
+        assertEquals(pageToken, list.getPageToken());
+        return true;
+      }
+    };
+  }
+
+  private static final Long GENERATION = 1234L;
   private static final String PROJECT_ID = "foo.com:bar-baz";
   private static final String CREDENTIALS_ID = "bazinga";
 }
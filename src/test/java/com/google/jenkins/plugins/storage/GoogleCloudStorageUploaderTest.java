@@ -45,8 +45,10 @@ import static com.google.jenkins.plugins.storage.AbstractUploadDescriptor.GCS_SC
 
 import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.InputStreamContent;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Charsets;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.CharStreams;
@@ -110,6 +112,11 @@ public class GoogleCloudStorageUploaderTest {
       this.executor = executor;
     }
 
+    @Override
+    public long getBucketCacheTtl() {
+      return 0;
+    }
+
     @Override
     public MockExecutor newExecutor() {
       return executor;
@@ -235,6 +242,89 @@ public class GoogleCloudStorageUploaderTest {
         build.getLogInputStream())), containsString("Forbidden"));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testConcurrentUploads() throws Exception {
+    MockExecutor otherExecutor = new MockExecutor();
+    underTest = new GoogleCloudStorageUploader(CREDENTIALS_ID,
+        ImmutableList.<AbstractUpload>of(
+            new ClassicUpload(bucket, new MockUploadModule(executor),
+                glob, null /* legacy arg */, null /* legacy arg */),
+            new ClassicUpload("gs://other", new MockUploadModule(otherExecutor),
+                "baz.txt", null /* legacy arg */, null /* legacy arg */)));
+    underTest.setParallelism(2);
+
+    project.getBuildersList().add(
+        new Shell("echo foo > bar.txt; echo baz > baz.txt"));
+    project.getPublishersList().add(underTest);
+
+    executor.throwWhen(Storage.Buckets.Get.class, forbiddenException);
+    otherExecutor.throwWhen(Storage.Buckets.Get.class, notFoundException);
+    otherExecutor.passThruWhen(Storage.Buckets.Insert.class);
+    otherExecutor.passThruWhen(Storage.Objects.Insert.class);
+
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+    // The failure of one upload fails the build, but not the other upload.
+    assertEquals(Result.FAILURE, build.getResult());
+    assertTrue(otherExecutor.sawAll());
+    assertFalse(otherExecutor.sawUnexpected());
+
+    // The output of each upload is logged in order.
+    String log = CharStreams.toString(new InputStreamReader(
+        build.getLogInputStream()));
+    int failure = log.indexOf("Forbidden");
+    int upload = log.indexOf(Messages.AbstractUpload_Uploading("baz.txt"));
+    assertTrue(failure >= 0);
+    assertTrue(upload > failure);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testConcurrentUploadsLogLast() throws Exception {
+    MockExecutor logExecutor = new MockExecutor();
+    // The build log is uploaded first as configured, but only once the
+    // other upload has added its output to it.
+    underTest = new GoogleCloudStorageUploader(CREDENTIALS_ID,
+        ImmutableList.<AbstractUpload>of(
+            new StdoutUpload("gs://logs", new MockUploadModule(logExecutor),
+                "build-log.txt", null /* legacy arg */),
+            new ClassicUpload(bucket, new MockUploadModule(executor),
+                glob, null /* legacy arg */, null /* legacy arg */)));
+    underTest.setParallelism(2);
+
+    project.getBuildersList().add(new Shell("echo foo > bar.txt"));
+    project.getPublishersList().add(underTest);
+
+    executor.throwWhen(Storage.Buckets.Get.class, notFoundException);
+    executor.passThruWhen(Storage.Buckets.Insert.class);
+    executor.passThruWhen(Storage.Objects.Insert.class);
+    logExecutor.throwWhen(Storage.Buckets.Get.class, notFoundException);
+    logExecutor.passThruWhen(Storage.Buckets.Insert.class);
+    logExecutor.passThruWhen(Storage.Objects.Insert.class,
+        new Predicate<Storage.Objects.Insert>() {
+          @Override
+          public boolean apply(Storage.Objects.Insert insertion) {
+            InputStreamContent content = (InputStreamContent)
+                insertion.getMediaHttpUploader().getMediaContent();
+            try {
+              assertThat(CharStreams.toString(new InputStreamReader(
+                  content.getInputStream(), Charsets.UTF_8)),
+                  containsString(Messages.AbstractUpload_Uploading(glob)));
+            } catch (IOException e) {
+              throw new AssertionError(e);
+            }
+            return true;
+          }
+        });
+
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+    assertEquals(Result.SUCCESS, build.getResult());
+    assertTrue(logExecutor.sawAll());
+    assertFalse(logExecutor.sawUnexpected());
+  }
+
   @Test
   public void testBadBucket() throws Exception {
     bucket = "bucket";
@@ -18,7 +18,8 @@ package com.google.jenkins.plugins.storage;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static org.junit.Assert.assertEquals;
 
@@ -47,6 +48,23 @@ public class MockUploadModule extends UploadModule {
     return retryCount;
   }
 
+  /**
+   * The {@link MockExecutor} expects requests in a fixed order, so upload
+   * one file at a time unless a test asks otherwise.
+   */
+  @Override
+  public int getUploadParallelism() {
+    return 1;
+  }
+
+  /**
+   * Tests expect to see each upload fetch its bucket, so do not cache them.
+   */
+  @Override
+  public long getBucketCacheTtl() {
+    return 0;
+  }
+
   @Override
   public MockExecutor newExecutor() {
     return executor;
@@ -89,16 +107,14 @@ public class MockUploadModule extends UploadModule {
     };
   }
 
-  private final LinkedList<InputStream> mediaStreams =
-      new LinkedList<InputStream>();
+  // Downloads may run concurrently, and take the streams in any order.
+  private final Queue<InputStream> mediaStreams =
+      new ConcurrentLinkedQueue<InputStream>();
   public void addNextMedia(InputStream stream) {
     mediaStreams.add(stream);
   }
   public InputStream executeMediaAsInputStream(Get getObject)
       throws IOException {
-    if (mediaStreams.isEmpty()) {
-      return null;
-    }
-    return mediaStreams.remove(0);
+    return mediaStreams.poll();
   }
 };
@@ -19,7 +19,10 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import org.junit.Before;
@@ -30,11 +33,19 @@ import org.jvnet.hudson.test.JenkinsRule;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import static com.google.api.client.http.HttpStatusCodes
+    .STATUS_CODE_UNAUTHORIZED;
+
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 import com.google.api.services.storage.Storage;
 import com.google.jenkins.plugins.credentials.oauth
     .GoogleOAuth2ScopeRequirement;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
+import com.google.jenkins.plugins.storage.util.StorageClientPool;
 
 /**
  * Tests for {@link UploadModule}.
@@ -86,6 +97,54 @@ public class UploadModuleTest {
     assertEquals(storage.getApplicationName(), "Jenkins-GCS-Plugin");
   }
 
+  @Test
+  public void storageService_pooled() throws Exception {
+    Storage storage = underTest
+        .getStorageService(mockGoogleRobotCredentials, "v");
+    assertSame(storage, underTest
+        .getStorageService(mockGoogleRobotCredentials, "v"));
+    assertNotSame(storage, underTest
+        .getStorageService(mockGoogleRobotCredentials, "w"));
+
+    GoogleRobotCredentials otherCredentials =
+        mock(GoogleRobotCredentials.class);
+    when(otherCredentials.getGoogleCredential(isA(
+        GoogleOAuth2ScopeRequirement.class)))
+        .thenReturn(new GoogleCredential());
+    Storage other = underTest.getStorageService(otherCredentials, "v");
+    assertNotSame(storage, other);
+    // Clients share the transport, and thus its connections.
+    assertSame(storage.getRequestFactory().getTransport(),
+        other.getRequestFactory().getTransport());
+
+    StorageClientPool.getInstance().release();
+    assertNotSame(storage, underTest
+        .getStorageService(mockGoogleRobotCredentials, "v"));
+  }
+
+  @Test
+  public void storageService_evictedOnUnauthorized() throws Exception {
+    Storage storage = underTest
+        .getStorageService(mockGoogleRobotCredentials, "v");
+
+    // A request of the client is refused, and its credential has no way to
+    // refresh itself.
+    MockHttpTransport transport = new MockHttpTransport.Builder()
+        .setLowLevelHttpResponse(new MockLowLevelHttpResponse()
+            .setStatusCode(STATUS_CODE_UNAUTHORIZED))
+        .build();
+    HttpResponse response = transport
+        .createRequestFactory(storage.getRequestFactory().getInitializer())
+        .buildGetRequest(new GenericUrl("https://www.googleapis.com/"))
+        .setThrowExceptionOnExecuteError(false)
+        .execute();
+    assertEquals(STATUS_CODE_UNAUTHORIZED, response.getStatusCode());
+
+    // So the caller that re-initializes its credentials gets a new client.
+    assertNotSame(storage, underTest
+        .getStorageService(mockGoogleRobotCredentials, "v"));
+  }
+
   @Test
   public void newUploader_notRightScope()
       throws GeneralSecurityException, IOException, UploadException {
@@ -15,6 +15,7 @@
  */
 package com.google.jenkins.plugins.storage.reports;
 
+import java.util.Map;
 import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
@@ -53,6 +54,11 @@ public class AbstractGcsUploadReportTest {
       public Set<String> getBuckets() {
         return null;
       }
+
+      @Override
+      public Map<String, String> getArchivedObjects() {
+        return null;
+      }
     };
   }
 
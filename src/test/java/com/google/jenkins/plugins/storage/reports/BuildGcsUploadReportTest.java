@@ -79,6 +79,18 @@ public class BuildGcsUploadReportTest {
         Iterables.getLast(underTest.getStorageObjects()));
   }
 
+  @Test
+  public void addArchiveMember() throws Exception {
+    String relativePath = "relative/path";
+    assertEquals(0, underTest.getArchivedObjects().size());
+    underTest.addArchiveMember(relativePath, "files.tar",
+        new BucketPath("gs://myBucket/helloworld/18"));
+    assertEquals("myBucket/helloworld/18/files.tar",
+        underTest.getArchivedObjects().get(
+            "myBucket/helloworld/18/" + relativePath));
+    assertEquals(0, underTest.getStorageObjects().size());
+  }
+
   @Test
   public void of() {
     BuildGcsUploadReport report = BuildGcsUploadReport.of(build);
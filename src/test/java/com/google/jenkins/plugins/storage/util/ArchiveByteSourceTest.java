@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests for {@link ArchiveByteSource}.
+ */
+public class ArchiveByteSourceTest {
+
+  private static final byte[] SMALL = "hello\n".getBytes(Charsets.UTF_8);
+  private static final byte[] LARGE = new byte[10000];
+  private static final String LONG_NAME =
+      Strings.repeat("directory/", 12) + "file.txt";
+  private static final String LONGER_NAME = Strings.repeat("x", 300);
+
+  static {
+    new Random(42).nextBytes(LARGE);
+  }
+
+  private static List<ArchiveByteSource.Member> members() {
+    return ImmutableList.of(
+        member("small.txt", SMALL),
+        member("dir/large.bin", LARGE),
+        member("empty", new byte[0]),
+        member(LONG_NAME, SMALL),
+        member(LONGER_NAME, LARGE));
+  }
+
+  private static ArchiveByteSource.Member member(String name, byte[] data) {
+    return new ArchiveByteSource.Member(name, ByteStreams.asByteSource(data),
+        data.length, 1500000000000L);
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws IOException {
+    return ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(compressed)));
+  }
+
+  // Reads a NUL-terminated field of a tar header.
+  private static String field(byte[] header, int offset, int length) {
+    int end = offset;
+    while (end < offset + length && header[end] != 0) {
+      end++;
+    }
+    return new String(header, offset, end - offset, Charsets.UTF_8);
+  }
+
+  /**
+   * Returns the content at each range of the index, in order.
+   */
+  private static List<byte[]> readRanges(ArchiveByteSource archive,
+      byte[] bytes, List<ArchiveByteSource.Member> members) {
+    ImmutableList.Builder<byte[]> ranges = ImmutableList.builder();
+    int i = 0;
+    for (String line : Splitter.on('\n').omitEmptyStrings()
+             .split(archive.getIndex())) {
+      List<String> fields = ImmutableList.copyOf(
+          Splitter.on('\t').split(line));
+      assertEquals(3, fields.size());
+      assertEquals(members.get(i++).getName(), fields.get(2));
+      int offset = Integer.parseInt(fields.get(0));
+      int length = Integer.parseInt(fields.get(1));
+      ranges.add(Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+    assertEquals(members.size(), i);
+    return ranges.build();
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testRangesHoldContent() throws Exception {
+    List<ArchiveByteSource.Member> members = members();
+    ArchiveByteSource underTest = new ArchiveByteSource(members, false);
+    assertFalse(underTest.isComplete());
+
+    byte[] bytes = underTest.read();
+
+    assertTrue(underTest.isComplete());
+    assertEquals(underTest.getLength(), bytes.length);
+    assertEquals(0, bytes.length % 512);
+    List<byte[]> ranges = readRanges(underTest, bytes, members);
+    assertArrayEquals(SMALL, ranges.get(0));
+    assertArrayEquals(LARGE, ranges.get(1));
+    assertArrayEquals(new byte[0], ranges.get(2));
+    assertArrayEquals(SMALL, ranges.get(3));
+    assertArrayEquals(LARGE, ranges.get(4));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testHeader() throws Exception {
+    byte[] bytes = new ArchiveByteSource(
+        ImmutableList.of(member("small.txt", SMALL)), false).read();
+
+    assertEquals("small.txt", new String(bytes, 0, 9, Charsets.UTF_8));
+    assertEquals(0, bytes[9]);
+    assertEquals("ustar\u000000",
+        new String(bytes, 257, 8, Charsets.UTF_8));
+    assertEquals("00000000006",
+        new String(bytes, 124, 11, Charsets.UTF_8));
+
+    long checksum = 0;
+    for (int i = 0; i < 512; i++) {
+      checksum += i >= 148 && i < 156 ? ' ' : bytes[i] & 0xff;
+    }
+    assertEquals(checksum,
+        Long.parseLong(new String(bytes, 148, 6, Charsets.UTF_8), 8));
+    // The content, its padding and the end of the archive
+    assertEquals(512 + 512 + 1024, bytes.length);
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testLongNames() throws Exception {
+    byte[] bytes = new ArchiveByteSource(ImmutableList.of(
+        member(LONG_NAME, SMALL), member(LONGER_NAME, SMALL)), false).read();
+
+    // The first name is split between the prefix and name fields.
+    assertEquals(LONG_NAME,
+        field(bytes, 345, 155) + "/" + field(bytes, 0, 100));
+
+    // The second name comes in a pax extended header.
+    int pax = 512 + 512;
+    assertEquals('x', bytes[pax + 156]);
+    String records = new String(bytes, pax + 512, 512, Charsets.UTF_8);
+    assertTrue(records.startsWith("310 path=" + LONGER_NAME + "\n"));
+    assertEquals(LONGER_NAME.substring(0, 100),
+        field(bytes, pax + 1024, 100));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testCompressed() throws Exception {
+    List<ArchiveByteSource.Member> members = members();
+    ArchiveByteSource underTest = new ArchiveByteSource(members, true);
+    assertEquals(ResumableUpload.UNKNOWN_LENGTH, underTest.getLength());
+
+    byte[] bytes = underTest.read();
+
+    // The whole is a valid gzip of the uncompressed archive.
+    assertArrayEquals(new ArchiveByteSource(members, false).read(),
+        gunzip(bytes));
+    List<byte[]> ranges = readRanges(underTest, bytes, members);
+    assertArrayEquals(SMALL, gunzip(ranges.get(0)));
+    assertArrayEquals(LARGE, gunzip(ranges.get(1)));
+    assertArrayEquals(new byte[0], gunzip(ranges.get(2)));
+    assertArrayEquals(SMALL, gunzip(ranges.get(3)));
+    assertArrayEquals(LARGE, gunzip(ranges.get(4)));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testRereadIsIdentical() throws Exception {
+    ArchiveByteSource underTest = new ArchiveByteSource(members(), true);
+    byte[] first = underTest.read();
+    String index = underTest.getIndex();
+
+    assertArrayEquals(first, underTest.read());
+    assertEquals(index, underTest.getIndex());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testTruncatedFile() throws Exception {
+    ArchiveByteSource underTest = new ArchiveByteSource(ImmutableList.of(
+        new ArchiveByteSource.Member("short.txt",
+            ByteStreams.asByteSource(SMALL), SMALL.length + 1, 0)), false);
+    try {
+      underTest.read();
+      fail("Expected exception");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("short.txt"));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  @WithoutJenkins
+  public void testIndexBeforeRead() throws Exception {
+    new ArchiveByteSource(members(), false).getIndex();
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testEmpty() throws Exception {
+    ArchiveByteSource underTest = new ArchiveByteSource(
+        ImmutableList.<ArchiveByteSource.Member>of(), false);
+    assertEquals(1024, underTest.read().length);
+    assertEquals("", underTest.getIndex());
+  }
+}
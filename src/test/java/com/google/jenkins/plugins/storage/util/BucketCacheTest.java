@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Verifier;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import static com.google.api.client.http.HttpStatusCodes
+    .STATUS_CODE_NOT_MODIFIED;
+
+import com.google.api.client.http.StubHttpResponseException;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.ObjectAccessControl;
+import com.google.common.base.Predicate;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.jenkins.plugins.util.ForbiddenException;
+import com.google.jenkins.plugins.util.MockExecutor;
+import com.google.jenkins.plugins.util.NotFoundException;
+
+/**
+ * Tests for {@link BucketCache}.
+ */
+public class BucketCacheTest {
+
+  private static final String CREDENTIALS_ID = "credentials";
+  private static final String BUCKET_NAME = "bucket";
+  private static final long TTL = 60;
+
+  private final MockExecutor executor = new MockExecutor();
+  private final Storage service = new Storage.Builder(
+      new MockHttpTransport(), new JacksonFactory(), null)
+      .setApplicationName("test").build();
+
+  private long now;
+  private final BucketCache underTest = new BucketCache(new Ticker() {
+      @Override
+      public long read() {
+        return now;
+      }
+    });
+
+  private final Bucket bucket = new Bucket()
+      .setName(BUCKET_NAME)
+      .setMetageneration(3L)
+      .setDefaultObjectAcl(ImmutableList.of(new ObjectAccessControl()
+          .setEntity("project-owners-123").setRole("OWNER")));
+
+  @Rule
+  public Verifier verifySawAll = new Verifier() {
+      @Override
+      public void verify() {
+        assertTrue(executor.sawAll());
+        assertFalse(executor.sawUnexpected());
+      }
+    };
+
+  private Bucket get() throws Exception {
+    return underTest.get(executor, service, CREDENTIALS_ID, BUCKET_NAME, TTL);
+  }
+
+  private void elapse(long seconds) {
+    now += TimeUnit.SECONDS.toNanos(seconds);
+  }
+
+  private static Predicate<Storage.Buckets.Get> checkMetageneration(
+      final Long metageneration) {
+    return new Predicate<Storage.Buckets.Get>() {
+      @Override
+      public boolean apply(Storage.Buckets.Get operation) {
+        assertEquals(BUCKET_NAME, operation.getBucket());
+        assertEquals(metageneration,
+            operation.getIfMetagenerationNotMatch());
+        return true;
+      }
+    };
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testFreshEntryIsNotFetched() throws Exception {
+    assertNull(get());
+    underTest.put(CREDENTIALS_ID, bucket);
+
+    elapse(TTL - 1);
+    Bucket cached = get();
+
+    assertEquals(BUCKET_NAME, cached.getName());
+    assertEquals(bucket.getDefaultObjectAcl(), cached.getDefaultObjectAcl());
+    assertEquals(bucket.getMetageneration(), cached.getMetageneration());
+    // Other credentials have their own entries.
+    assertNull(underTest.get(executor, service, "other", BUCKET_NAME, TTL));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testUnchangedEntryIsRevalidated() throws Exception {
+    underTest.put(CREDENTIALS_ID, bucket);
+    executor.throwWhen(Storage.Buckets.Get.class,
+        new StubHttpResponseException(STATUS_CODE_NOT_MODIFIED, "Stub!"),
+        checkMetageneration(3L));
+
+    elapse(TTL);
+    assertEquals(bucket.getMetageneration(), get().getMetageneration());
+    // The revalidation starts a new time to live.
+    elapse(TTL - 1);
+    assertEquals(bucket.getMetageneration(), get().getMetageneration());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testChangedEntryIsReplaced() throws Exception {
+    underTest.put(CREDENTIALS_ID, bucket);
+    Bucket changed = new Bucket().setName(BUCKET_NAME).setMetageneration(4L);
+    executor.when(Storage.Buckets.Get.class, changed,
+        checkMetageneration(3L));
+
+    elapse(TTL);
+    assertEquals(Long.valueOf(4L), get().getMetageneration());
+    assertNull(get().getDefaultObjectAcl());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testMissingBucketIsInvalidated() throws Exception {
+    underTest.put(CREDENTIALS_ID, bucket);
+    executor.throwWhen(Storage.Buckets.Get.class, new NotFoundException());
+
+    elapse(TTL);
+    assertNull(get());
+    assertNull(get());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testForbiddenBucketIsInvalidated() throws Exception {
+    underTest.put(CREDENTIALS_ID, bucket);
+    executor.throwWhen(Storage.Buckets.Get.class, new ForbiddenException());
+
+    elapse(TTL);
+    try {
+      get();
+      fail("Expected exception");
+    } catch (ForbiddenException e) {
+      // expected
+    }
+    assertNull(get());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testInvalidate() throws Exception {
+    underTest.put(CREDENTIALS_ID, bucket);
+    underTest.invalidate(CREDENTIALS_ID, BUCKET_NAME);
+    assertNull(get());
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Tests for {@link ChecksumCache}.
+ */
+public class ChecksumCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final byte[] CONTENT = "hello world".getBytes(Charsets.UTF_8);
+  // The same size as CONTENT.
+  private static final byte[] OTHER = "HELLO WORLD".getBytes(Charsets.UTF_8);
+  private static final long MODIFIED = 1500000000000L;
+
+  private String crc32c;
+  private String md5Hash;
+  private File local;
+  private File cacheFile;
+
+  @Before
+  public void setUp() throws Exception {
+    crc32c = StorageUtil.computeCrc32c(ByteStreams.asByteSource(CONTENT));
+    md5Hash = StorageUtil.computeMd5(ByteStreams.asByteSource(CONTENT));
+    local = folder.newFile("file.txt");
+    write(CONTENT);
+    cacheFile = new File(folder.getRoot(), "cache/checksums");
+  }
+
+  // Writes the file without changing its modification time, as a change
+  // that only the checksum can tell.
+  private void write(byte[] content) throws Exception {
+    Files.write(content, local);
+    assertTrue(local.setLastModified(MODIFIED));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testMatches() throws Exception {
+    ChecksumCache underTest = ChecksumCache.load(null);
+    assertTrue(underTest.matches(local, CONTENT.length, crc32c, null));
+    assertTrue(underTest.matches(local, CONTENT.length, null, md5Hash));
+    assertFalse(underTest.matches(local, CONTENT.length + 1, crc32c, null));
+    assertFalse(underTest.matches(local, CONTENT.length, "AAAAAA==", null));
+    assertFalse(underTest.matches(local, CONTENT.length, null, null));
+    assertFalse(underTest.matches(new File(folder.getRoot(), "missing"),
+        CONTENT.length, crc32c, null));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testUnchangedFileIsNotRead() throws Exception {
+    ChecksumCache underTest = ChecksumCache.load(null);
+    assertTrue(underTest.matches(local, CONTENT.length, crc32c, null));
+
+    write(OTHER);
+    assertTrue(underTest.matches(local, CONTENT.length, crc32c, null));
+
+    // Touching the file invalidates its entry.
+    assertTrue(local.setLastModified(MODIFIED + 1000));
+    assertFalse(underTest.matches(local, CONTENT.length, crc32c, null));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testSaveAndLoad() throws Exception {
+    ChecksumCache underTest = ChecksumCache.load(cacheFile);
+    assertTrue(underTest.matches(local, CONTENT.length, crc32c, null));
+    underTest.save();
+
+    write(OTHER);
+    underTest = ChecksumCache.load(cacheFile);
+    assertTrue(underTest.matches(local, CONTENT.length, crc32c, null));
+    // The MD5 hash was never computed, so it is computed now.
+    assertFalse(underTest.matches(local, CONTENT.length, null, md5Hash));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testUnusedEntriesAreDropped() throws Exception {
+    ChecksumCache underTest = ChecksumCache.load(cacheFile);
+    underTest.matches(local, CONTENT.length, crc32c, null);
+    underTest.save();
+
+    ChecksumCache.load(cacheFile).save();
+    assertEquals(0, cacheFile.length());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testPut() throws Exception {
+    write(OTHER);
+    ChecksumCache underTest = ChecksumCache.load(null);
+    // As if the file had just been downloaded from an object.
+    underTest.put(local, crc32c, md5Hash);
+    assertTrue(underTest.matches(local, CONTENT.length, crc32c, null));
+    assertTrue(underTest.matches(local, CONTENT.length, null, md5Hash));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testCorruptCacheIsIgnored() throws Exception {
+    Files.createParentDirs(cacheFile);
+    Files.write("garbage\nmore\tgarbage\n", cacheFile, Charsets.UTF_8);
+    ChecksumCache underTest = ChecksumCache.load(cacheFile);
+    assertTrue(underTest.matches(local, CONTENT.length, crc32c, null));
+  }
+}
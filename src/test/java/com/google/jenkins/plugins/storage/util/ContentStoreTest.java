@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import hudson.FilePath;
+
+/**
+ * Tests for {@link ContentStore}.
+ */
+public class ContentStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final MockBatchTransport transport = new MockBatchTransport();
+
+  private Storage service;
+
+  @Before
+  public void setUp() {
+    service = transport.newService();
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testGetObjectName() {
+    assertEquals("abc", ContentStore.getObjectName("", "abc"));
+    assertEquals("cas/abc", ContentStore.getObjectName("cas", "abc"));
+    assertEquals("cas/abc", ContentStore.getObjectName("cas/", "abc"));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testHashFiles() throws Exception {
+    File a = folder.newFile("a.txt");
+    Files.write("hello", a, Charsets.UTF_8);
+    File b = folder.newFile("b.txt");
+    Files.write("world", b, Charsets.UTF_8);
+
+    Map<String, String> hashes = ContentStore.hashFiles(
+        ImmutableMap.of("a", new FilePath(a), "b", new FilePath(b)), 2);
+
+    assertEquals(ImmutableMap.of(
+        "a", Hashing.sha256().hashString("hello", Charsets.UTF_8).toString(),
+        "b", Hashing.sha256().hashString("world", Charsets.UTF_8).toString()),
+        hashes);
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testFindExisting() throws Exception {
+    transport.existing.addAll(ImmutableList.of("cas/1", "cas/3"));
+
+    assertEquals(ImmutableSet.of("cas/1", "cas/3"),
+        ContentStore.findExisting(service, "bucket",
+            ImmutableList.of("cas/1", "cas/2", "cas/3")));
+    assertEquals(1, transport.batches.size());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testFindExistingInBatches() throws Exception {
+    List<String> names = Lists.newArrayList();
+    for (int i = 0; i < 2 * ContentStore.MAX_BATCH_SIZE + 1; i++) {
+      names.add("cas/" + i);
+    }
+    transport.existing.addAll(
+        ImmutableList.of("cas/0", "cas/150", "cas/200"));
+
+    assertEquals(ImmutableSet.of("cas/0", "cas/150", "cas/200"),
+        ContentStore.findExisting(service, "bucket", names));
+    assertEquals(3, transport.batches.size());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testFindExistingAtRootUrl() throws Exception {
+    service = transport.newService("https://storage.example.com/");
+    transport.existing.add("cas/1");
+
+    assertEquals(ImmutableSet.of("cas/1"),
+        ContentStore.findExisting(service, "bucket",
+            ImmutableList.of("cas/1", "cas/2")));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testFindExistingFailure() throws Exception {
+    transport.existing.addAll(ImmutableList.of("cas/1", "cas/2"));
+    transport.unreadable.add("cas/2");
+
+    try {
+      ContentStore.findExisting(service, "bucket",
+          ImmutableList.of("cas/1", "cas/2", "cas/3"));
+      fail("Expected HttpResponseException");
+    } catch (HttpResponseException e) {
+      // Rather than taking the object for missing.
+      assertEquals(403, e.getStatusCode());
+    }
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testGetManifest() {
+    assertEquals("bbb  b.txt\naaa  dir/a.txt\n",
+        ContentStore.getManifest(ImmutableSortedMap.of(
+            "b.txt", "bbb", "dir/a.txt", "aaa")));
+  }
+}
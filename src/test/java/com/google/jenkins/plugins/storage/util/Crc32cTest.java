@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Tests for {@link Crc32c}.
+ */
+public class Crc32cTest {
+
+  private static long checksum(byte[] data) {
+    Crc32c crc = new Crc32c();
+    crc.update(data, 0, data.length);
+    return crc.getValue();
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testKnownValues() {
+    // From RFC 3720, appendix B.4
+    assertEquals(0x8a9136aaL, checksum(new byte[32]));
+    assertEquals(0xe3069283L, checksum("123456789".getBytes(Charsets.UTF_8)));
+    assertEquals(0L, checksum(new byte[0]));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testBytewiseMatchesBulk() {
+    byte[] data = new byte[1000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 31);
+    }
+
+    Crc32c crc = new Crc32c();
+    for (byte b : data) {
+      crc.update(b);
+    }
+    assertEquals(checksum(data), crc.getValue());
+
+    crc.reset();
+    crc.update(data, 0, 3);
+    crc.update(data, 3, data.length - 3);
+    assertEquals(checksum(data), crc.getValue());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testCombine() {
+    byte[] data = new byte[100000];
+    new Random(42).nextBytes(data);
+
+    for (int split : new int[] {0, 1, 7, 8, 4096, 99999, 100000}) {
+      Crc32c first = new Crc32c();
+      first.update(data, 0, split);
+      Crc32c second = new Crc32c();
+      second.update(data, split, data.length - split);
+      assertEquals(checksum(data), Crc32c.combine(first.getValue(),
+          second.getValue(), data.length - split));
+    }
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testEncode() {
+    // The crc32c that the service reports for "hello world"
+    assertEquals("yZRlqg==", Crc32c.encode(
+        checksum("hello world".getBytes(Charsets.UTF_8))));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testDecode() {
+    long value = checksum("hello world".getBytes(Charsets.UTF_8));
+    assertEquals(value, Crc32c.decode(Crc32c.encode(value)));
+    assertEquals(0xffffffffL, Crc32c.decode("/////w=="));
+  }
+}
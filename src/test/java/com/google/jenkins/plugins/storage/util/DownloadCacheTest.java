@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Tests for {@link DownloadCache}.
+ */
+public class DownloadCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final String KEY =
+      DownloadCache.keyOf("bucket", "path/to/obj.txt", 1234L, "");
+  private static final String OTHER_KEY =
+      DownloadCache.keyOf("bucket", "path/to/obj.txt", 5678L, "");
+
+  private DownloadCache underTest;
+  private File workspace;
+
+  @Before
+  public void setUp() throws Exception {
+    underTest = new DownloadCache(new File(folder.getRoot(), "cache"));
+    workspace = folder.newFolder("workspace");
+  }
+
+  private File write(String name, String content) throws Exception {
+    File file = new File(workspace, name);
+    Files.write(content, file, Charsets.UTF_8);
+    return file;
+  }
+
+  private static String read(File file) throws Exception {
+    return Files.toString(file, Charsets.UTF_8);
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testFetch() throws Exception {
+    File downloaded = write("a.txt", "hello");
+    underTest.put(KEY, downloaded);
+
+    File target = new File(workspace, "b/c.txt");
+    assertTrue(underTest.fetch(KEY, 5, target));
+    assertEquals("hello", read(target));
+    // The files share the cache entry rather than copy it.
+    assertTrue(java.nio.file.Files.isSameFile(
+        downloaded.toPath(), target.toPath()));
+
+    // Another generation is not cached, nor is an entry of another size.
+    assertFalse(underTest.fetch(OTHER_KEY, 5, target));
+    assertFalse(underTest.fetch(KEY, 6, target));
+    assertTrue(underTest.fetch(KEY, -1, target));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testFetchReplaces() throws Exception {
+    underTest.put(KEY, write("a.txt", "hello"));
+    File target = write("b.txt", "world");
+
+    assertTrue(underTest.fetch(KEY, 5, target));
+    assertEquals("hello", read(target));
+    // Nothing is left of the link that replaced it.
+    assertEquals(2, workspace.list().length);
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testEvict() throws Exception {
+    underTest.put(KEY, write("a.txt", "hello"));
+    underTest.put(OTHER_KEY, write("b.txt", "world"));
+    File target = new File(workspace, "c.txt");
+
+    // Both fit.
+    underTest.evict(10);
+    assertTrue(underTest.fetch(OTHER_KEY, 5, target));
+    assertTrue(underTest.fetch(KEY, 5, target));
+
+    // The least recently used goes first.
+    File entry = findEntry(folder.getRoot(), "hello");
+    entry.setLastModified(System.currentTimeMillis() - 60000);
+    underTest.evict(9);
+    assertFalse(underTest.fetch(KEY, 5, target));
+    assertTrue(underTest.fetch(OTHER_KEY, 5, target));
+
+    underTest.evict(0);
+    assertFalse(underTest.fetch(OTHER_KEY, 5, target));
+    // What was taken from the cache stays.
+    assertEquals("world", read(target));
+  }
+
+  /**
+   * Finds the cache entry with the given content.
+   */
+  private static File findEntry(File root, String content) throws Exception {
+    for (File subdirectory : new File(root, "cache/objects").listFiles()) {
+      for (File entry : subdirectory.listFiles()) {
+        if (read(entry).equals(content)) {
+          return entry;
+        }
+      }
+    }
+    throw new AssertionError("No entry holds " + content);
+  }
+}
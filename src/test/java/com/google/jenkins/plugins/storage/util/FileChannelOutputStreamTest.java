@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Tests for {@link FileChannelOutputStream}.
+ */
+public class FileChannelOutputStreamTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  // Several of the buffers of the stream.
+  private static final int SIZE = 3 * 1024 * 1024 + 123;
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(42).nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * A stream that computes the CRC32C of what it wrote.
+   */
+  private static class HashingStream extends FileChannelOutputStream {
+    public HashingStream(RandomAccessFile file, long position) {
+      super(file.getChannel(), position);
+    }
+
+    @Override
+    protected void afterWrite(byte[] b, int off, int len) {
+      crc.update(b, off, len);
+    }
+
+    public final Crc32c crc = new Crc32c();
+  }
+
+  /**
+   * Writes the content in reads of the given size.
+   */
+  private static void write(FileChannelOutputStream out, byte[] content,
+      int off, int len, int chunk) throws Exception {
+    for (int i = off; i < off + len; i += chunk) {
+      out.write(content, i, Math.min(chunk, off + len - i));
+    }
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testWrite() throws Exception {
+    byte[] content = randomBytes(SIZE);
+    File file = folder.newFile("out.bin");
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      HashingStream out = new HashingStream(raf, 0);
+      write(out, content, 0, SIZE, 8 * 1024);
+      // Only whole buffers were written so far.
+      assertEquals(3 * 1024 * 1024, out.getPosition());
+      out.close();
+      assertEquals(SIZE, out.getPosition());
+      assertEquals(Crc32c.encode(out.crc.getValue()),
+          StorageUtil.computeCrc32c(ByteStreams.asByteSource(content)));
+    } finally {
+      raf.close();
+    }
+    assertArrayEquals(content, Files.toByteArray(file));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testWriteRanges() throws Exception {
+    byte[] content = randomBytes(SIZE);
+    int half = SIZE / 2;
+    File file = folder.newFile("out.bin");
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(SIZE);
+      // Two streams, each writing its own range, the second one first and
+      // both a byte at a time at their start.
+      HashingStream second = new HashingStream(raf, half);
+      HashingStream first = new HashingStream(raf, 0);
+      second.write(content[half]);
+      first.write(content[0]);
+      write(second, content, half + 1, SIZE - half - 1, 5000);
+      write(first, content, 1, half - 1, 7000);
+      second.close();
+      first.close();
+
+      assertEquals(half, first.getPosition());
+      assertEquals(SIZE, second.getPosition());
+      assertEquals(Crc32c.encode(Crc32c.combine(first.crc.getValue(),
+          second.crc.getValue(), SIZE - half)),
+          StorageUtil.computeCrc32c(ByteStreams.asByteSource(content)));
+    } finally {
+      raf.close();
+    }
+    assertArrayEquals(content, Files.toByteArray(file));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testResume() throws Exception {
+    byte[] content = randomBytes(SIZE);
+    File file = folder.newFile("out.bin");
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      FileChannelOutputStream out = new FileChannelOutputStream(
+          raf.getChannel(), 0);
+      write(out, content, 0, 40000, 4096);
+      out.close();
+      // A closed stream is done with its buffer.
+      out.close();
+
+      out = new FileChannelOutputStream(raf.getChannel(), out.getPosition());
+      write(out, content, 40000, SIZE - 40000, 65536);
+      out.close();
+    } finally {
+      raf.close();
+    }
+    assertArrayEquals(content, Files.toByteArray(file));
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests for {@link GzipByteSource}.
+ */
+public class GzipByteSourceTest {
+
+  private static byte[] logLines(int count) {
+    StringBuilder log = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      log.append("[INFO] Building module ").append(i).append('\n');
+    }
+    return log.toString().getBytes(Charsets.UTF_8);
+  }
+
+  private static byte[] randomBytes(int count) {
+    byte[] data = new byte[count];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws Exception {
+    return ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(compressed)));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testRoundTrip() throws Exception {
+    for (byte[] data : new byte[][] {
+        new byte[0], logLines(100000), randomBytes(300000)}) {
+      byte[] compressed = new GzipByteSource(ByteStreams.asByteSource(data))
+          .read();
+      assertArrayEquals(data, gunzip(compressed));
+    }
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testRereadIsIdentical() throws Exception {
+    ByteSource underTest =
+        new GzipByteSource(ByteStreams.asByteSource(logLines(10000)));
+    assertArrayEquals(underTest.read(), underTest.read());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testCompressesLogs() throws Exception {
+    byte[] data = logLines(100000);
+    assertTrue(GzipByteSource.isCompressible(ByteStreams.asByteSource(data)));
+    assertTrue(new GzipByteSource(ByteStreams.asByteSource(data)).size()
+        * 5 < data.length);
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testIsCompressible() throws Exception {
+    assertFalse(GzipByteSource.isCompressible(
+        ByteStreams.asByteSource(randomBytes(100000))));
+    assertFalse(GzipByteSource.isCompressible(
+        ByteStreams.asByteSource(new byte[0])));
+    // Only the start of the content is sampled.
+    byte[] data = new byte[GzipByteSource.SAMPLE_SIZE * 2];
+    System.arraycopy(randomBytes(GzipByteSource.SAMPLE_SIZE), 0, data, 0,
+        GzipByteSource.SAMPLE_SIZE);
+    assertFalse(GzipByteSource.isCompressible(
+        ByteStreams.asByteSource(data)));
+    assertTrue(GzipByteSource.isCompressible(ByteStreams.asByteSource(
+        Strings.repeat("a", 100).getBytes(Charsets.UTF_8))));
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests for {@link HashingByteSource}.
+ */
+public class HashingByteSourceTest {
+
+  private final byte[] data = new byte[10000];
+  private final ByteSource content = ByteStreams.asByteSource(data);
+
+  public HashingByteSourceTest() {
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 7);
+    }
+  }
+
+  private static void read(InputStream stream, int count) throws IOException {
+    ByteStreams.readFully(stream, new byte[count]);
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testHashesAsRead() throws Exception {
+    HashingByteSource underTest =
+        new HashingByteSource(content, data.length);
+    assertFalse(underTest.isComplete());
+
+    ByteStreams.toByteArray(underTest.openStream());
+
+    assertTrue(underTest.isComplete());
+    assertEquals(StorageUtil.computeCrc32c(content), underTest.getCrc32c());
+    assertEquals(StorageUtil.computeMd5(content), underTest.getMd5Hash());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testRetriesHashEachByteOnce() throws Exception {
+    HashingByteSource underTest =
+        new HashingByteSource(content, data.length);
+
+    // A first attempt that fails part way
+    read(underTest.openStream(), 6000);
+
+    // A retry that reads some bytes again, after skipping others
+    InputStream stream = underTest.openStream();
+    ByteStreams.skipFully(stream, 4000);
+    read(stream, 6000);
+
+    assertTrue(underTest.isComplete());
+    assertEquals(StorageUtil.computeCrc32c(content), underTest.getCrc32c());
+    assertEquals(StorageUtil.computeMd5(content), underTest.getMd5Hash());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testSkippedBytesAreNotVerified() throws Exception {
+    HashingByteSource underTest =
+        new HashingByteSource(content, data.length);
+
+    InputStream stream = underTest.openStream();
+    ByteStreams.skipFully(stream, 10);
+    ByteStreams.toByteArray(stream);
+
+    assertFalse(underTest.isComplete());
+    // Nothing to compare with, so anything goes.
+    underTest.verify(new StorageObject().setCrc32c("AAAAAA=="));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testVerify() throws Exception {
+    HashingByteSource underTest =
+        new HashingByteSource(content, data.length);
+    ByteStreams.toByteArray(underTest.openStream());
+
+    underTest.verify(new StorageObject()
+        .setCrc32c(underTest.getCrc32c())
+        .setMd5Hash(underTest.getMd5Hash()));
+    underTest.verify(new StorageObject());
+
+    try {
+      underTest.verify(new StorageObject()
+          .setName("object")
+          .setCrc32c(underTest.getCrc32c())
+          .setMd5Hash("AAAAAAAAAAAAAAAAAAAAAA=="));
+      fail("Expected exception");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("MD5"));
+    }
+  }
+}
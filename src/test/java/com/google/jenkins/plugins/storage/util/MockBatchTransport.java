@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.storage.Storage;
+import com.google.common.collect.Lists;
+
+/**
+ * Answers the batches of object lookups that {@link ContentStore} sends,
+ * finding the objects of the {@link #existing} names, and the batches of
+ * deletions that {@link ObjectMirror} sends, removing them.
+ */
+public class MockBatchTransport extends MockHttpTransport {
+
+  /**
+   * The names of the objects that lookups find.
+   */
+  public final Set<String> existing = Collections.newSetFromMap(
+      new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * The names of the objects that lookups are forbidden for.
+   */
+  public final Set<String> unreadable = Collections.newSetFromMap(
+      new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * The names of the objects that deletions are forbidden for.
+   */
+  public final Set<String> undeletable = Collections.newSetFromMap(
+      new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * The names of the objects whose deletions are refused as unauthorized,
+   * as when the access token of the batch expired.
+   */
+  public final Set<String> unauthorized = Collections.newSetFromMap(
+      new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * The bodies of the batches that were sent.
+   */
+  public final List<String> batches =
+      Collections.synchronizedList(Lists.<String>newArrayList());
+
+  /**
+   * A storage service that sends its requests to this transport.
+   */
+  public Storage newService() {
+    return newService(Storage.DEFAULT_ROOT_URL);
+  }
+
+  /**
+   * A storage service at the given root URL, whose batches must be sent to
+   * the batch endpoint under it.
+   */
+  public Storage newService(String rootUrl) {
+    batchUrl = rootUrl + "batch/storage/v1";
+    return new Storage.Builder(this, new JacksonFactory(), null)
+        .setRootUrl(rootUrl)
+        .setApplicationName("test").build();
+  }
+
+  @Override
+  public LowLevelHttpRequest buildRequest(String method, String url) {
+    assertEquals(batchUrl, url);
+    return new MockLowLevelHttpRequest(url) {
+      @Override
+      public LowLevelHttpResponse execute() throws IOException {
+        String batch = getContentAsString();
+        batches.add(batch);
+        return respond(batch);
+      }
+    };
+  }
+
+  /**
+   * Answers each request of a batch, in order: a lookup with the object if
+   * it is one of those that exist, and a deletion by removing it, or with
+   * an error otherwise.
+   */
+  private MockLowLevelHttpResponse respond(String batch) throws IOException {
+    StringBuilder content = new StringBuilder();
+    Matcher request = REQUEST_LINE.matcher(batch);
+    while (request.find()) {
+      String name = URLDecoder.decode(request.group(2), "UTF-8");
+      content.append("--").append(BOUNDARY).append("\r\n")
+          .append("Content-Type: application/http\r\n\r\n");
+      if (request.group(1).equals("GET") && unreadable.contains(name)) {
+        appendError(content, 403, "Forbidden");
+      } else if (!existing.contains(name)) {
+        appendError(content, 404, "Not Found");
+      } else if (request.group(1).equals("GET")) {
+        content.append("HTTP/1.1 200 OK\r\n")
+            .append("Content-Type: application/json\r\n\r\n")
+            .append("{\"name\":\"").append(name).append("\"}\r\n");
+      } else if (undeletable.contains(name)) {
+        appendError(content, 403, "Forbidden");
+      } else if (unauthorized.contains(name)) {
+        appendError(content, 401, "Unauthorized");
+      } else {
+        existing.remove(name);
+        content.append("HTTP/1.1 204 No Content\r\n\r\n");
+      }
+    }
+    content.append("--").append(BOUNDARY).append("--\r\n");
+    return new MockLowLevelHttpResponse()
+        .setContentType("multipart/mixed; boundary=" + BOUNDARY)
+        .setContent(content.toString());
+  }
+
+  private static void appendError(StringBuilder content, int code,
+      String message) {
+    content.append("HTTP/1.1 ").append(code).append(" ").append(message)
+        .append("\r\n")
+        .append("Content-Type: application/json\r\n\r\n")
+        .append("{\"error\":{\"code\":").append(code)
+        .append(",\"message\":\"").append(message).append("\"}}\r\n");
+  }
+
+  private static final Pattern REQUEST_LINE =
+      Pattern.compile("(GET|DELETE) [^\\s?]*/o/([^\\s?]+)");
+  private static final String BOUNDARY = "batch_boundary";
+
+  private String batchUrl;
+}
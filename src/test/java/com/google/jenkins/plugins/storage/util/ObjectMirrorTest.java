@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.util.List;
+import java.util.SortedMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import static com.google.api.client.http.HttpStatusCodes
+    .STATUS_CODE_UNAUTHORIZED;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link ObjectMirror}.
+ */
+public class ObjectMirrorTest {
+
+  private final MockBatchTransport transport = new MockBatchTransport();
+
+  private Storage service;
+
+  @Before
+  public void setUp() {
+    service = transport.newService();
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testFindStale() {
+    assertEquals(ImmutableList.of("docs/a.html", "docs/old/c.html"),
+        ImmutableList.copyOf(ObjectMirror.findStale(
+            ImmutableSet.of("docs/old/c.html", "docs/b.html", "docs/a.html"),
+            ImmutableSet.of("docs/b.html", "docs/new.html"))));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testDeleteObjects() throws Exception {
+    transport.existing.addAll(ImmutableList.of("docs/a.html", "docs/b.html"));
+
+    // An object that is already gone counts as deleted.
+    SortedMap<String, String> failures = ObjectMirror.deleteObjects(
+        service, "bucket",
+        ImmutableList.of("docs/a.html", "docs/b.html", "docs/gone.html"));
+
+    assertTrue(failures.isEmpty());
+    assertTrue(transport.existing.isEmpty());
+    assertEquals(1, transport.batches.size());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testDeleteObjectsInBatches() throws Exception {
+    List<String> names = Lists.newArrayList();
+    for (int i = 0; i < 2 * ContentStore.MAX_BATCH_SIZE + 1; i++) {
+      names.add("docs/" + i);
+    }
+    transport.existing.addAll(names);
+
+    assertTrue(ObjectMirror.deleteObjects(service, "bucket", names)
+        .isEmpty());
+    assertTrue(transport.existing.isEmpty());
+    assertEquals(3, transport.batches.size());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testDeleteObjectsFailure() throws Exception {
+    transport.existing.addAll(ImmutableList.of("docs/a.html", "docs/b.html"));
+    transport.undeletable.add("docs/b.html");
+
+    SortedMap<String, String> failures = ObjectMirror.deleteObjects(
+        service, "bucket", ImmutableList.of("docs/a.html", "docs/b.html"));
+
+    assertEquals(ImmutableSet.of("docs/b.html"), failures.keySet());
+    assertEquals("Forbidden", failures.get("docs/b.html"));
+    assertEquals(ImmutableSet.of("docs/b.html"), transport.existing);
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testDeleteObjectsUnauthorized() throws Exception {
+    transport.existing.addAll(ImmutableList.of("docs/a.html", "docs/b.html"));
+    transport.unauthorized.add("docs/b.html");
+
+    try {
+      ObjectMirror.deleteObjects(service, "bucket",
+          ImmutableList.of("docs/a.html", "docs/b.html"));
+      fail("Expected HttpResponseException");
+    } catch (HttpResponseException e) {
+      // So that the caller refreshes its credentials.
+      assertEquals(STATUS_CODE_UNAUTHORIZED, e.getStatusCode());
+    }
+    // The rest of the batch went through.
+    assertEquals(ImmutableSet.of("docs/b.html"), transport.existing);
+  }
+}
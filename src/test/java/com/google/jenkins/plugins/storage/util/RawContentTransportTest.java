@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests for {@link RawContentTransport}.
+ */
+public class RawContentTransportTest {
+
+  private static final GenericUrl URL =
+      new GenericUrl("https://www.googleapis.com/storage/v1/b/bucket/o/obj");
+
+  private byte[] compressed;
+  private MockLowLevelHttpRequest request;
+  private RawContentTransport transport;
+
+  @Before
+  public void setUp() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write("test".getBytes(Charsets.UTF_8));
+    out.close();
+    compressed = bytes.toByteArray();
+
+    request = new MockLowLevelHttpRequest().setResponse(
+        new MockLowLevelHttpResponse()
+            .setContent(compressed)
+            .setContentEncoding("gzip"));
+    transport = new RawContentTransport(new MockHttpTransport.Builder()
+        .setLowLevelHttpRequest(request)
+        .build());
+  }
+
+  private byte[] get(boolean raw) throws IOException {
+    HttpRequest get = transport.createRequestFactory().buildGetRequest(URL);
+    if (raw) {
+      RawContentTransport.requestRawContent(get.getHeaders());
+    }
+    HttpResponse response = get.execute();
+    try {
+      return ByteStreams.toByteArray(response.getContent());
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testDecompressedByDefault() throws Exception {
+    assertEquals("test", new String(get(false), Charsets.UTF_8));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testRawContent() throws Exception {
+    assertArrayEquals(compressed, get(true));
+    // The mark is not sent, but the rest of the headers are.
+    assertNull(request.getFirstHeaderValue("X-Raw-Content"));
+    assertEquals("gzip", request.getFirstHeaderValue("Accept-Encoding"));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testSendsContent() throws Exception {
+    HttpRequest post = transport.createRequestFactory().buildPostRequest(URL,
+        ByteArrayContent.fromString("text/plain", "body"));
+    RawContentTransport.requestRawContent(post.getHeaders());
+    post.execute().disconnect();
+
+    assertEquals("body", request.getContentAsString());
+  }
+}
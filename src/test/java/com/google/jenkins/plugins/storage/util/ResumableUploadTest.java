@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests for {@link ResumableUpload}.
+ */
+public class ResumableUploadTest {
+
+  private static final String SESSION_URL =
+      "https://www.googleapis.com/upload/storage/v1/b/bucket/o?upload_id=x";
+  private static final int CHUNK = ResumableUpload.CHUNK_GRANULARITY;
+
+  // The responses to return, in order, and the requests that were made
+  private final Queue<MockLowLevelHttpResponse> responses =
+      new LinkedList<MockLowLevelHttpResponse>();
+  private final List<MockLowLevelHttpRequest> requests = Lists.newArrayList();
+
+  private Storage service;
+  private byte[] content;
+
+  @Before
+  public void setUp() {
+    MockHttpTransport transport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        MockLowLevelHttpRequest request = new MockLowLevelHttpRequest(url) {
+          @Override
+          public LowLevelHttpResponse execute() throws IOException {
+            if (responses.isEmpty()) {
+              fail("Unexpected request: " + getUrl());
+            }
+            return responses.remove();
+          }
+        };
+        requests.add(request);
+        return request;
+      }
+    };
+    service = new Storage.Builder(transport, new JacksonFactory(), null)
+        .setApplicationName("test").build();
+
+    content = new byte[2 * CHUNK + 10];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+  }
+
+  private ResumableUpload newUpload() {
+    return new ResumableUpload("bucket",
+        new StorageObject().setName("object").setContentType("text/plain"),
+        ByteStreams.asByteSource(content), content.length, CHUNK);
+  }
+
+  private void expectSession() {
+    responses.add(new MockLowLevelHttpResponse()
+        .addHeader("Location", SESSION_URL));
+  }
+
+  private void expectIncomplete(long committed) {
+    MockLowLevelHttpResponse response = new MockLowLevelHttpResponse()
+        .setStatusCode(308);
+    if (committed > 0) {
+      response.addHeader("Range", "bytes=0-" + (committed - 1));
+    }
+    responses.add(response);
+  }
+
+  private void expectDone() {
+    responses.add(new MockLowLevelHttpResponse()
+        .setContentType("application/json")
+        .setContent("{\"name\":\"object\"}"));
+  }
+
+  private void expectError(int status) {
+    responses.add(new MockLowLevelHttpResponse().setStatusCode(status));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testUploadInChunks() throws Exception {
+    ResumableUpload upload = newUpload();
+    expectSession();
+    expectIncomplete(CHUNK);
+    expectIncomplete(2 * CHUNK);
+    expectDone();
+
+    assertEquals("object", upload.upload(service).getName());
+
+    assertEquals(4, requests.size());
+    assertEquals("bytes 0-" + (CHUNK - 1) + "/" + content.length,
+        requests.get(1).getFirstHeaderValue("Content-Range"));
+    assertEquals("bytes " + 2 * CHUNK + "-" + (content.length - 1) + "/"
+        + content.length,
+        requests.get(3).getFirstHeaderValue("Content-Range"));
+    assertEquals(10, requests.get(3).getContentLength());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testResumeFromCommittedOffset() throws Exception {
+    ResumableUpload upload = newUpload();
+    expectSession();
+    expectIncomplete(CHUNK);
+    expectError(503);
+
+    try {
+      upload.upload(service);
+      fail("Expected exception");
+    } catch (HttpResponseException e) {
+      assertEquals(503, e.getStatusCode());
+    }
+    assertTrue(upload.isStarted());
+    assertEquals(CHUNK, upload.getCommittedOffset());
+
+    // The service reports that it committed only part of the failed chunk,
+    // so the retry continues from there without creating a new session.
+    requests.clear();
+    expectIncomplete(CHUNK + 1024);
+    expectDone();
+
+    assertEquals("object", upload.upload(service).getName());
+
+    assertEquals(2, requests.size());
+    assertEquals("bytes */" + content.length,
+        requests.get(0).getFirstHeaderValue("Content-Range"));
+    assertEquals("bytes " + (CHUNK + 1024) + "-" + (content.length - 1) + "/"
+        + content.length,
+        requests.get(1).getFirstHeaderValue("Content-Range"));
+    assertEquals(content[CHUNK + 1024],
+        requests.get(1).getContentAsString().getBytes("ISO-8859-1")[0]);
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testResumeAfterUnauthorized() throws Exception {
+    ResumableUpload upload = newUpload();
+    expectSession();
+    expectIncomplete(CHUNK);
+    expectError(401);
+
+    try {
+      upload.upload(service);
+      fail("Expected exception");
+    } catch (HttpResponseException e) {
+      assertEquals(401, e.getStatusCode());
+    }
+    assertTrue(upload.isStarted());
+
+    // Once the credentials are initialized again, the same session goes on
+    // from what it committed.
+    requests.clear();
+    expectIncomplete(CHUNK);
+    expectIncomplete(2 * CHUNK);
+    expectDone();
+
+    assertEquals("object", upload.upload(service).getName());
+    assertEquals("bytes */" + content.length,
+        requests.get(0).getFirstHeaderValue("Content-Range"));
+    assertEquals("bytes " + CHUNK + "-" + (2 * CHUNK - 1) + "/"
+        + content.length,
+        requests.get(1).getFirstHeaderValue("Content-Range"));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testExpiredSessionStartsOver() throws Exception {
+    ResumableUpload upload = newUpload();
+    expectSession();
+    expectError(410);
+
+    try {
+      upload.upload(service);
+      fail("Expected exception");
+    } catch (HttpResponseException e) {
+      assertEquals(410, e.getStatusCode());
+    }
+    assertFalse(upload.isStarted());
+
+    requests.clear();
+    expectSession();
+    expectIncomplete(CHUNK);
+    expectIncomplete(2 * CHUNK);
+    expectDone();
+
+    upload.upload(service);
+    assertEquals("bytes 0-" + (CHUNK - 1) + "/" + content.length,
+        requests.get(1).getFirstHeaderValue("Content-Range"));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testUnknownLength() throws Exception {
+    // Content that ends exactly at a chunk boundary
+    content = new byte[2 * CHUNK];
+    ResumableUpload upload = new ResumableUpload("bucket",
+        new StorageObject().setName("object").setContentType("text/plain"),
+        ByteStreams.asByteSource(content), ResumableUpload.UNKNOWN_LENGTH,
+        CHUNK);
+    expectSession();
+    expectIncomplete(CHUNK);
+    expectIncomplete(2 * CHUNK);
+    expectDone();
+
+    assertEquals("object", upload.upload(service).getName());
+
+    assertEquals(4, requests.size());
+    assertEquals("bytes 0-" + (CHUNK - 1) + "/*",
+        requests.get(1).getFirstHeaderValue("Content-Range"));
+    assertEquals("bytes " + CHUNK + "-" + (2 * CHUNK - 1) + "/*",
+        requests.get(2).getFirstHeaderValue("Content-Range"));
+    // Only then do we know the total length.
+    assertEquals("bytes */" + 2 * CHUNK,
+        requests.get(3).getFirstHeaderValue("Content-Range"));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testParseRange() throws Exception {
+    assertEquals(0, ResumableUpload.parseRange(null));
+    assertEquals(100, ResumableUpload.parseRange("bytes=0-99"));
+
+    try {
+      ResumableUpload.parseRange("0-99");
+      fail("Expected exception");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -16,8 +16,14 @@
 package com.google.jenkins.plugins.storage.util;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -28,8 +34,11 @@ import static com.google.api.client.http.HttpStatusCodes
 
 import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.StubHttpResponseException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.jenkins.plugins.storage.util.RetryStorageOperation.Operation;
 import com.google.jenkins.plugins.storage.util.RetryStorageOperation.RepeatOperation;
+import com.google.jenkins.plugins.util.ExecutorException;
 import com.google.jenkins.plugins.util.MockExecutor;
 
 /**
@@ -248,4 +257,188 @@ public class RetryStorageOperationTest {
     }
     Assert.fail("Expected exception");
   }
+
+  @Test
+  @WithoutJenkins
+  public void parallelCredsRetry() throws Exception {
+    // Each operation refreshes its own credentials
+    FailingCredentials first = new FailingCredentials(2, 10);
+    FailingCredentials second = new FailingCredentials(3, 10);
+
+    RetryStorageOperation.performRequestsWithReinitCredentials(
+        ImmutableList.of(first, second));
+    assertEquals(0, first.stepsLeft);
+    assertEquals(4, first.failures);
+    assertEquals(0, second.stepsLeft);
+    assertEquals(3, second.failures);
+  }
+
+  @Test
+  @WithoutJenkins
+  public void parallelFailureOfOneFailsAll() throws Exception {
+    FailingCredentials succeeds = new FailingCredentials(10, 10);
+    // Gets stuck: credentials never last long enough to finish.
+    FailingCredentials stuck = new FailingCredentials(0, 10);
+
+    try {
+      RetryStorageOperation.performRequestsWithReinitCredentials(
+          ImmutableList.of(succeeds, stuck));
+    } catch (IOException e) {
+      // The healthy operation still ran to completion.
+      assertEquals(0, succeeds.stepsLeft);
+      assertEquals(10, stuck.stepsLeft);
+      return;
+    }
+    Assert.fail("Expected exception");
+  }
+
+  @Test
+  @WithoutJenkins
+  public void parallelBoundedByPermits() throws Exception {
+    FailingCredentials first = new FailingCredentials(10, 10);
+    FailingCredentials second = new FailingCredentials(10, 10);
+    FailingCredentials third = new FailingCredentials(10, 10);
+    Semaphore threads = new Semaphore(1);
+
+    RetryStorageOperation.performRequestsWithReinitCredentials(
+        ImmutableList.of(first, second, third), threads);
+    // Only the calling thread and one other ran.
+    assertEquals(0, first.stepsLeft);
+    assertEquals(0, second.stepsLeft);
+    assertEquals(10, third.stepsLeft);
+    assertEquals(1, threads.availablePermits());
+  }
+
+  /**
+   * Counts how many of its kind are running at once.
+   */
+  private static class CountingOperation
+      implements RepeatOperation<IOException> {
+    public CountingOperation(AtomicInteger running, AtomicInteger most) {
+      this.running = running;
+      this.most = most;
+    }
+
+    public void initCredentials() {
+    }
+
+    public void act() throws InterruptedException {
+      int now = running.incrementAndGet();
+      synchronized (most) {
+        most.set(Math.max(most.get(), now));
+      }
+      Thread.sleep(20);
+      running.decrementAndGet();
+      done = true;
+    }
+
+    public boolean moreWork() {
+      return !done;
+    }
+
+    private final AtomicInteger running;
+    private final AtomicInteger most;
+    private boolean done;
+  }
+
+  @Test
+  @WithoutJenkins
+  public void nestedOperationsSharePermits() throws Exception {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger most = new AtomicInteger();
+    final Semaphore threads = new Semaphore(2);
+    List<RepeatOperation<IOException>> outer = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      outer.add(new RepeatOperation<IOException>() {
+        private boolean done;
+
+        public void initCredentials() {
+        }
+
+        public void act() throws IOException, InterruptedException,
+            ExecutorException {
+          List<RepeatOperation<IOException>> inner = Lists.newArrayList();
+          for (int j = 0; j < 3; j++) {
+            inner.add(new CountingOperation(running, most));
+          }
+          RetryStorageOperation.performRequestsWithReinitCredentials(
+              inner, threads);
+          done = true;
+        }
+
+        public boolean moreWork() {
+          return !done;
+        }
+      });
+    }
+
+    RetryStorageOperation.performRequestsWithReinitCredentials(outer,
+        threads);
+    assertTrue(most.get() <= 3);
+    assertEquals(2, threads.availablePermits());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void signalingExitSuccess() throws Exception {
+    FailingCredentials cr = new FailingCredentials(2, 10);
+    AtomicBoolean failed = new AtomicBoolean();
+    AtomicBoolean finished = new AtomicBoolean();
+
+    RetryStorageOperation.performRequestWithReinitCredentials(
+        RetryStorageOperation.signalingExit(cr, failed, finished));
+    assertEquals(0, cr.stepsLeft);
+    assertFalse(failed.get());
+    assertTrue(finished.get());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void signalingExitCredentialsFailure() throws Exception {
+    // The second 401 escapes the actions of the operation, and is still
+    // recorded as its failure.
+    FailingCredentials cr = new FailingCredentials(0, 10);
+    AtomicBoolean failed = new AtomicBoolean();
+    AtomicBoolean finished = new AtomicBoolean();
+
+    try {
+      RetryStorageOperation.performRequestWithReinitCredentials(
+          RetryStorageOperation.signalingExit(cr, failed, finished));
+    } catch (IOException e) {
+      assertEquals(10, cr.stepsLeft);
+      assertEquals(2, cr.failures);
+      assertTrue(failed.get());
+      assertTrue(finished.get());
+      return;
+    }
+    Assert.fail("Expected exception");
+  }
+
+  @Test
+  @WithoutJenkins
+  public void signalingExitRuntimeFailure() throws Exception {
+    RepeatOperation<IOException> broken = new RepeatOperation<IOException>() {
+      public void initCredentials() {
+      }
+
+      public void act() {
+        throw new IllegalStateException("broken");
+      }
+
+      public boolean moreWork() {
+        return true;
+      }
+    };
+    AtomicBoolean failed = new AtomicBoolean();
+
+    try {
+      RetryStorageOperation.performRequestWithReinitCredentials(
+          RetryStorageOperation.signalingExit(broken, failed,
+              null /* finished */));
+    } catch (IllegalStateException e) {
+      assertTrue(failed.get());
+      return;
+    }
+    Assert.fail("Expected exception");
+  }
 }
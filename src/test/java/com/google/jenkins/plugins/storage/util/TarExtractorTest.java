@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.primitives.Bytes;
+
+/**
+ * Tests for {@link TarExtractor}.
+ */
+public class TarExtractorTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final long MTIME = 1500000000000L;
+  private static final String LONG_NAME =
+      Strings.repeat("directory/", 12) + Strings.repeat("x", 200);
+
+  private static ArchiveByteSource.Member member(String name, String content,
+      boolean executable) {
+    byte[] data = content.getBytes(Charsets.UTF_8);
+    return new ArchiveByteSource.Member(name, ByteStreams.asByteSource(data),
+        data.length, MTIME, executable);
+  }
+
+  private static int extract(List<ArchiveByteSource.Member> members,
+      boolean compressed, File dir) throws IOException {
+    byte[] archive = new ArchiveByteSource(members, compressed).read();
+    if (compressed) {
+      return TarExtractor.extract(
+          new GZIPInputStream(new ByteArrayInputStream(archive)), dir);
+    }
+    return TarExtractor.extract(new ByteArrayInputStream(archive), dir);
+  }
+
+  /**
+   * The header of a directory entry, as tar writes for each directory it
+   * archives but {@link ArchiveByteSource} does not.
+   */
+  private static byte[] directoryHeader(String name) {
+    byte[] header = new byte[512];
+    byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+    System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+    header[156] = '5';
+    long checksum = 0;
+    for (int i = 0; i < header.length; i++) {
+      checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+    }
+    byte[] field = String.format("%06o\0 ", checksum)
+        .getBytes(Charsets.UTF_8);
+    System.arraycopy(field, 0, header, 148, field.length);
+    return header;
+  }
+
+  private static String read(File file) throws IOException {
+    return Files.toString(file, Charsets.UTF_8);
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testExtract() throws Exception {
+    File dir = new File(folder.getRoot(), "out");
+    assertEquals(4, extract(ImmutableList.of(
+        member("a.txt", "hello", false),
+        member("bin/run.sh", "#!/bin/sh", true),
+        member("empty", "", false),
+        member(LONG_NAME, Strings.repeat("data", 1000), false)),
+        false, dir));
+
+    assertEquals("hello", read(new File(dir, "a.txt")));
+    assertEquals(MTIME, new File(dir, "a.txt").lastModified());
+    assertFalse(new File(dir, "a.txt").canExecute());
+    assertEquals("#!/bin/sh", read(new File(dir, "bin/run.sh")));
+    assertTrue(new File(dir, "bin/run.sh").canExecute());
+    assertEquals("", read(new File(dir, "empty")));
+    assertEquals(Strings.repeat("data", 1000),
+        read(new File(dir, LONG_NAME)));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testExtractCompressedReplaces() throws Exception {
+    File dir = folder.newFolder("out");
+    File existing = new File(dir, "a.txt");
+    Files.write("old content", existing, Charsets.UTF_8);
+
+    assertEquals(1, extract(ImmutableList.of(member("a.txt", "new", false)),
+        true, dir));
+    assertEquals("new", read(existing));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testExtractCurrentDirectory() throws Exception {
+    // As written by "tar -czf x.tgz -C dir .", which names the directory
+    // itself first.
+    File dir = folder.newFolder("out");
+    byte[] archive = Bytes.concat(directoryHeader("./"),
+        directoryHeader("./sub/"),
+        new ArchiveByteSource(ImmutableList.of(
+            member("./sub/a.txt", "hello", false)), false).read());
+
+    assertEquals(1, TarExtractor.extract(new ByteArrayInputStream(archive),
+        dir));
+    assertEquals("hello", read(new File(dir, "sub/a.txt")));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testOutsideDirectory() throws Exception {
+    File dir = folder.newFolder("out");
+    try {
+      extract(ImmutableList.of(member("../evil.txt", "evil", false)),
+          false, dir);
+      fail("Extracted a file outside of the directory");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertFalse(new File(folder.getRoot(), "evil.txt").exists());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testCorrupt() throws Exception {
+    byte[] archive = new ArchiveByteSource(
+        ImmutableList.of(member("a.txt", "hello", false)), false).read();
+    archive[10] ^= 1;
+    try {
+      TarExtractor.extract(new ByteArrayInputStream(archive),
+          folder.newFolder("out"));
+      fail("Extracted a corrupt archive");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testTruncated() throws Exception {
+    byte[] archive = new ArchiveByteSource(ImmutableList.of(
+        member("a.txt", Strings.repeat("x", 2000), false)), false).read();
+    try {
+      TarExtractor.extract(new ByteArrayInputStream(archive, 0, 1024),
+          folder.newFolder("out"));
+      fail("Extracted a truncated archive");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.jenkins.plugins.storage.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import hudson.AbortException;
+
+/**
+ * Tests for {@link WildcardPattern}.
+ */
+public class WildcardPatternTest {
+
+  private static void assertMatches(String pattern, String... names)
+      throws Exception {
+    WildcardPattern underTest = WildcardPattern.compile(pattern);
+    for (String name : names) {
+      assertTrue(pattern + " should match " + name, underTest.matches(name));
+    }
+  }
+
+  private static void assertNoMatch(String pattern, String... names)
+      throws Exception {
+    WildcardPattern underTest = WildcardPattern.compile(pattern);
+    for (String name : names) {
+      assertFalse(pattern + " should not match " + name,
+          underTest.matches(name));
+    }
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testMatches() throws Exception {
+    assertMatches("pre/a_*.txt", "pre/a_2.txt", "pre/a_.txt");
+    assertNoMatch("pre/a_*.txt", "pre/a_2/log.txt", "pre/a_2.txt.bak");
+    assertMatches("pre/**.txt", "pre/a.txt", "pre/a/b/c.txt");
+    assertMatches("*/build-?/**", "x/build-1/a", "y/build-2/a/b");
+    assertNoMatch("*/build-?/**", "x/build-10/a", "x/y/build-1/a");
+    assertMatches("log[0-9][!a-c].txt", "log1d.txt", "log9-.txt");
+    assertNoMatch("log[0-9][!a-c].txt", "logxd.txt", "log1b.txt");
+    assertMatches("a[]b]", "a]", "ab");
+    assertMatches("a.b+(c)", "a.b+(c)");
+    assertNoMatch("a.b+(c)", "axb+(c)");
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testLiteral() throws Exception {
+    assertTrue(WildcardPattern.compile("path/to/object.txt").isLiteral());
+    assertFalse(WildcardPattern.compile("path/*/object.txt").isLiteral());
+    assertFalse(WildcardPattern.compile("path/to/object?").isLiteral());
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testUnclosedClass() throws Exception {
+    try {
+      WildcardPattern.compile("logs/[ab");
+      fail("Expected exception");
+    } catch (AbortException e) {
+      assertTrue(e.getMessage().contains("logs/[ab"));
+    }
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testListings() throws Exception {
+    WildcardPattern underTest = WildcardPattern.compile("logs/*/build-?.txt");
+
+    // Literal levels are part of the prefix rather than listed.
+    WildcardPattern.Listing first = underTest.getFirstListing();
+    assertEquals("logs/", first.getPrefix());
+    assertEquals("/", first.getDelimiter());
+
+    WildcardPattern.Listing next = underTest.descend(first, "logs/x/");
+    assertEquals("logs/x/build-", next.getPrefix());
+    assertEquals("/", next.getDelimiter());
+
+    // Objects are matched on the last level, not subdirectories.
+    assertNull(underTest.descend(next, "logs/x/build-1.txt/"));
+  }
+
+  @Test
+  @WithoutJenkins
+  public void testRecursiveListing() throws Exception {
+    WildcardPattern underTest = WildcardPattern.compile("a/*/b/c**.log");
+
+    WildcardPattern.Listing first = underTest.getFirstListing();
+    assertEquals("a/", first.getPrefix());
+    assertNull(underTest.descend(first, "b/"));
+
+    WildcardPattern.Listing next = underTest.descend(first, "a/x/");
+    assertEquals("a/x/b/c", next.getPrefix());
+    assertNull(next.getDelimiter());
+  }
+
+  /**
+   * A bucket of a million objects, named d000/b000/f000.txt for each of a
+   * thousand directories of a hundred subdirectories of ten files, which
+   * answers listings the way the service does without holding the names.
+   */
+  private static class SyntheticBucket {
+    private static final int[] FANOUT = {1000, 100, 10};
+
+    public int listings;
+    public long returned;
+
+    /**
+     * Lists the bucket as the service would, adding the objects and the
+     * subdirectories to the given collections.
+     */
+    public void list(String prefix, String delimiter, List<String> items,
+        Set<String> prefixes) {
+      listings++;
+      list(prefix, delimiter, "", 0, items, prefixes);
+      returned += items.size() + prefixes.size();
+    }
+
+    private void list(String prefix, String delimiter, String path,
+        int level, List<String> items, Set<String> prefixes) {
+      for (int i = 0; i < FANOUT[level]; i++) {
+        String name = path + name(level, i);
+        if (!name.startsWith(prefix) && !prefix.startsWith(name)) {
+          continue;
+        }
+        if (level == FANOUT.length - 1) {
+          if (name.startsWith(prefix)) {
+            items.add(name);
+          }
+        } else if (delimiter != null && name.startsWith(prefix)) {
+          prefixes.add(name.substring(0,
+              name.indexOf(delimiter, prefix.length()) + 1));
+        } else {
+          list(prefix, delimiter, name, level + 1, items, prefixes);
+        }
+      }
+    }
+
+    private static String name(int level, int i) {
+      return NAMES[level][i];
+    }
+
+    private static final String[][] NAMES = new String[FANOUT.length][];
+
+    static {
+      String[] formats = {"d%03d/", "b%03d/", "f%03d.txt"};
+      for (int level = 0; level < FANOUT.length; level++) {
+        NAMES[level] = new String[FANOUT[level]];
+        for (int i = 0; i < FANOUT[level]; i++) {
+          NAMES[level][i] = String.format(formats[level], i);
+        }
+      }
+    }
+  }
+
+  /**
+   * Lists the synthetic bucket as the download step does.
+   *
+   * @return the names that match the pattern.
+   */
+  private static List<String> listMatches(WildcardPattern pattern,
+      SyntheticBucket bucket) {
+    List<String> matches = Lists.newArrayList();
+    Deque<WildcardPattern.Listing> pending =
+        new ArrayDeque<WildcardPattern.Listing>();
+    pending.push(pattern.getFirstListing());
+    while (!pending.isEmpty()) {
+      WildcardPattern.Listing listing = pending.pop();
+      List<String> items = Lists.newArrayList();
+      Set<String> prefixes = Sets.newHashSet();
+      bucket.list(listing.getPrefix(), listing.getDelimiter(), items,
+          prefixes);
+      for (String item : items) {
+        if (pattern.matches(item)) {
+          matches.add(item);
+        }
+      }
+      for (String prefix : prefixes) {
+        WildcardPattern.Listing next = pattern.descend(listing, prefix);
+        if (next != null) {
+          pending.push(next);
+        }
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Compares what the planned listings return from a million objects with
+   * the whole bucket, which is what listing the literal prefix of the
+   * pattern without a delimiter returns when it is empty.
+   */
+  @Test
+  @WithoutJenkins
+  public void testListingsOfSyntheticBucket() throws Exception {
+    SyntheticBucket bucket = new SyntheticBucket();
+    List<String> matches = listMatches(
+        WildcardPattern.compile("d04?/b01[0-4]/f00?.txt"), bucket);
+
+    assertEquals(10 * 5 * 10, matches.size());
+    // One listing of the root, one of each of the ten directories, and
+    // one of each of the fifty subdirectories.
+    assertEquals(1 + 10 + 50, bucket.listings);
+    assertTrue(bucket.returned < 2000);
+
+    // A leading wildcard costs a listing of each directory.
+    bucket = new SyntheticBucket();
+    matches = listMatches(
+        WildcardPattern.compile("*/b042/f00[0-4].txt"), bucket);
+    assertEquals(1000 * 5, matches.size());
+    assertEquals(1 + 1000, bucket.listings);
+    assertTrue(bucket.returned < 20000);
+
+    // A recursive wildcard lists the subtree under its literal prefix.
+    bucket = new SyntheticBucket();
+    matches = listMatches(WildcardPattern.compile("d007/**"), bucket);
+    assertEquals(100 * 10, matches.size());
+    assertEquals(1, bucket.listings);
+    assertEquals(100 * 10, bucket.returned);
+  }
+}